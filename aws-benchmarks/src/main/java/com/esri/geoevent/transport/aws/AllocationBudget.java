@@ -0,0 +1,174 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.esri.geoevent.transport.aws.AwsIoTHubOutboundTransport.AWSIoTPublishListener;
+import com.esri.geoevent.transport.aws.BenchmarkPayloads.Corpus;
+import com.esri.ges.messaging.ByteListener;
+
+/**
+ * Checks the bytes allocated per message on the inbound and outbound paths
+ * against the budgets in <code>allocation-budgets.properties</code>, and
+ * fails the build when a path allocates more. String handling differs
+ * between Java versions, so a budget prefixed with the Java version (e.g.
+ * <code>java8.inbound.POSITION</code>) takes precedence.
+ * <p>
+ * The messages are pushed through the per-message methods of the transports
+ * on the calling thread, with a byte listener that only reads the buffer;
+ * the allocations are read from the thread's allocation counter, so the
+ * result does not depend on what other threads or the collector do.
+ */
+public final class AllocationBudget
+{
+  private static final int WARMUP_MESSAGES = 200000;
+  // the best of several rounds, so a round disturbed by the JIT compiler
+  // does not count
+  private static final int ROUNDS          = 5;
+  private static final int ROUND_MESSAGES  = 20000;
+
+  private AllocationBudget()
+  {
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    Properties budgets = new Properties();
+    try (InputStream in = AllocationBudget.class.getResourceAsStream("/allocation-budgets.properties"))
+    {
+      if (in == null)
+      {
+        throw new IOException("allocation-budgets.properties not found");
+      }
+      budgets.load(in);
+    }
+
+    AwsIoTHubInboundTransport inbound = (AwsIoTHubInboundTransport) new AwsIoTHubInboundTransportService().createTransport();
+    inbound.setByteListener(new ReadingByteListener());
+    AwsIoTHubOutboundTransport outbound = (AwsIoTHubOutboundTransport) new AwsIoTHubOutboundTransportService().createTransport();
+
+    List<String> exceeded = new ArrayList<String>();
+    for (Corpus corpus : Corpus.values())
+    {
+      byte[] payload = BenchmarkPayloads.get(corpus);
+      check(budgets, "inbound." + corpus, payload.length, measureInbound(inbound, payload), exceeded);
+      check(budgets, "outbound." + corpus, payload.length, measureOutbound(outbound, payload), exceeded);
+    }
+    if (!exceeded.isEmpty())
+    {
+      System.err.println("Allocation budget exceeded: " + exceeded);
+      System.exit(1);
+    }
+  }
+
+  private static long measureInbound(AwsIoTHubInboundTransport inbound, byte[] payload)
+  {
+    for (int i = 0; i < WARMUP_MESSAGES; i++)
+    {
+      inbound.deliver("geoevent/trucks", payload, "budget", System.currentTimeMillis(), System.nanoTime());
+    }
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++)
+    {
+      long before = allocatedBytes();
+      for (int i = 0; i < ROUND_MESSAGES; i++)
+      {
+        inbound.deliver("geoevent/trucks", payload, "budget", System.currentTimeMillis(), System.nanoTime());
+      }
+      best = Math.min(best, (allocatedBytes() - before) / ROUND_MESSAGES);
+    }
+    return best;
+  }
+
+  private static long measureOutbound(AwsIoTHubOutboundTransport outbound, byte[] payload)
+  {
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    for (int i = 0; i < WARMUP_MESSAGES; i++)
+    {
+      publish(outbound, buffer);
+    }
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++)
+    {
+      long before = allocatedBytes();
+      for (int i = 0; i < ROUND_MESSAGES; i++)
+      {
+        publish(outbound, buffer);
+      }
+      best = Math.min(best, (allocatedBytes() - before) / ROUND_MESSAGES);
+    }
+    return best;
+  }
+
+  /**
+   * Builds the message and completes it the way the client callback does; it
+   * is never published, so it has no connection.
+   */
+  private static void publish(AwsIoTHubOutboundTransport outbound, ByteBuffer buffer)
+  {
+    AWSIoTPublishListener message = outbound.createMessage(buffer, "budget");
+    message.begin(null);
+    message.onSuccess();
+  }
+
+  private static void check(Properties budgets, String path, int payloadSize, long bytesPerMessage, List<String> exceeded)
+  {
+    String version = System.getProperty("java.specification.version");
+    version = version.startsWith("1.") ? version.substring(2) : version;
+    long budget = Long.parseLong(budgets.getProperty("java" + version + "." + path, budgets.getProperty(path, "0")));
+    boolean ok = budget <= 0 || bytesPerMessage <= budget;
+    System.out.printf("%-18s payload %6d B  allocated %7d B/msg  budget %7d B/msg  %s%n", path, payloadSize, bytesPerMessage, budget, ok ? "ok" : "EXCEEDED");
+    if (!ok)
+    {
+      exceeded.add(path);
+    }
+  }
+
+  private static long allocatedBytes()
+  {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Reads the record like an adapter would, without keeping it.
+   */
+  private static final class ReadingByteListener implements ByteListener
+  {
+    @Override
+    public void receive(ByteBuffer buffer, String channelId)
+    {
+      buffer.position(buffer.limit());
+    }
+  }
+}
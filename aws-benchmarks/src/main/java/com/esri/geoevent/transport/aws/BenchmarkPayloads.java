@@ -0,0 +1,93 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Payload corpora for the benchmarks, generated from a fixed seed so runs are
+ * repeatable and need no network or data files.
+ */
+public final class BenchmarkPayloads
+{
+  /**
+   * The kinds of messages the connectors typically carry.
+   */
+  public enum Corpus
+  {
+    /** a single vehicle position, about 140 bytes */
+    POSITION,
+    /** a device shadow state update, about 1.3 KB */
+    SHADOW,
+    /** a batch of 200 positions, about 28 KB */
+    BATCH
+  }
+
+  private static final int SEED = 20180301;
+
+  private BenchmarkPayloads()
+  {
+  }
+
+  /**
+   * @return the UTF-8 encoded payload of the corpus
+   */
+  public static byte[] get(Corpus corpus)
+  {
+    Random random = new Random(SEED);
+    switch (corpus)
+    {
+      case POSITION:
+        return position(random, 0).getBytes(StandardCharsets.UTF_8);
+      case SHADOW:
+        return shadow(random).getBytes(StandardCharsets.UTF_8);
+      default:
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < 200; i++)
+        {
+          batch.append(i > 0 ? "," : "").append(position(random, i));
+        }
+        return batch.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  private static String position(Random random, int index)
+  {
+    return String.format(Locale.ROOT, "{\"trackId\":\"truck-%04d\",\"time\":%d,\"x\":%.6f,\"y\":%.6f,\"speed\":%.1f,\"heading\":%d,\"status\":\"%s\",\"driver\":\"M\u00fcller\"}", index, 1520000000000L + random.nextInt(86400000), -117.2 + random.nextDouble(), 34.0 + random.nextDouble(), random.nextDouble() * 120, random.nextInt(360), random.nextBoolean() ? "moving" : "idle");
+  }
+
+  private static String shadow(Random random)
+  {
+    StringBuilder sensors = new StringBuilder();
+    for (int i = 0; i < 24; i++)
+    {
+      sensors.append(i > 0 ? "," : "").append(String.format(Locale.ROOT, "\"sensor%02d\":{\"value\":%.3f,\"unit\":\"\u00b0C\",\"ok\":%b}", i, random.nextGaussian() * 10 + 20, random.nextInt(10) > 0));
+    }
+    return "{\"state\":{\"reported\":{\"thingName\":\"pump-station-17\",\"firmware\":\"4.2.1\",\"location\":{\"x\":-117.19,\"y\":34.05}," + sensors + "}},\"version\":" + random.nextInt(100000) + "}";
+  }
+}
@@ -0,0 +1,85 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esri.geoevent.transport.aws.BenchmarkPayloads.Corpus;
+
+/**
+ * Inbound path from an MQTT payload to the byte listener: framing the payload
+ * into a buffer, and handing it over to a listener that reads it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundReceiveBenchmark
+{
+  @Param({"POSITION", "SHADOW", "BATCH"})
+  public Corpus  corpus;
+
+  private byte[] payload;
+
+  @Setup
+  public void setup()
+  {
+    payload = BenchmarkPayloads.get(corpus);
+  }
+
+  @Benchmark
+  public ByteBuffer frame()
+  {
+    return AwsIoTHubInboundTransport.frame(payload);
+  }
+
+  /**
+   * Framing plus the hand-over to a listener that decodes the record, as the
+   * text adapters do.
+   */
+  @Benchmark
+  public String frameAndHandOff()
+  {
+    ByteBuffer buffer = AwsIoTHubInboundTransport.frame(payload);
+    return StandardCharsets.UTF_8.decode(buffer).toString();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the private key PEM file of a connection: PKCS#1 keys go through
+ * the DER parser, PKCS#8 keys straight to the key factory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivateKeyReaderBenchmark
+{
+  public enum Format
+  {
+    PKCS1, PKCS8
+  }
+
+  @Param({"PKCS1", "PKCS8"})
+  public Format format;
+
+  @Param({"2048"})
+  public int     keySize;
+
+  private byte[] pem;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(keySize);
+    byte[] pkcs8 = generator.generateKeyPair().getPrivate().getEncoded();
+    if (format == Format.PKCS8)
+    {
+      pem = toPem("PRIVATE KEY", pkcs8);
+    }
+    else
+    {
+      // PrivateKeyInfo ::= SEQUENCE { version, algorithm, privateKey OCTET STRING }
+      int[] version = readHeader(pkcs8, readHeader(pkcs8, 0)[0]);
+      int[] algorithm = readHeader(pkcs8, version[0] + version[1]);
+      int[] privateKey = readHeader(pkcs8, algorithm[0] + algorithm[1]);
+      pem = toPem("RSA PRIVATE KEY", Arrays.copyOfRange(pkcs8, privateKey[0], privateKey[0] + privateKey[1]));
+    }
+  }
+
+  @Benchmark
+  public PrivateKey getPrivateKey() throws Exception
+  {
+    return AwsIoTHubPrivateKeyReader.getPrivateKey(new ByteArrayInputStream(pem), null);
+  }
+
+  /**
+   * @return the offset and the length of the contents of the DER element at
+   *         the offset
+   */
+  private static int[] readHeader(byte[] der, int offset)
+  {
+    int length = der[offset + 1] & 0xFF;
+    int contents = offset + 2;
+    if (length > 0x7F)
+    {
+      int lengthBytes = length & 0x7F;
+      length = 0;
+      for (int i = 0; i < lengthBytes; i++)
+      {
+        length = (length << 8) | (der[contents++] & 0xFF);
+      }
+    }
+    return new int[] {contents, length};
+  }
+
+  private static byte[] toPem(String type, byte[] der)
+  {
+    String base64 = Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der);
+    return ("-----BEGIN " + type + "-----\n" + base64 + "\n-----END " + type + "-----\n").getBytes(StandardCharsets.US_ASCII);
+  }
+}
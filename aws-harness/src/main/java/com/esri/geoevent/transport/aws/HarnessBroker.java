@@ -0,0 +1,64 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+
+/**
+ * An embedded Moquette MQTT broker listening for TLS connections on
+ * localhost, standing in for the AWS IoT endpoint.
+ */
+public class HarnessBroker
+{
+  private final Server server = new Server();
+
+  public void start(int port, HarnessCertificates certificates) throws IOException
+  {
+    Properties properties = new Properties();
+    properties.setProperty("host", "127.0.0.1");
+    properties.setProperty("port", "disabled");
+    properties.setProperty("ssl_port", Integer.toString(port));
+    properties.setProperty("jks_path", certificates.getServerKeyStore().getAbsolutePath());
+    properties.setProperty("key_store_password", HarnessCertificates.PASSWORD);
+    properties.setProperty("key_manager_password", HarnessCertificates.PASSWORD);
+    properties.setProperty("allow_anonymous", "true");
+    properties.setProperty("persistent_store", "");
+    // flush every message instead of batching writes for up to a second
+    properties.setProperty("immediate_buffer_flush", "true");
+    // AWS IoT accepts messages of up to 128 KB
+    properties.setProperty("netty.mqtt.message_size", Integer.toString(256 * 1024));
+    server.startServer(new MemoryConfig(properties));
+  }
+
+  public void stop()
+  {
+    server.stopServer();
+  }
+}
@@ -0,0 +1,65 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esri.ges.messaging.ByteListener;
+
+/**
+ * Stands in for the adapter behind the inbound transport: reads the send
+ * time stamped into each record by the load generator and records the end
+ * to end latency.
+ */
+public class HarnessByteListener implements ByteListener
+{
+  private final LongAdder          received = new LongAdder();
+  private final AwsIoTHubHistogram latency  = new AwsIoTHubHistogram();
+
+  @Override
+  public void receive(ByteBuffer buffer, String channelId)
+  {
+    long now = System.nanoTime() - LoadHarness.ORIGIN;
+    long sent = 0;
+    for (int i = 0; i < LoadHarness.TIMESTAMP_DIGITS && buffer.hasRemaining(); i++)
+    {
+      sent = sent * 10 + (buffer.get() - '0');
+    }
+    latency.record(now - sent);
+    received.increment();
+  }
+
+  public long getReceived()
+  {
+    return received.sum();
+  }
+
+  public AwsIoTHubHistogram getLatency()
+  {
+    return latency;
+  }
+}
@@ -0,0 +1,157 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Date;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Self-signed credentials for a harness run: a server key store for the
+ * broker, a trust store holding the server certificate for the clients, and
+ * the client certificate and private key as PEM files, the way the
+ * connectors are configured against AWS IoT.
+ */
+public class HarnessCertificates
+{
+  public static final String PASSWORD          = "harness";
+
+  private final File         serverKeyStore;
+  private final File         trustStore;
+  private final File         clientCertificate;
+  private final File         clientPrivateKey;
+
+  private HarnessCertificates(File directory)
+  {
+    serverKeyStore = new File(directory, "server.jks");
+    trustStore = new File(directory, "truststore.jks");
+    clientCertificate = new File(directory, "client.pem.crt");
+    clientPrivateKey = new File(directory, "client.pem.key");
+  }
+
+  /**
+   * Generates a new set of credentials into the directory.
+   */
+  public static HarnessCertificates generate(File directory) throws IOException, GeneralSecurityException
+  {
+    HarnessCertificates certificates = new HarnessCertificates(directory);
+
+    KeyPair serverKeys = newKeyPair();
+    X509Certificate serverCertificate = selfSign("localhost", serverKeys);
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, null);
+    keyStore.setKeyEntry("server", serverKeys.getPrivate(), PASSWORD.toCharArray(), new Certificate[] {serverCertificate});
+    store(keyStore, certificates.serverKeyStore);
+
+    KeyStore trusted = KeyStore.getInstance("JKS");
+    trusted.load(null, null);
+    trusted.setCertificateEntry("server", serverCertificate);
+    store(trusted, certificates.trustStore);
+
+    KeyPair clientKeys = newKeyPair();
+    writePem(certificates.clientCertificate, "CERTIFICATE", selfSign("aws-harness-client", clientKeys).getEncoded());
+    writePem(certificates.clientPrivateKey, "PRIVATE KEY", clientKeys.getPrivate().getEncoded());
+    return certificates;
+  }
+
+  public File getServerKeyStore()
+  {
+    return serverKeyStore;
+  }
+
+  public File getTrustStore()
+  {
+    return trustStore;
+  }
+
+  public File getClientCertificate()
+  {
+    return clientCertificate;
+  }
+
+  public File getClientPrivateKey()
+  {
+    return clientPrivateKey;
+  }
+
+  private static KeyPair newKeyPair() throws GeneralSecurityException
+  {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    return generator.generateKeyPair();
+  }
+
+  private static X509Certificate selfSign(String commonName, KeyPair keys) throws IOException, GeneralSecurityException
+  {
+    try
+    {
+      X500Name name = new X500Name("CN=" + commonName);
+      long now = System.currentTimeMillis();
+      JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(now), new Date(now - 60000L), new Date(now + 86400000L), name, keys.getPublic());
+      builder.addExtension(Extension.subjectAlternativeName, false, new GeneralNames(new GeneralName[] {new GeneralName(GeneralName.dNSName, "localhost"), new GeneralName(GeneralName.iPAddress, "127.0.0.1")}));
+      return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate())));
+    }
+    catch (org.bouncycastle.operator.OperatorCreationException e)
+    {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  private static void store(KeyStore keyStore, File file) throws IOException, GeneralSecurityException
+  {
+    try (OutputStream out = new FileOutputStream(file))
+    {
+      keyStore.store(out, PASSWORD.toCharArray());
+    }
+  }
+
+  private static void writePem(File file, String type, byte[] der) throws IOException
+  {
+    String base64 = Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der);
+    String pem = "-----BEGIN " + type + "-----\n" + base64 + "\n-----END " + type + "-----\n";
+    Files.write(file.toPath(), pem.getBytes(StandardCharsets.US_ASCII));
+  }
+}
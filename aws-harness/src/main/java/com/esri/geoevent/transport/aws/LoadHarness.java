@@ -0,0 +1,286 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.esri.ges.core.component.RunningState;
+import com.esri.ges.transport.TransportBase;
+
+/**
+ * Drives the outbound and inbound transports end to end through their real
+ * MQTT clients against an embedded TLS broker on localhost: the outbound
+ * transport publishes time stamped records at a given rate and size, the
+ * inbound transport delivers them to a stub byte listener.
+ * <p>
+ * Reports the sustained delivery rate, the publish to listener latency and
+ * the garbage collection during the measurement.
+ *
+ * <pre>
+ * java -jar aws-harness.jar [--size bytes] [--rate msgs/s] [--duration s] [--warmup s] [--window msgs] [--port port]
+ * </pre>
+ *
+ * A rate of 0 publishes as fast as the messages are delivered, with at most
+ * <code>window</code> messages on their way at any time.
+ */
+public class LoadHarness
+{
+  static final int            TIMESTAMP_DIGITS = 19;
+  // reference for the time stamps, so they are never negative
+  static final long           ORIGIN           = System.nanoTime();
+
+  private static final String TOPIC            = "geoevent/harness";
+
+  private final int           size;
+  private final int           rate;
+  private final int           duration;
+  private final int           warmup;
+  private final int           port;
+  private final int           window;
+
+  public LoadHarness(Map<String, String> options)
+  {
+    size = Math.max(TIMESTAMP_DIGITS + 1, Integer.parseInt(option(options, "size", "256")));
+    rate = Integer.parseInt(option(options, "rate", "0"));
+    duration = Integer.parseInt(option(options, "duration", "30"));
+    warmup = Integer.parseInt(option(options, "warmup", "5"));
+    port = Integer.parseInt(option(options, "port", "18883"));
+    window = Integer.parseInt(option(options, "window", "1000"));
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // the broker logs every message at INFO
+    System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+    new LoadHarness(parseOptions(args)).run();
+    // the client and broker threads are not all daemons
+    System.exit(0);
+  }
+
+  public void run() throws Exception
+  {
+    File directory = Files.createTempDirectory("aws-harness").toFile();
+    HarnessCertificates certificates = HarnessCertificates.generate(directory);
+    System.setProperty("javax.net.ssl.trustStore", certificates.getTrustStore().getAbsolutePath());
+    System.setProperty("javax.net.ssl.trustStorePassword", HarnessCertificates.PASSWORD);
+
+    HarnessBroker broker = new HarnessBroker();
+    broker.start(port, certificates);
+    AwsIoTHubInboundTransport inbound = null;
+    AwsIoTHubOutboundTransport outbound = null;
+    try
+    {
+      HarnessByteListener listener = new HarnessByteListener();
+      inbound = (AwsIoTHubInboundTransport) new AwsIoTHubInboundTransportService().createTransport();
+      configure(inbound, certificates, port, TOPIC);
+      inbound.setByteListener(listener);
+      inbound.start();
+      outbound = (AwsIoTHubOutboundTransport) new AwsIoTHubOutboundTransportService().createTransport();
+      configure(outbound, certificates, port, TOPIC);
+      outbound.start();
+      awaitStarted(inbound);
+      awaitStarted(outbound);
+
+      System.out.printf("warming up for %d s: %d byte messages at %s%n", warmup, size, rate > 0 ? rate + " msgs/s" : "full speed");
+      long warmupSent = publish(outbound, listener, warmup);
+      awaitDelivered(listener, warmupSent);
+      listener.getLatency().reset();
+
+      System.out.printf("measuring for %d s%n", duration);
+      long receivedBefore = listener.getReceived();
+      long[] gcBefore = gcStats();
+      long start = System.nanoTime();
+      long sent = publish(outbound, listener, duration);
+      long elapsed = System.nanoTime() - start;
+      long received = listener.getReceived() - receivedBefore;
+      long[] gcAfter = gcStats();
+      awaitDelivered(listener, receivedBefore + sent);
+      long delivered = listener.getReceived() - receivedBefore;
+
+      AwsIoTHubHistogram.Snapshot latency = listener.getLatency().getSnapshot();
+      double seconds = elapsed / 1e9;
+      System.out.printf("published      %d msgs, %.0f msgs/s%n", sent, sent / seconds);
+      System.out.printf("delivered      %d msgs, %.0f msgs/s sustained, %d lost%n", delivered, received / seconds, sent - delivered);
+      System.out.printf("latency (us)   p50 %.0f  p99 %.0f  p99.9 %.0f  max %.0f  mean %.0f%n", latency.getP50(), latency.getP99(), latency.getP999(), latency.getMax(), latency.getMean());
+      System.out.printf("gc             %d collections, %d ms (%.2f%% of the run)%n", gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], (gcAfter[1] - gcBefore[1]) / (seconds * 10));
+    }
+    finally
+    {
+      if (outbound != null)
+      {
+        outbound.stop();
+      }
+      if (inbound != null)
+      {
+        inbound.stop();
+      }
+      broker.stop();
+      for (File file : directory.listFiles())
+      {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  /**
+   * Publishes for the given time, paced to the rate.
+   *
+   * @return the number of messages published
+   */
+  private long publish(AwsIoTHubOutboundTransport outbound, HarnessByteListener listener, int seconds)
+  {
+    long count = 0;
+    long received = listener.getReceived();
+    long interval = (rate > 0) ? TimeUnit.SECONDS.toNanos(1) / rate : 0L;
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    byte[] padding = new byte[size - TIMESTAMP_DIGITS];
+    Arrays.fill(padding, (byte) 'x');
+    for (long now = start; now < end; now = System.nanoTime())
+    {
+      if (interval > 0)
+      {
+        long due = start + count * interval;
+        if (due > now)
+        {
+          LockSupport.parkNanos(due - now);
+          continue;
+        }
+      }
+      else if (count - (listener.getReceived() - received) >= window)
+      {
+        // the client runs out of message ids with too many publishes in flight
+        LockSupport.parkNanos(10000L);
+        continue;
+      }
+      // a new buffer per event, as handed over by the adapter
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      buffer.put(String.format("%019d", System.nanoTime() - ORIGIN).getBytes(StandardCharsets.US_ASCII));
+      buffer.put(padding);
+      buffer.flip();
+      outbound.receive(buffer, "");
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Points a transport at the embedded broker.
+   */
+  static void configure(TransportBase transport, HarnessCertificates certificates, int port, String topic)
+  {
+    transport.setProperty("iotservicetype", "IOT_TOPIC");
+    transport.setProperty("thingName", "harness");
+    transport.setProperty("endpoint", "127.0.0.1:" + port);
+    transport.setProperty("X509certificate", certificates.getClientCertificate().getAbsolutePath());
+    transport.setProperty("privateKey", certificates.getClientPrivateKey().getAbsolutePath());
+    transport.setProperty("topic", topic);
+    transport.setProperty("certificateCheckInterval", "0");
+  }
+
+  static void awaitStarted(TransportBase transport) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 30000L;
+    while (transport.getRunningState() != RunningState.STARTED)
+    {
+      if (System.currentTimeMillis() > deadline)
+      {
+        throw new IllegalStateException(transport.getClass().getSimpleName() + " did not start: " + transport.getRunningState());
+      }
+      Thread.sleep(50);
+    }
+  }
+
+  /**
+   * Waits up to 10 s for the messages still on their way.
+   */
+  private static void awaitDelivered(HarnessByteListener listener, long expected) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10000L;
+    long last = -1;
+    while (listener.getReceived() < expected && System.currentTimeMillis() < deadline)
+    {
+      // stop waiting once nothing arrives any more
+      long received = listener.getReceived();
+      if (received == last)
+      {
+        break;
+      }
+      last = received;
+      Thread.sleep(500);
+    }
+  }
+
+  /**
+   * @return the collection count and time (ms) summed over all collectors
+   */
+  static long[] gcStats()
+  {
+    long[] stats = new long[2];
+    List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    for (GarbageCollectorMXBean collector : collectors)
+    {
+      stats[0] += Math.max(0, collector.getCollectionCount());
+      stats[1] += Math.max(0, collector.getCollectionTime());
+    }
+    return stats;
+  }
+
+  /**
+   * Parses <code>--name value</code> pairs.
+   */
+  static Map<String, String> parseOptions(String[] args)
+  {
+    Map<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i + 1 < args.length; i += 2)
+    {
+      if (!args[i].startsWith("--"))
+      {
+        throw new IllegalArgumentException("Unexpected argument " + args[i]);
+      }
+      options.put(args[i].substring(2), args[i + 1]);
+    }
+    return options;
+  }
+
+  static String option(Map<String, String> options, String name, String defaultValue)
+  {
+    String value = options.get(name);
+    return (value != null) ? value : defaultValue;
+  }
+}
@@ -0,0 +1,276 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.esri.geoevent.transport.aws.AwsIoTHubCaptureReader.Message;
+import com.esri.ges.messaging.ByteListener;
+
+/**
+ * Replays a capture file written by the inbound transport (see its Capture
+ * File property) with the original inter-arrival times, scaled by a speed
+ * factor, to reproduce production load offline:
+ * <ul>
+ * <li><code>transport</code> feeds the messages straight into the receive
+ * path of an inbound transport on the replay thread, without MQTT, and
+ * reports the time spent per message;</li>
+ * <li><code>broker</code> publishes them to their original topics on the
+ * embedded TLS broker, where an inbound transport subscribed to all topics
+ * receives them through its real MQTT client.</li>
+ * </ul>
+ * Both report the rate reached and how far the replay fell behind the
+ * schedule of the capture, which shows where the pipeline saturates.
+ *
+ * <pre>
+ * java -cp aws-harness.jar com.esri.geoevent.transport.aws.ReplayHarness --file capture [--speed factor] [--target transport|broker] [--window msgs] [--port port]
+ * </pre>
+ *
+ * A speed of 1 replays in real time, 10 ten times faster and 0 as fast as
+ * possible.
+ */
+public class ReplayHarness
+{
+  private final File   file;
+  private final double speed;
+  private final String target;
+  private final int    window;
+  private final int    port;
+
+  public ReplayHarness(Map<String, String> options)
+  {
+    String fileName = LoadHarness.option(options, "file", null);
+    if (fileName == null)
+    {
+      throw new IllegalArgumentException("--file is required");
+    }
+    file = new File(fileName);
+    speed = Double.parseDouble(LoadHarness.option(options, "speed", "1"));
+    target = LoadHarness.option(options, "target", "transport");
+    // the embedded broker drops QoS 0 messages once too many queue up for the
+    // subscriber
+    window = Integer.parseInt(LoadHarness.option(options, "window", "200"));
+    port = Integer.parseInt(LoadHarness.option(options, "port", "18883"));
+    if (!"transport".equals(target) && !"broker".equals(target))
+    {
+      throw new IllegalArgumentException("Unknown target " + target);
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // the broker logs every message at INFO
+    System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+    new ReplayHarness(LoadHarness.parseOptions(args)).run();
+    // the client and broker threads are not all daemons
+    System.exit(0);
+  }
+
+  public void run() throws Exception
+  {
+    if ("broker".equals(target))
+    {
+      replayToBroker();
+    }
+    else
+    {
+      replayToTransport();
+    }
+  }
+
+  private void replayToTransport() throws Exception
+  {
+    CountingByteListener listener = new CountingByteListener();
+    AwsIoTHubInboundTransport inbound = (AwsIoTHubInboundTransport) new AwsIoTHubInboundTransportService().createTransport();
+    inbound.setByteListener(listener);
+
+    AwsIoTHubHistogram serviceTime = new AwsIoTHubHistogram();
+    Result result = replay(message ->
+    {
+      long arrivalNanos = System.nanoTime();
+      inbound.deliver(message.getTopic(), message.getPayload(), "replay", System.currentTimeMillis(), arrivalNanos);
+      serviceTime.record(System.nanoTime() - arrivalNanos);
+    });
+
+    result.print(listener.getReceived());
+    print("transport (us)", serviceTime.getSnapshot());
+  }
+
+  private void replayToBroker() throws Exception
+  {
+    File directory = Files.createTempDirectory("aws-harness").toFile();
+    HarnessCertificates certificates = HarnessCertificates.generate(directory);
+    System.setProperty("javax.net.ssl.trustStore", certificates.getTrustStore().getAbsolutePath());
+    System.setProperty("javax.net.ssl.trustStorePassword", HarnessCertificates.PASSWORD);
+
+    HarnessBroker broker = new HarnessBroker();
+    broker.start(port, certificates);
+    AwsIoTHubInboundTransport inbound = null;
+    AwsIoTHubConnection publisher = null;
+    try
+    {
+      CountingByteListener listener = new CountingByteListener();
+      inbound = (AwsIoTHubInboundTransport) new AwsIoTHubInboundTransportService().createTransport();
+      LoadHarness.configure(inbound, certificates, port, "#");
+      inbound.setByteListener(listener);
+      inbound.start();
+      LoadHarness.awaitStarted(inbound);
+
+      publisher = new AwsIoTHubConnection("127.0.0.1:" + port, "replay-publisher", certificates.getClientCertificate().getAbsolutePath(), certificates.getClientPrivateKey().getAbsolutePath(), null);
+      publisher.connect();
+      AwsIoTHubConnection client = publisher;
+      LongAdder published = new LongAdder();
+      Result result = replay(message ->
+      {
+        // the client runs out of message ids with too many publishes in flight
+        while (published.sum() - listener.getReceived() >= window)
+        {
+          LockSupport.parkNanos(10000L);
+        }
+        client.getClient().publish(message.getTopic(), AWSIotQos.QOS0, message.getPayload());
+        published.increment();
+      });
+
+      awaitDelivered(listener, result.count);
+      result.print(listener.getReceived());
+    }
+    finally
+    {
+      if (publisher != null)
+      {
+        publisher.close();
+      }
+      if (inbound != null)
+      {
+        inbound.stop();
+      }
+      broker.stop();
+      for (File file : directory.listFiles())
+      {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  /**
+   * Sends the messages of the capture on the schedule scaled by the speed.
+   */
+  private Result replay(Sink sink) throws Exception
+  {
+    Result result = new Result();
+    try (AwsIoTHubCaptureReader reader = new AwsIoTHubCaptureReader(file))
+    {
+      System.out.printf("replaying %s (captured %tF %<tT) at %s to the %s%n", file, reader.getStartMillis(), speed > 0 ? speed + "x" : "full speed", target);
+      long start = System.nanoTime();
+      for (Message message = reader.next(); message != null; message = reader.next())
+      {
+        if (speed > 0)
+        {
+          long due = start + (long) (message.getOffsetNanos() / speed);
+          long now = System.nanoTime();
+          if (due > now)
+          {
+            LockSupport.parkNanos(due - now);
+            now = System.nanoTime();
+          }
+          result.lag.record(now - due);
+        }
+        sink.send(message);
+        result.count++;
+        result.bytes += message.getPayload().length;
+      }
+      result.elapsed = System.nanoTime() - start;
+    }
+    return result;
+  }
+
+  /**
+   * Waits until nothing arrived for half a second.
+   */
+  private static void awaitDelivered(CountingByteListener listener, long expected) throws InterruptedException
+  {
+    long last = -1;
+    while (listener.getReceived() < expected && listener.getReceived() != last)
+    {
+      last = listener.getReceived();
+      Thread.sleep(500);
+    }
+  }
+
+  private static void print(String label, AwsIoTHubHistogram.Snapshot snapshot)
+  {
+    System.out.printf("%-14s p50 %.0f  p99 %.0f  p99.9 %.0f  max %.0f  mean %.0f%n", label, snapshot.getP50(), snapshot.getP99(), snapshot.getP999(), snapshot.getMax(), snapshot.getMean());
+  }
+
+  private interface Sink
+  {
+    void send(Message message) throws Exception;
+  }
+
+  private class Result
+  {
+    private final AwsIoTHubHistogram lag     = new AwsIoTHubHistogram();
+    private long                     count   = 0L;
+    private long                     bytes   = 0L;
+    private long                     elapsed = 0L;
+
+    private void print(long delivered)
+    {
+      double seconds = elapsed / 1e9;
+      System.out.printf("replayed       %d msgs, %d bytes in %.1f s, %.0f msgs/s%n", count, bytes, seconds, count / seconds);
+      System.out.printf("delivered      %d msgs, %d lost%n", delivered, count - delivered);
+      if (speed > 0)
+      {
+        // a replay that cannot keep up falls further and further behind
+        ReplayHarness.print("behind (us)", lag.getSnapshot());
+      }
+    }
+  }
+
+  private static class CountingByteListener implements ByteListener
+  {
+    private final LongAdder received = new LongAdder();
+
+    @Override
+    public void receive(ByteBuffer buffer, String channelId)
+    {
+      received.increment();
+    }
+
+    public long getReceived()
+    {
+      return received.sum();
+    }
+  }
+}
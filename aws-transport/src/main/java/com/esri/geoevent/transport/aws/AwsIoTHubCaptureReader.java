@@ -0,0 +1,198 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back the messages of a capture file written by
+ * {@link AwsIoTHubCaptureWriter}, in the order they arrived. A last record
+ * cut short (e.g. by a crash before the final flush) ends the capture.
+ */
+public class AwsIoTHubCaptureReader implements Closeable
+{
+  // far beyond the 128 KB message limit of AWS IoT
+  private static final int      MAX_PAYLOAD = 64 * 1024 * 1024;
+
+  private final DataInputStream in;
+  private final long            startMillis;
+  private final List<String>    topics      = new ArrayList<String>();
+  private long                  offsetNanos = 0L;
+
+  public AwsIoTHubCaptureReader(File file) throws IOException
+  {
+    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try
+    {
+      byte[] magic = new byte[AwsIoTHubCaptureWriter.MAGIC.length];
+      in.readFully(magic);
+      int version = in.readUnsignedByte();
+      if (!Arrays.equals(magic, AwsIoTHubCaptureWriter.MAGIC) || version != AwsIoTHubCaptureWriter.VERSION)
+      {
+        throw new IOException("Not a capture file (version " + AwsIoTHubCaptureWriter.VERSION + "): " + file);
+      }
+      startMillis = in.readLong();
+    }
+    catch (IOException e)
+    {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the wall clock time the capture started, in epoch milliseconds
+   */
+  public long getStartMillis()
+  {
+    return startMillis;
+  }
+
+  /**
+   * @return the next message, or <code>null</code> at the end of the capture
+   */
+  public Message next() throws IOException
+  {
+    try
+    {
+      long delta = readVarLong(true);
+      if (delta < 0)
+      {
+        return null;
+      }
+      offsetNanos += delta;
+      int reference = (int) readVarLong(false);
+      String topic;
+      if (reference == 0)
+      {
+        byte[] topicBytes = new byte[(int) readVarLong(false)];
+        in.readFully(topicBytes);
+        topic = new String(topicBytes, StandardCharsets.UTF_8);
+        topics.add(topic);
+      }
+      else if (reference <= topics.size())
+      {
+        topic = topics.get(reference - 1);
+      }
+      else
+      {
+        throw new IOException("Corrupt capture: unknown topic reference " + reference);
+      }
+      long length = readVarLong(false);
+      if (length > MAX_PAYLOAD)
+      {
+        throw new IOException("Corrupt capture: payload of " + length + " bytes");
+      }
+      byte[] payload = new byte[(int) length];
+      in.readFully(payload);
+      return new Message(offsetNanos, topic, payload);
+    }
+    catch (EOFException e)
+    {
+      // cut short while being written
+      return null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    in.close();
+  }
+
+  /**
+   * @param atRecord
+   *          the end of the file is expected here
+   * @return the value, or -1 at an expected end of the file
+   */
+  private long readVarLong(boolean atRecord) throws IOException
+  {
+    long value = 0L;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      int b = in.read();
+      if (b < 0)
+      {
+        if (atRecord && shift == 0)
+        {
+          return -1L;
+        }
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+      {
+        return value;
+      }
+    }
+    throw new IOException("Corrupt capture: varint too long");
+  }
+
+  /**
+   * A captured message.
+   */
+  public static class Message
+  {
+    private final long   offsetNanos;
+    private final String topic;
+    private final byte[] payload;
+
+    public Message(long offsetNanos, String topic, byte[] payload)
+    {
+      this.offsetNanos = offsetNanos;
+      this.topic = topic;
+      this.payload = payload;
+    }
+
+    /**
+     * @return the arrival time relative to the start of the capture
+     */
+    public long getOffsetNanos()
+    {
+      return offsetNanos;
+    }
+
+    public String getTopic()
+    {
+      return topic;
+    }
+
+    public byte[] getPayload()
+    {
+      return payload;
+    }
+  }
+}
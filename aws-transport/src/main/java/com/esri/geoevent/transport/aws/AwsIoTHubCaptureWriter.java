@@ -0,0 +1,195 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * Captures the inbound message stream (arrival time, topic and payload) into
+ * a compact binary file that {@link AwsIoTHubCaptureReader} reads back for
+ * replays. The file starts with the magic bytes <code>AWSC</code>, a version
+ * byte and the wall clock time the capture started (a long, in epoch
+ * milliseconds), followed by one record per message:
+ *
+ * <pre>
+ * varlong  nanoseconds since the previous message (or the capture start)
+ * varint   topic reference: 0 for a new topic, which follows as a varint
+ *          length and UTF-8 bytes, otherwise the index of an earlier topic + 1
+ * varint   payload length
+ * bytes    payload
+ * </pre>
+ *
+ * Varints are unsigned LEB128. Writes are buffered and flushed every second;
+ * the capture stops by itself when the file reaches its size limit or a
+ * write fails.
+ */
+public class AwsIoTHubCaptureWriter
+{
+  // logger
+  private static final BundleLogger  LOGGER      = BundleLoggerFactory.getLogger(AwsIoTHubCaptureWriter.class);
+
+  static final byte[]                MAGIC       = { 'A', 'W', 'S', 'C' };
+  static final int                   VERSION     = 1;
+
+  private static final int           BUFFER_SIZE = 65536;
+
+  private final File                 file;
+  private final long                 maxBytes;
+  private final DataOutputStream     out;
+  private final Map<String, Integer> topics      = new HashMap<String, Integer>();
+  private final ScheduledFuture<?>   flusher;
+  private long                       lastNanos;
+  private boolean                    open        = true;
+
+  /**
+   * Creates the capture file, replacing an existing one.
+   *
+   * @param maxBytes
+   *          the capture stops once the file is this large
+   */
+  public AwsIoTHubCaptureWriter(File file, long maxBytes) throws IOException
+  {
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    this.lastNanos = System.nanoTime();
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+    out.writeLong(System.currentTimeMillis());
+    flusher = AwsIoTHubScheduler.getExecutor().scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+    LOGGER.info("CAPTURE_STARTED", file);
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  /**
+   * Appends a message.
+   *
+   * @param arrivalNanos
+   *          {@link System#nanoTime()} when the message arrived
+   */
+  public synchronized void record(long arrivalNanos, String topic, byte[] payload)
+  {
+    if (!open)
+    {
+      return;
+    }
+    try
+    {
+      // messages of concurrent client threads may be recorded out of order
+      writeVarLong(Math.max(0L, arrivalNanos - lastNanos));
+      lastNanos = Math.max(lastNanos, arrivalNanos);
+      Integer index = topics.get(topic);
+      if (index != null)
+      {
+        writeVarLong(index + 1);
+      }
+      else
+      {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(0);
+        writeVarLong(topicBytes.length);
+        out.write(topicBytes);
+        topics.put(topic, topics.size());
+      }
+      int length = (payload != null) ? payload.length : 0;
+      writeVarLong(length);
+      if (length > 0)
+      {
+        out.write(payload);
+      }
+      if (out.size() >= maxBytes)
+      {
+        LOGGER.info("CAPTURE_LIMIT_REACHED", file, out.size());
+        close();
+      }
+    }
+    catch (IOException e)
+    {
+      LOGGER.error("CAPTURE_ERROR", e, file);
+      close();
+    }
+  }
+
+  public synchronized void flush()
+  {
+    if (open)
+    {
+      try
+      {
+        out.flush();
+      }
+      catch (IOException e)
+      {
+        LOGGER.error("CAPTURE_ERROR", e, file);
+        close();
+      }
+    }
+  }
+
+  public synchronized void close()
+  {
+    if (!open)
+    {
+      return;
+    }
+    open = false;
+    flusher.cancel(false);
+    try
+    {
+      out.close();
+    }
+    catch (IOException e)
+    {
+      LOGGER.error("CAPTURE_ERROR", e, file);
+    }
+  }
+
+  private void writeVarLong(long value) throws IOException
+  {
+    while ((value & ~0x7FL) != 0)
+    {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+}
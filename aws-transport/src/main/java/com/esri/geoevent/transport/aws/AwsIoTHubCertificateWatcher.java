@@ -0,0 +1,118 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * Polls the certificate and private key PEM files of a connection and invokes
+ * a rotation callback when either of them is modified on disk.
+ */
+public class AwsIoTHubCertificateWatcher implements Runnable
+{
+  // logger
+  private static final BundleLogger LOGGER              = BundleLoggerFactory.getLogger(AwsIoTHubCertificateWatcher.class);
+
+  private final File                certificateFile;
+  private final File                privateKeyFile;
+  private final BooleanSupplier     rotation;
+  private long                      certificateModified;
+  private long                      privateKeyModified;
+  private ScheduledFuture<?>        future              = null;
+
+  /**
+   * @param x509Certificate
+   *          certificate PEM file
+   * @param privateKey
+   *          private key PEM file
+   * @param rotation
+   *          invoked when the files changed; returns <code>false</code> when
+   *          the new credentials could not be applied so the change is
+   *          retried on the next check
+   */
+  public AwsIoTHubCertificateWatcher(String x509Certificate, String privateKey, BooleanSupplier rotation)
+  {
+    this.certificateFile = new File(x509Certificate);
+    this.privateKeyFile = new File(privateKey);
+    this.rotation = rotation;
+    this.certificateModified = certificateFile.lastModified();
+    this.privateKeyModified = privateKeyFile.lastModified();
+  }
+
+  public synchronized void start(long intervalSeconds)
+  {
+    if (future == null && intervalSeconds > 0)
+    {
+      future = AwsIoTHubScheduler.getExecutor().scheduleWithFixedDelay(this, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  public synchronized void stop()
+  {
+    if (future != null)
+    {
+      future.cancel(false);
+      future = null;
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    long newCertificateModified = certificateFile.lastModified();
+    long newPrivateKeyModified = privateKeyFile.lastModified();
+    if (newCertificateModified == certificateModified && newPrivateKeyModified == privateKeyModified)
+    {
+      return;
+    }
+
+    // a missing file is usually a copy still in progress; wait for it
+    if (newCertificateModified == 0L || newPrivateKeyModified == 0L)
+    {
+      return;
+    }
+
+    try
+    {
+      LOGGER.info("CREDENTIALS_CHANGED", certificateFile, privateKeyFile);
+      if (rotation.getAsBoolean())
+      {
+        certificateModified = newCertificateModified;
+        privateKeyModified = newPrivateKeyModified;
+      }
+    }
+    catch (Exception e)
+    {
+      // never let an exception cancel the periodic check
+      LOGGER.error("CREDENTIAL_ROTATION_ERROR", e);
+    }
+  }
+}
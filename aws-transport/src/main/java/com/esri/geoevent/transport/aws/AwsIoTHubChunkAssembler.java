@@ -0,0 +1,237 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Reassembles the payloads split by {@link AwsIoTHubChunks}. The payload of
+ * a message is allocated at its full length with its first chunk and the
+ * chunks are copied into place as they arrive, in any order; repeated chunks
+ * are ignored, also for a while after their message completed.
+ * <p>
+ * The cache is bounded: a message not completed within the timeout, or the
+ * oldest messages when the buffered payloads would exceed the memory cap, are
+ * dropped, and a message larger than the cap is never buffered.
+ */
+public class AwsIoTHubChunkAssembler
+{
+  // the most completed messages remembered to ignore their repeated chunks
+  private static final int               MAX_COMPLETED = 1024;
+
+  private final long                     timeoutMillis;
+  private final long                     maxBytes;
+  private final IntConsumer              dropListener;
+  // in the order of their first chunk, so the oldest messages come first
+  private final Map<MessageKey, Message> messages      = new LinkedHashMap<MessageKey, Message>();
+  private long                           bufferedBytes = 0L;
+  // when each recently completed message completed, oldest first
+  private final Map<MessageKey, Long>    completed     = new LinkedHashMap<MessageKey, Long>();
+
+  /**
+   * @param maxBytes
+   *          the most payload bytes buffered for incomplete messages
+   * @param dropListener
+   *          called with the number of chunks dropped
+   */
+  public AwsIoTHubChunkAssembler(long timeoutMillis, long maxBytes, IntConsumer dropListener)
+  {
+    this.timeoutMillis = timeoutMillis;
+    this.maxBytes = maxBytes;
+    this.dropListener = dropListener;
+  }
+
+  /**
+   * Adds a chunk to its message.
+   *
+   * @return the payload of the message once its last chunk arrived, else
+   *         <code>null</code>
+   */
+  public synchronized byte[] offer(String topic, byte[] chunk, long nowMillis)
+  {
+    expire(nowMillis);
+    int index = AwsIoTHubChunks.getIndex(chunk);
+    int count = AwsIoTHubChunks.getCount(chunk);
+    int length = AwsIoTHubChunks.getLength(chunk);
+    int offset = AwsIoTHubChunks.getOffset(chunk);
+    int sliceLength = chunk.length - AwsIoTHubChunks.HEADER_SIZE;
+    if (index >= count || length < 0 || offset < 0 || offset > length - sliceLength || length > maxBytes)
+    {
+      dropListener.accept(1);
+      return null;
+    }
+
+    MessageKey key = new MessageKey(topic, AwsIoTHubChunks.getId(chunk));
+    Message message = messages.get(key);
+    if (message == null && completed.containsKey(key))
+    {
+      return null;
+    }
+    if (message == null)
+    {
+      // make room by dropping the oldest messages
+      Iterator<Message> oldest = messages.values().iterator();
+      while (bufferedBytes + length > maxBytes && oldest.hasNext())
+      {
+        drop(oldest.next());
+        oldest.remove();
+      }
+      message = new Message(length, count, nowMillis);
+      messages.put(key, message);
+      bufferedBytes += length;
+    }
+    else if (message.payload.length != length || message.count != count)
+    {
+      dropListener.accept(1);
+      return null;
+    }
+
+    if (!message.received.get(index))
+    {
+      System.arraycopy(chunk, AwsIoTHubChunks.HEADER_SIZE, message.payload, offset, sliceLength);
+      message.received.set(index);
+      message.receivedCount++;
+    }
+    if (message.receivedCount < count)
+    {
+      return null;
+    }
+    messages.remove(key);
+    bufferedBytes -= length;
+    completed.put(key, nowMillis);
+    if (completed.size() > MAX_COMPLETED)
+    {
+      completed.remove(completed.keySet().iterator().next());
+    }
+    return message.payload;
+  }
+
+  /**
+   * @return the number of incomplete messages
+   */
+  public synchronized int getPending()
+  {
+    return messages.size();
+  }
+
+  /**
+   * @return the payload bytes buffered for incomplete messages
+   */
+  public synchronized long getBufferedBytes()
+  {
+    return bufferedBytes;
+  }
+
+  /**
+   * Drops all the incomplete messages.
+   */
+  public synchronized void clear()
+  {
+    for (Message message : messages.values())
+    {
+      drop(message);
+    }
+    messages.clear();
+    completed.clear();
+  }
+
+  private void expire(long nowMillis)
+  {
+    Iterator<Long> oldestCompleted = completed.values().iterator();
+    while (oldestCompleted.hasNext() && nowMillis - oldestCompleted.next() >= timeoutMillis)
+    {
+      oldestCompleted.remove();
+    }
+    Iterator<Message> oldest = messages.values().iterator();
+    while (oldest.hasNext())
+    {
+      Message message = oldest.next();
+      if (nowMillis - message.startMillis < timeoutMillis)
+      {
+        return;
+      }
+      drop(message);
+      oldest.remove();
+    }
+  }
+
+  private void drop(Message message)
+  {
+    bufferedBytes -= message.payload.length;
+    dropListener.accept(message.receivedCount);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "timeout=" + timeoutMillis + "ms memory=" + maxBytes + " bytes";
+  }
+
+  private static final class MessageKey
+  {
+    private final String topic;
+    private final long   id;
+
+    private MessageKey(String topic, long id)
+    {
+      this.topic = topic;
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+      return (other instanceof MessageKey) && id == ((MessageKey) other).id && topic.equals(((MessageKey) other).topic);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return topic.hashCode() * 31 + Long.hashCode(id);
+    }
+  }
+
+  private static final class Message
+  {
+    private final byte[] payload;
+    private final int    count;
+    private final long   startMillis;
+    private final BitSet received;
+    private int          receivedCount = 0;
+
+    private Message(int length, int count, long startMillis)
+    {
+      this.payload = new byte[length];
+      this.count = count;
+      this.startMillis = startMillis;
+      this.received = new BitSet(count);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+/**
+ * The chunk format for payloads larger than the broker accepts. Each chunk
+ * is an MQTT message of its own: a 25 byte header followed by a slice of the
+ * payload. The header starts with a zero byte, which no JSON or text payload
+ * starts with, and holds (big-endian):
+ *
+ * <pre>
+ * 0  magic    4 bytes  0x00 'G' 'E' 'C'
+ * 4  version  1 byte   1
+ * 5  id       8 bytes  the same for all chunks of a payload
+ * 13 index    2 bytes  0 to count - 1
+ * 15 count    2 bytes
+ * 17 length   4 bytes  of the whole payload
+ * 21 offset   4 bytes  of the slice in the payload
+ * </pre>
+ *
+ * The chunks may arrive in any order; the offsets place them.
+ */
+public final class AwsIoTHubChunks
+{
+  public static final int     HEADER_SIZE = 25;
+  public static final int     MAX_CHUNKS  = 0xFFFF;
+
+  private static final byte[] MAGIC       = { 0x00, 'G', 'E', 'C' };
+  private static final byte   VERSION     = 1;
+
+  private AwsIoTHubChunks()
+  {
+  }
+
+  /**
+   * @return whether the payload is a chunk, by its magic and version
+   */
+  public static boolean isChunk(byte[] payload)
+  {
+    if (payload == null || payload.length < HEADER_SIZE)
+    {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++)
+    {
+      if (payload[i] != MAGIC[i])
+      {
+        return false;
+      }
+    }
+    return payload[4] == VERSION;
+  }
+
+  /**
+   * Splits a payload into chunks of at most the given size, headers
+   * included.
+   *
+   * @return the chunks, or <code>null</code> if the payload would need more
+   *         than {@link #MAX_CHUNKS} of them
+   */
+  public static byte[][] split(byte[] payload, int maxSize, long id)
+  {
+    int sliceSize = maxSize - HEADER_SIZE;
+    int count = (payload.length + sliceSize - 1) / sliceSize;
+    if (count > MAX_CHUNKS)
+    {
+      return null;
+    }
+    byte[][] chunks = new byte[count][];
+    for (int index = 0; index < count; index++)
+    {
+      int offset = index * sliceSize;
+      int length = Math.min(sliceSize, payload.length - offset);
+      byte[] chunk = new byte[HEADER_SIZE + length];
+      System.arraycopy(MAGIC, 0, chunk, 0, MAGIC.length);
+      chunk[4] = VERSION;
+      putLong(chunk, 5, id);
+      putShort(chunk, 13, index);
+      putShort(chunk, 15, count);
+      putInt(chunk, 17, payload.length);
+      putInt(chunk, 21, offset);
+      System.arraycopy(payload, offset, chunk, HEADER_SIZE, length);
+      chunks[index] = chunk;
+    }
+    return chunks;
+  }
+
+  static long getId(byte[] chunk)
+  {
+    long id = 0L;
+    for (int i = 5; i < 13; i++)
+    {
+      id = (id << 8) | (chunk[i] & 0xFF);
+    }
+    return id;
+  }
+
+  static int getIndex(byte[] chunk)
+  {
+    return getShort(chunk, 13);
+  }
+
+  static int getCount(byte[] chunk)
+  {
+    return getShort(chunk, 15);
+  }
+
+  static int getLength(byte[] chunk)
+  {
+    return getInt(chunk, 17);
+  }
+
+  static int getOffset(byte[] chunk)
+  {
+    return getInt(chunk, 21);
+  }
+
+  private static void putLong(byte[] bytes, int at, long value)
+  {
+    for (int i = 7; i >= 0; i--)
+    {
+      bytes[at + 7 - i] = (byte) (value >>> (i * 8));
+    }
+  }
+
+  private static void putInt(byte[] bytes, int at, int value)
+  {
+    bytes[at] = (byte) (value >>> 24);
+    bytes[at + 1] = (byte) (value >>> 16);
+    bytes[at + 2] = (byte) (value >>> 8);
+    bytes[at + 3] = (byte) value;
+  }
+
+  private static void putShort(byte[] bytes, int at, int value)
+  {
+    bytes[at] = (byte) (value >>> 8);
+    bytes[at + 1] = (byte) value;
+  }
+
+  private static int getInt(byte[] bytes, int at)
+  {
+    return ((bytes[at] & 0xFF) << 24) | ((bytes[at + 1] & 0xFF) << 16) | ((bytes[at + 2] & 0xFF) << 8) | (bytes[at + 3] & 0xFF);
+  }
+
+  private static int getShort(byte[] bytes, int at)
+  {
+    return ((bytes[at] & 0xFF) << 8) | (bytes[at + 1] & 0xFF);
+  }
+}
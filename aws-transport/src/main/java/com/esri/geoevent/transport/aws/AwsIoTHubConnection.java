@@ -0,0 +1,309 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+package com.esri.geoevent.transport.aws;
+
+import java.security.KeyStore;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+import com.amazonaws.services.iot.client.util.AwsIotTlsSocketFactory;
+import com.esri.geoevent.transport.aws.AwsIoTHubUtil.KeyStorePasswordPair;
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+import com.esri.ges.util.Converter;
+
+/**
+ * A single MQTT connection to the AWS IoT Hub together with the device and
+ * topic subscription bound to it. Transports hold one active connection at a
+ * time; keeping the pieces together lets a replacement connection be fully
+ * established before the old one is closed.
+ */
+public class AwsIoTHubConnection
+{
+  // logger
+  private static final BundleLogger           LOGGER                 = BundleLoggerFactory.getLogger(AwsIoTHubConnection.class);
+
+  private final String                        clientId;
+  private final Consumer<AwsIoTHubConnection> connectionLostListener;
+  private final AWSIotMqttClient              awsClient;
+  private volatile AwsIoTHubDevice            geIoTDevice            = null;
+  private AWSIotTopic                         iotTopic               = null;
+  private volatile boolean                    closing                = false;
+  private volatile AwsIoTHubRateGovernor      rateGovernor           = null;
+
+  /**
+   * @param connectionLostListener
+   *          called when the client gave up reconnecting on its own after the
+   *          connection was lost; not called when the connection is closed
+   */
+  public AwsIoTHubConnection(String clientEndpoint, String clientId, String x509Certificate, String privateKey, Consumer<AwsIoTHubConnection> connectionLostListener) throws AWSIotException
+  {
+    // get KeyStore credentials
+    KeyStorePasswordPair pair = AwsIoTHubUtil.getKeyStorePasswordPair(x509Certificate, privateKey, null);
+    if (pair == null)
+    {
+      throw new AWSIotException(LOGGER.translate("FAILED_TO_LOAD_CREDENTIALS", x509Certificate, privateKey));
+    }
+    this.clientId = clientId;
+    this.connectionLostListener = connectionLostListener;
+
+    // the endpoint may name a port other than the default 8883, e.g. host:443
+    String host = clientEndpoint;
+    int port = -1;
+    int colon = clientEndpoint.lastIndexOf(':');
+    if (colon > 0)
+    {
+      port = Converter.convertToInteger(clientEndpoint.substring(colon + 1), -1);
+      if (port > 0)
+      {
+        host = clientEndpoint.substring(0, colon);
+      }
+    }
+    if (port > 0)
+    {
+      // the port is part of the server URI built by the client constructor
+      this.awsClient = new AwsIoTHubMqttClient(host, clientId, new AwsIotTlsSocketFactory(pair.keyStore, pair.keyPassword), port);
+    }
+    else
+    {
+      this.awsClient = new AwsIoTHubMqttClient(host, clientId, pair.keyStore, pair.keyPassword);
+    }
+  }
+
+  public String getClientId()
+  {
+    return clientId;
+  }
+
+  public AWSIotMqttClient getClient()
+  {
+    return awsClient;
+  }
+
+  /**
+   * @return the publish limits of the connection, or <code>null</code> if it
+   *         is not governed
+   */
+  public AwsIoTHubRateGovernor getRateGovernor()
+  {
+    return rateGovernor;
+  }
+
+  public void setRateGovernor(AwsIoTHubRateGovernor rateGovernor)
+  {
+    this.rateGovernor = rateGovernor;
+  }
+
+  public AwsIoTHubDevice getDevice()
+  {
+    return geIoTDevice;
+  }
+
+  public void attach(String thingName) throws AWSIotException
+  {
+    AwsIoTHubDevice device = new AwsIoTHubDevice(thingName);
+    LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Attaching device:" + device.getThingName());
+    awsClient.attach(device);
+    geIoTDevice = device;
+  }
+
+  public void detach() throws AWSIotException
+  {
+    AwsIoTHubDevice device = geIoTDevice;
+    if (device != null)
+    {
+      geIoTDevice = null;
+      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Detaching device:" + device.getThingName());
+      awsClient.detach(device);
+      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Detached device:" + device.getThingName());
+      // geIoTDevice.delete(5000);
+    }
+  }
+
+  /**
+   * Replaces the attached device on the live client.
+   *
+   * @param thingName
+   *          the thing to attach, or <code>null</code> to only detach
+   */
+  public void reattach(String thingName) throws AWSIotException
+  {
+    detach();
+    if (thingName != null)
+    {
+      attach(thingName);
+    }
+  }
+
+  public void connect() throws AWSIotException
+  {
+    LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Connecting");
+    awsClient.connect();
+    LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Connected");
+  }
+
+  public void subscribe(AWSIotTopic topic) throws AWSIotException
+  {
+    awsClient.subscribe(topic, true);
+    iotTopic = topic;
+    LOGGER.info("Subscribed to topic:" + topic.getTopic());
+  }
+
+  public void unsubscribe() throws AWSIotException
+  {
+    AWSIotTopic oldTopic = iotTopic;
+    if (oldTopic != null)
+    {
+      iotTopic = null;
+      awsClient.unsubscribe(oldTopic);
+      LOGGER.info("Unsubscribed from topic:" + oldTopic.getTopic());
+    }
+  }
+
+  /**
+   * Moves the subscription to a new topic on the live client. The new topic is
+   * subscribed before the old one is unsubscribed so no message is missed.
+   */
+  public void resubscribe(AWSIotTopic topic) throws AWSIotException
+  {
+    AWSIotTopic oldTopic = iotTopic;
+    subscribe(topic);
+    if (oldTopic != null && !oldTopic.getTopic().equals(topic.getTopic()))
+    {
+      awsClient.unsubscribe(oldTopic);
+      LOGGER.info("Unsubscribed from topic:" + oldTopic.getTopic());
+    }
+  }
+
+  /**
+   * Detaches the device and disconnects the client. Errors are logged and
+   * swallowed so that closing a connection never fails the caller.
+   */
+  public void close()
+  {
+    if (closing)
+    {
+      return;
+    }
+    closing = true;
+    try
+    {
+      detach();
+      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Disconnecting");
+      awsClient.disconnect(5000);
+      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Disconnected");
+    }
+    catch (Exception e)
+    {
+      LOGGER.error("CLEANUP_ERROR", e);
+    }
+    finally
+    {
+      geIoTDevice = null;
+      iotTopic = null;
+    }
+  }
+
+  /**
+   * Waits for the client callbacks of the messages that arrived before the
+   * connection was closed; the client runs them on its own threads, along
+   * with its delayed timers, which are not waited for.
+   *
+   * @return <code>false</code> if they did not all finish within the timeout
+   */
+  public boolean awaitCallbacks(long timeoutMillis) throws InterruptedException
+  {
+    ScheduledExecutorService executionService = awsClient.getExecutionService();
+    if (!(executionService instanceof ThreadPoolExecutor))
+    {
+      return executionService == null || executionService.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) executionService;
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    // twice in a row, a callback may be between the queue and its thread
+    int idleChecks = 0;
+    while (idleChecks < 2)
+    {
+      if (System.currentTimeMillis() >= deadline)
+      {
+        return false;
+      }
+      idleChecks = isIdle(executor) ? idleChecks + 1 : 0;
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private static boolean isIdle(ThreadPoolExecutor executor)
+  {
+    if (executor.getActiveCount() > 0)
+    {
+      return false;
+    }
+    for (Runnable task : executor.getQueue())
+    {
+      if (!(task instanceof Delayed) || ((Delayed) task).getDelay(TimeUnit.MILLISECONDS) <= 0)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * AwsIoTHubMqttClient class extends {@link AWSIotMqttClient} to report a
+   * connection that was closed without being asked to.
+   */
+  private final class AwsIoTHubMqttClient extends AWSIotMqttClient
+  {
+    public AwsIoTHubMqttClient(String clientEndpoint, String clientId, KeyStore keyStore, String keyPassword)
+    {
+      super(clientEndpoint, clientId, keyStore, keyPassword);
+    }
+
+    public AwsIoTHubMqttClient(String clientEndpoint, String clientId, SSLSocketFactory socketFactory, int port)
+    {
+      super(clientEndpoint, clientId, socketFactory, port);
+    }
+
+    @Override
+    public void onConnectionClosed()
+    {
+      super.onConnectionClosed();
+      if (!closing && connectionLostListener != null)
+      {
+        connectionLostListener.accept(AwsIoTHubConnection.this);
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.Arrays;
+
+/**
+ * A consistent hash ring over the connections of a pool. Every slot of the
+ * pool owns many points on the ring and a key belongs to the slot of the
+ * first point at or after its hash, so a key keeps its connection for as
+ * long as the connection lives. Only the keys of a lost connection move,
+ * spread over the others, and they move back when it is restored.
+ * <p>
+ * The ring is immutable; a pool rebuilds it whenever a connection comes or
+ * goes.
+ */
+public class AwsIoTHubConnectionRing
+{
+  // points per slot; more spread the keys more evenly
+  private static final int            POINTS_PER_SLOT = 128;
+
+  private final long[]                points;
+  private final AwsIoTHubConnection[] owners;
+  private final AwsIoTHubConnection[] slots;
+  private final int                   size;
+
+  /**
+   * @param slots
+   *          the connections by slot; <code>null</code> for a slot whose
+   *          connection is down
+   */
+  public AwsIoTHubConnectionRing(AwsIoTHubConnection[] slots)
+  {
+    this.slots = slots.clone();
+    int live = 0;
+    for (AwsIoTHubConnection slot : slots)
+    {
+      live += (slot != null) ? 1 : 0;
+    }
+    size = live;
+    long[] unsorted = new long[live * POINTS_PER_SLOT];
+    int n = 0;
+    for (int s = 0; s < slots.length; s++)
+    {
+      for (int p = 0; slots[s] != null && p < POINTS_PER_SLOT; p++)
+      {
+        // a point depends on its slot only, so a restored connection gets
+        // back the keys it had
+        unsorted[n++] = mix(((long) s << 32) | p);
+      }
+    }
+    points = unsorted.clone();
+    Arrays.sort(points);
+    owners = new AwsIoTHubConnection[points.length];
+    for (int s = 0, i = 0; s < slots.length; s++)
+    {
+      for (int p = 0; slots[s] != null && p < POINTS_PER_SLOT; p++, i++)
+      {
+        owners[Arrays.binarySearch(points, unsorted[i])] = slots[s];
+      }
+    }
+  }
+
+  /**
+   * @return the number of live connections on the ring
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * @param keyHash
+   *          {@link AwsIoTHubMessageKey#hash64(String, byte[])} of the event
+   * @return the connection of the key, or <code>null</code> if none is live
+   */
+  public AwsIoTHubConnection lookup(long keyHash)
+  {
+    if (points.length == 0)
+    {
+      return null;
+    }
+    int i = Arrays.binarySearch(points, mix(keyHash));
+    if (i < 0)
+    {
+      i = -i - 1;
+    }
+    return owners[(i < points.length) ? i : 0];
+  }
+
+  public boolean contains(AwsIoTHubConnection connection)
+  {
+    for (AwsIoTHubConnection slot : slots)
+    {
+      if (slot != null && slot == connection)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The SplitMix64 finalizer; spreads similar hashes over the ring.
+   */
+  private static long mix(long value)
+  {
+    long z = value + 0x9e3779b97f4a7c15L;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,397 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * Runs message deliveries on a fixed number of worker lanes, each a single
+ * thread with a bounded queue. A message always goes to the lane of its key
+ * hash, so the messages of one device are delivered in order while
+ * different devices are delivered in parallel.
+ * <p>
+ * A full lane blocks the dispatching client thread rather than dropping or
+ * reordering messages, which pushes back on the MQTT client.
+ * <p>
+ * Conflating lanes keep only the newest undelivered message of each key: a
+ * newer message replaces the queued one in place, keeping its position, so
+ * a lane holds at most one message per active device however far the
+ * delivery falls behind.
+ */
+public class AwsIoTHubDispatcher
+{
+  // logger
+  private static final BundleLogger LOGGER             = BundleLoggerFactory.getLogger(AwsIoTHubDispatcher.class);
+
+  private static final int          LANE_CAPACITY      = 1024;
+  // keys a conflating lane holds before it blocks like a full lane
+  private static final int          CONFLATION_KEYS    = 65536;
+
+  private final Lane[]              lanes;
+  private final Runnable            conflationListener;
+  private volatile boolean          closed             = false;
+
+  /**
+   * Starts the lanes.
+   *
+   * @param name
+   *          part of the thread names
+   * @param conflationListener
+   *          called for every queued delivery replaced by a newer one, or
+   *          <code>null</code> for lanes that do not conflate
+   */
+  public AwsIoTHubDispatcher(String name, int laneCount, Runnable conflationListener)
+  {
+    this.conflationListener = conflationListener;
+    lanes = new Lane[laneCount];
+    for (int i = 0; i < laneCount; i++)
+    {
+      LaneQueue queue = (conflationListener != null) ? new ConflatingLaneQueue(CONFLATION_KEYS, conflationListener) : new BlockingLaneQueue();
+      lanes[i] = new Lane(queue, "aws-iot-lane-" + name + "-" + i, "lane-" + i);
+      lanes[i].thread.start();
+    }
+  }
+
+  public int getLaneCount()
+  {
+    return lanes.length;
+  }
+
+  public boolean isConflating()
+  {
+    return conflationListener != null;
+  }
+
+  /**
+   * @return the lane a key hash is delivered on
+   */
+  public int laneOf(int keyHash)
+  {
+    // spread the high bits, String hashes of similar keys differ in few bits
+    int hash = keyHash ^ (keyHash >>> 16);
+    return (hash & Integer.MAX_VALUE) % lanes.length;
+  }
+
+  /**
+   * @return the byte listener channel of a lane
+   */
+  public String getChannelId(int lane)
+  {
+    return lanes[lane].channelId;
+  }
+
+  /**
+   * Queues a delivery on a lane, waiting while the lane is full.
+   *
+   * @param lane
+   *          see {@link #laneOf(int)}
+   * @param key
+   *          the key of the message; only used by conflating lanes
+   * @return <code>false</code> if the dispatcher was closed; the task is not
+   *         run then
+   */
+  public boolean dispatch(int lane, Object key, Runnable task)
+  {
+    LaneQueue queue = lanes[lane].queue;
+    try
+    {
+      while (!closed)
+      {
+        if (queue.offer(key, task, 100L))
+        {
+          // closed while offering: the task was either taken by close() or
+          // is still queued where nobody will run it
+          return !closed || !queue.remove(key, task);
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of deliveries queued on all the lanes
+   */
+  public int getQueued()
+  {
+    int queued = 0;
+    for (Lane lane : lanes)
+    {
+      queued += lane.queue.size();
+    }
+    return queued;
+  }
+
+  /**
+   * Stops the lanes within 100 ms; the delivery running on each lane is
+   * finished first.
+   *
+   * @return the deliveries still queued, which are not run
+   */
+  public List<Runnable> close()
+  {
+    closed = true;
+    List<Runnable> pending = new ArrayList<Runnable>();
+    for (Lane lane : lanes)
+    {
+      lane.queue.drainTo(pending);
+    }
+    return pending;
+  }
+
+  private final class Lane implements Runnable
+  {
+    private final LaneQueue queue;
+    private final Thread    thread;
+    private final String    channelId;
+
+    private Lane(LaneQueue queue, String name, String channelId)
+    {
+      this.queue = queue;
+      this.channelId = channelId;
+      thread = new Thread(this, name);
+      thread.setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      while (!closed)
+      {
+        try
+        {
+          Runnable task = queue.poll(100L);
+          if (task != null)
+          {
+            task.run();
+          }
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+        catch (RuntimeException e)
+        {
+          // never let a failed delivery stop the lane
+          LOGGER.error("UNEXPECTED_ERROR", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * The queue of a lane; timeouts are in milliseconds.
+   */
+  interface LaneQueue
+  {
+    boolean offer(Object key, Runnable task, long timeout) throws InterruptedException;
+
+    Runnable poll(long timeout) throws InterruptedException;
+
+    boolean remove(Object key, Runnable task);
+
+    int size();
+
+    void drainTo(List<Runnable> tasks);
+  }
+
+  private static final class BlockingLaneQueue implements LaneQueue
+  {
+    private final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(LANE_CAPACITY);
+
+    @Override
+    public boolean offer(Object key, Runnable task, long timeout) throws InterruptedException
+    {
+      return queue.offer(task, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Runnable poll(long timeout) throws InterruptedException
+    {
+      return queue.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean remove(Object key, Runnable task)
+    {
+      return queue.remove(task);
+    }
+
+    @Override
+    public int size()
+    {
+      return queue.size();
+    }
+
+    @Override
+    public void drainTo(List<Runnable> tasks)
+    {
+      queue.drainTo(tasks);
+    }
+  }
+
+  /**
+   * Latest value per key, in the order the keys were first queued.
+   */
+  static final class ConflatingLaneQueue implements LaneQueue
+  {
+    private final int                   maxKeys;
+    private final Runnable              conflationListener;
+    private final ReentrantLock         lock     = new ReentrantLock();
+    private final Condition             notEmpty = lock.newCondition();
+    private final Condition             notFull  = lock.newCondition();
+    // replacing the value of a key keeps its position
+    private final Map<Object, Runnable> pending  = new LinkedHashMap<Object, Runnable>();
+
+    /**
+     * @param maxKeys
+     *          keys held before an offer of a new key blocks
+     * @param conflationListener
+     *          called for every task replaced by a newer one
+     */
+    ConflatingLaneQueue(int maxKeys, Runnable conflationListener)
+    {
+      this.maxKeys = maxKeys;
+      this.conflationListener = conflationListener;
+    }
+
+    @Override
+    public boolean offer(Object key, Runnable task, long timeout) throws InterruptedException
+    {
+      Runnable replaced;
+      lock.lockInterruptibly();
+      try
+      {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (pending.size() >= maxKeys && !pending.containsKey(key))
+        {
+          if (nanos <= 0L)
+          {
+            return false;
+          }
+          nanos = notFull.awaitNanos(nanos);
+        }
+        replaced = pending.put(key, task);
+        notEmpty.signal();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+      if (replaced != null)
+      {
+        conflationListener.run();
+      }
+      return true;
+    }
+
+    @Override
+    public Runnable poll(long timeout) throws InterruptedException
+    {
+      lock.lockInterruptibly();
+      try
+      {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (pending.isEmpty())
+        {
+          if (nanos <= 0L)
+          {
+            return null;
+          }
+          nanos = notEmpty.awaitNanos(nanos);
+        }
+        Iterator<Runnable> oldest = pending.values().iterator();
+        Runnable task = oldest.next();
+        oldest.remove();
+        notFull.signal();
+        return task;
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean remove(Object key, Runnable task)
+    {
+      lock.lock();
+      try
+      {
+        return pending.remove(key, task);
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int size()
+    {
+      lock.lock();
+      try
+      {
+        return pending.size();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void drainTo(List<Runnable> tasks)
+    {
+      lock.lock();
+      try
+      {
+        tasks.addAll(pending.values());
+        pending.clear();
+        notFull.signalAll();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,501 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops the messages of a track (a device, see {@link AwsIoTHubMessageKey})
+ * that add nothing: a message passes only if it is the first of its track,
+ * or if since the last message passed the minimum interval has elapsed, the
+ * track moved the minimum distance or one of the watched fields changed.
+ * Messages without the coordinate fields always pass while a minimum
+ * distance is set. The fields are read without parsing the payload.
+ * <p>
+ * Instead of watched fields, the whole payload can be compared, leaving out
+ * the ignored fields and, while a minimum distance is set, the coordinates.
+ * <p>
+ * The last passed state of each track is kept in a table of primitive arrays
+ * (open addressing on the 64-bit key hash), bounded by the maximum number of
+ * tracks; tracks not seen for the idle timeout are evicted periodically. The
+ * messages of new tracks pass unfiltered while the table is full.
+ */
+public class AwsIoTHubDownsampler
+{
+  private static final double           EARTH_RADIUS   = 6371008.8;
+  private static final long             EMPTY          = 0L;
+  // the passed time of a track whose next message passes
+  private static final long             INVALID        = Long.MIN_VALUE;
+
+  private final long                    interval;
+  private final double                  distance;
+  private final AwsIoTHubFieldLocator   xLocator;
+  private final AwsIoTHubFieldLocator   yLocator;
+  private final AwsIoTHubFieldLocator[] changeLocators;
+  // comparing the whole payload when not null
+  private final AwsIoTHubFieldLocator[] ignoreLocators;
+  // the value ranges of the ignored fields of the payload being hashed
+  private final int[]                   ignoreStarts;
+  private final int[]                   ignoreEnds;
+  private final int                     maxTracks;
+  private final long                    idleTimeout;
+  private final ScheduledFuture<?>      evictor;
+
+  // the table: key hash, time and position of the last message passed, hash
+  // of its watched fields and the time the track was last seen
+  private long[]                        keys;
+  private long[]                        passedTimes;
+  private double[]                      xs;
+  private double[]                      ys;
+  private long[]                        fieldHashes;
+  private long[]                        seenTimes;
+  private int                           size           = 0;
+
+  /**
+   * @param interval
+   *          minimum time between the messages of a track, in milliseconds;
+   *          0 for none
+   * @param distance
+   *          minimum distance moved, in meters; 0 for none
+   * @param coordinateFields
+   *          the longitude and latitude fields (WGS84 degrees), comma
+   *          separated; needed for a minimum distance
+   * @param changeFields
+   *          comma separated fields whose change always passes a message
+   * @param maxTracks
+   *          the most tracks kept at a time
+   * @param idleTimeout
+   *          evict the tracks not seen for this long, in milliseconds
+   */
+  public AwsIoTHubDownsampler(long interval, double distance, String coordinateFields, String changeFields, int maxTracks, long idleTimeout)
+  {
+    this(interval, distance, coordinateFields, changeFields, null, maxTracks, idleTimeout);
+  }
+
+  /**
+   * @param changeFields
+   *          comma separated fields whose change always passes a message; if
+   *          empty, any change of the payload outside the ignored fields
+   *          does
+   * @param ignoreFields
+   *          comma separated fields left out when the whole payload is
+   *          compared, e.g. a timestamp; <code>null</code> to never compare
+   *          the whole payload
+   */
+  public AwsIoTHubDownsampler(long interval, double distance, String coordinateFields, String changeFields, String ignoreFields, int maxTracks, long idleTimeout)
+  {
+    this.interval = Math.max(0L, interval);
+    List<String> coordinates = split(coordinateFields);
+    this.distance = (coordinates.size() == 2) ? Math.max(0.0, distance) : 0.0;
+    this.xLocator = (coordinates.size() == 2) ? new AwsIoTHubFieldLocator(coordinates.get(0)) : null;
+    this.yLocator = (coordinates.size() == 2) ? new AwsIoTHubFieldLocator(coordinates.get(1)) : null;
+    this.changeLocators = toLocators(split(changeFields));
+    if (changeLocators.length == 0 && ignoreFields != null)
+    {
+      List<String> ignored = split(ignoreFields);
+      // moves below the minimum distance are no change either
+      if (this.distance > 0.0)
+      {
+        ignored.addAll(coordinates);
+      }
+      ignoreLocators = toLocators(ignored);
+    }
+    else
+    {
+      ignoreLocators = null;
+    }
+    ignoreStarts = new int[(ignoreLocators != null) ? ignoreLocators.length : 0];
+    ignoreEnds = new int[ignoreStarts.length];
+    this.maxTracks = Math.max(1, maxTracks);
+    this.idleTimeout = Math.max(1000L, idleTimeout);
+    allocate(tableSize(this.maxTracks));
+    long sweep = Math.min(this.idleTimeout, TimeUnit.MINUTES.toMillis(1));
+    evictor = AwsIoTHubScheduler.getExecutor().scheduleWithFixedDelay(() -> evictIdle(System.currentTimeMillis()), sweep, sweep, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return <code>true</code> if any of the criteria is set
+   */
+  public static boolean isEnabled(long interval, double distance, String changeFields)
+  {
+    return interval > 0L || distance > 0.0 || !split(changeFields).isEmpty();
+  }
+
+  /**
+   * Decides whether a message passes and, if it does, remembers it as the
+   * last message of its track.
+   *
+   * @param trackHash
+   *          {@link AwsIoTHubMessageKey#hash64(String, byte[])} of the
+   *          message
+   */
+  public synchronized boolean admit(long trackHash, byte[] payload, long nowMillis)
+  {
+    long key = (trackHash == EMPTY) ? 1L : trackHash;
+    double x = Double.NaN;
+    double y = Double.NaN;
+    if (distance > 0.0)
+    {
+      x = readNumber(payload, xLocator);
+      y = readNumber(payload, yLocator);
+    }
+    long fieldHash = hashFields(payload);
+
+    int slot = find(key);
+    if (keys[slot] == EMPTY)
+    {
+      if (size >= maxTracks)
+      {
+        // no room to remember the track
+        return true;
+      }
+      keys[slot] = key;
+      size++;
+      remember(slot, nowMillis, x, y, fieldHash);
+      return true;
+    }
+
+    seenTimes[slot] = nowMillis;
+    boolean pass = passedTimes[slot] == INVALID || (interval > 0L && nowMillis - passedTimes[slot] >= interval) || fieldHash != fieldHashes[slot];
+    if (!pass && distance > 0.0)
+    {
+      pass = Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(xs[slot]) || Double.isNaN(ys[slot]) || distance(xs[slot], ys[slot], x, y) >= distance;
+    }
+    if (pass)
+    {
+      remember(slot, nowMillis, x, y, fieldHash);
+    }
+    return pass;
+  }
+
+  /**
+   * Lets the next message of a track pass, when the last message passed was
+   * not delivered after all.
+   */
+  public synchronized void invalidate(long trackHash)
+  {
+    int slot = find((trackHash == EMPTY) ? 1L : trackHash);
+    if (keys[slot] != EMPTY)
+    {
+      passedTimes[slot] = INVALID;
+    }
+  }
+
+  /**
+   * @return the number of tracks in the table
+   */
+  public synchronized int getTracks()
+  {
+    return size;
+  }
+
+  /**
+   * Removes the tracks not seen for the idle timeout.
+   *
+   * @return the number of tracks evicted
+   */
+  public synchronized int evictIdle(long nowMillis)
+  {
+    int evicted = 0;
+    for (int i = 0; i < keys.length; i++)
+    {
+      if (keys[i] != EMPTY && nowMillis - seenTimes[i] >= idleTimeout)
+      {
+        evicted++;
+      }
+    }
+    if (evicted == 0)
+    {
+      return 0;
+    }
+
+    // rebuilding is simpler than deleting from a linear probing table and
+    // happens at most once a minute
+    long[] oldKeys = keys;
+    long[] oldPassedTimes = passedTimes;
+    double[] oldXs = xs;
+    double[] oldYs = ys;
+    long[] oldFieldHashes = fieldHashes;
+    long[] oldSeenTimes = seenTimes;
+    allocate(oldKeys.length);
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++)
+    {
+      if (oldKeys[i] != EMPTY && nowMillis - oldSeenTimes[i] < idleTimeout)
+      {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        passedTimes[slot] = oldPassedTimes[i];
+        xs[slot] = oldXs[i];
+        ys[slot] = oldYs[i];
+        fieldHashes[slot] = oldFieldHashes[i];
+        seenTimes[slot] = oldSeenTimes[i];
+        size++;
+      }
+    }
+    return evicted;
+  }
+
+  public void close()
+  {
+    evictor.cancel(false);
+  }
+
+  private void remember(int slot, long nowMillis, double x, double y, long fieldHash)
+  {
+    passedTimes[slot] = nowMillis;
+    seenTimes[slot] = nowMillis;
+    xs[slot] = x;
+    ys[slot] = y;
+    fieldHashes[slot] = fieldHash;
+  }
+
+  /**
+   * @return the slot of the key, or the empty slot where it belongs
+   */
+  private int find(long key)
+  {
+    int mask = keys.length - 1;
+    int slot = (int) (key ^ (key >>> 32)) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key)
+    {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void allocate(int tableSize)
+  {
+    keys = new long[tableSize];
+    passedTimes = new long[tableSize];
+    xs = new double[tableSize];
+    ys = new double[tableSize];
+    fieldHashes = new long[tableSize];
+    seenTimes = new long[tableSize];
+  }
+
+  /**
+   * @return a power of two keeping the table at most 3/4 full
+   */
+  private static int tableSize(int maxTracks)
+  {
+    int minimum = (int) Math.min(1 << 30, maxTracks * 4L / 3L + 1L);
+    return Integer.highestOneBit(minimum - 1) << 1;
+  }
+
+  private long hashFields(byte[] payload)
+  {
+    if (ignoreLocators != null)
+    {
+      return hashPayload(payload);
+    }
+    long hash = 0L;
+    for (AwsIoTHubFieldLocator locator : changeLocators)
+    {
+      int at = locator.locate(payload);
+      int end = (at >= 0) ? AwsIoTHubFieldLocator.valueEnd(payload, at) : 0;
+      for (int i = Math.max(0, at); i < end; i++)
+      {
+        hash = 31L * hash + payload[i];
+      }
+      // a field that is missing differs from an empty one
+      hash = 31L * hash + ((at >= 0) ? end - at : -1);
+    }
+    return hash;
+  }
+
+  /**
+   * FNV-1a over the payload, skipping the values of the ignored fields.
+   */
+  private long hashPayload(byte[] payload)
+  {
+    if (payload == null)
+    {
+      return 0L;
+    }
+    for (int k = 0; k < ignoreLocators.length; k++)
+    {
+      int at = ignoreLocators[k].locate(payload);
+      ignoreStarts[k] = at;
+      ignoreEnds[k] = (at >= 0) ? AwsIoTHubFieldLocator.valueEnd(payload, at) : -1;
+    }
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < payload.length; i++)
+    {
+      for (int k = 0; k < ignoreStarts.length; k++)
+      {
+        if (i == ignoreStarts[k] && ignoreEnds[k] > i)
+        {
+          i = ignoreEnds[k];
+          k = -1;
+        }
+      }
+      if (i < payload.length)
+      {
+        hash = (hash ^ payload[i]) * 0x100000001b3L;
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Reads a plain JSON number without allocating; a number with an exponent
+   * falls back to {@link Double#parseDouble(String)}.
+   *
+   * @return the number, or NaN if the field is missing or not a number
+   */
+  static double readNumber(byte[] payload, AwsIoTHubFieldLocator locator)
+  {
+    return readNumber(payload, locator.locate(payload));
+  }
+
+  /**
+   * @param at
+   *          the index of the first byte of the value, or -1 for a missing
+   *          field
+   */
+  static double readNumber(byte[] payload, int at)
+  {
+    if (at < 0)
+    {
+      return Double.NaN;
+    }
+    int i = at;
+    boolean negative = (payload[i] == '-');
+    if (negative)
+    {
+      i++;
+    }
+    long mantissa = 0L;
+    int digits = 0;
+    int scale = 0;
+    boolean fraction = false;
+    for (; i < payload.length; i++)
+    {
+      byte b = payload[i];
+      if (b >= '0' && b <= '9')
+      {
+        // further digits are beyond the precision of a double
+        if (digits < 18)
+        {
+          mantissa = mantissa * 10 + (b - '0');
+          digits++;
+          scale += fraction ? 1 : 0;
+        }
+        else if (!fraction)
+        {
+          scale--;
+        }
+      }
+      else if (b == '.' && !fraction)
+      {
+        fraction = true;
+      }
+      else if (b == 'e' || b == 'E')
+      {
+        try
+        {
+          return Double.parseDouble(new String(payload, at, AwsIoTHubFieldLocator.valueEnd(payload, at) - at, StandardCharsets.US_ASCII));
+        }
+        catch (NumberFormatException e)
+        {
+          return Double.NaN;
+        }
+      }
+      else
+      {
+        break;
+      }
+    }
+    if (digits == 0)
+    {
+      return Double.NaN;
+    }
+    double value = (scale >= 0) ? mantissa / Math.pow(10, scale) : mantissa * Math.pow(10, -scale);
+    return negative ? -value : value;
+  }
+
+  /**
+   * @return the distance in meters between two WGS84 positions, by the
+   *         equirectangular approximation, which is plenty for the short
+   *         distances compared here
+   */
+  static double distance(double lon1, double lat1, double lon2, double lat2)
+  {
+    double meanLatitude = Math.toRadians((lat1 + lat2) / 2.0);
+    double dx = Math.toRadians(lon2 - lon1) * Math.cos(meanLatitude);
+    double dy = Math.toRadians(lat2 - lat1);
+    return EARTH_RADIUS * Math.sqrt(dx * dx + dy * dy);
+  }
+
+  private static AwsIoTHubFieldLocator[] toLocators(List<String> fields)
+  {
+    AwsIoTHubFieldLocator[] locators = new AwsIoTHubFieldLocator[fields.size()];
+    for (int i = 0; i < locators.length; i++)
+    {
+      locators[i] = new AwsIoTHubFieldLocator(fields.get(i));
+    }
+    return locators;
+  }
+
+  static List<String> split(String fields)
+  {
+    List<String> names = new ArrayList<String>();
+    if (fields != null)
+    {
+      for (String name : fields.split(","))
+      {
+        if (!name.trim().isEmpty())
+        {
+          names.add(name.trim());
+        }
+      }
+    }
+    return names;
+  }
+
+  @Override
+  public String toString()
+  {
+    String changes = (ignoreLocators != null) ? "payload without " + names(ignoreLocators) : names(changeLocators);
+    return "interval=" + interval + "ms distance=" + distance + "m changes=" + changes + " tracks=" + maxTracks;
+  }
+
+  private static String names(AwsIoTHubFieldLocator[] locators)
+  {
+    String[] names = new String[locators.length];
+    for (int i = 0; i < names.length; i++)
+    {
+      names[i] = locators[i].getFieldName();
+    }
+    return Arrays.toString(names);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the value of a field in a JSON payload without parsing it: the raw
+ * bytes are scanned for the first <code>"field":</code> key, at any nesting
+ * level. The same text inside a string value is not followed by a colon and
+ * is skipped.
+ */
+public class AwsIoTHubFieldLocator
+{
+  private final String fieldName;
+  private final byte[] key;
+
+  public AwsIoTHubFieldLocator(String fieldName)
+  {
+    this.fieldName = fieldName;
+    this.key = ('"' + fieldName + '"').getBytes(StandardCharsets.UTF_8);
+  }
+
+  public String getFieldName()
+  {
+    return fieldName;
+  }
+
+  /**
+   * @return the index of the first byte of the value, or -1 if the payload
+   *         has no such field
+   */
+  public int locate(byte[] payload)
+  {
+    if (payload == null)
+    {
+      return -1;
+    }
+    int from = 0;
+    while (true)
+    {
+      int at = indexOf(payload, from);
+      if (at < 0)
+      {
+        return -1;
+      }
+      int i = skipWhitespace(payload, at + key.length);
+      if (i < payload.length && payload[i] == ':')
+      {
+        i = skipWhitespace(payload, i + 1);
+        return (i < payload.length) ? i : -1;
+      }
+      from = at + 1;
+    }
+  }
+
+  private int indexOf(byte[] payload, int from)
+  {
+    byte first = key[0];
+    int last = payload.length - key.length;
+    for (int i = from; i <= last; i++)
+    {
+      if (payload[i] != first)
+      {
+        continue;
+      }
+      int k = 1;
+      while (k < key.length && payload[i + k] == key[k])
+      {
+        k++;
+      }
+      if (k == key.length)
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int skipWhitespace(byte[] payload, int i)
+  {
+    while (i < payload.length && (payload[i] == ' ' || payload[i] == '\t' || payload[i] == '\r' || payload[i] == '\n'))
+    {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * @return the index after the value starting at the given index: after the
+   *         closing quote of a string, otherwise at the next delimiter
+   */
+  static int valueEnd(byte[] payload, int at)
+  {
+    int i = at;
+    if (payload[i] == '"')
+    {
+      for (i++; i < payload.length && payload[i] != '"'; i++)
+      {
+        if (payload[i] == '\\')
+        {
+          i++;
+        }
+      }
+      return Math.min(i + 1, payload.length);
+    }
+    while (i < payload.length && payload[i] != ',' && payload[i] != '}' && payload[i] != ']' && payload[i] > ' ')
+    {
+      i++;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * Drops the messages located outside the polygons of a GeoJSON file before
+ * anything else is done with them. The coordinates are read without parsing
+ * the payload; messages without them pass.
+ * <p>
+ * The file is polled for changes and reloaded in the background; a file that
+ * fails to load keeps the polygons loaded last, and until a file loaded at
+ * all every message passes. A file without polygons turns the filter off
+ * rather than dropping every message.
+ */
+public class AwsIoTHubGeofence implements Runnable
+{
+  // logger
+  private static final BundleLogger       LOGGER        = BundleLoggerFactory.getLogger(AwsIoTHubGeofence.class);
+
+  private static final long               POLL_INTERVAL = 10L;
+
+  private final File                      file;
+  private final AwsIoTHubFieldLocator     xLocator;
+  private final AwsIoTHubFieldLocator     yLocator;
+  private final ScheduledFuture<?>        poller;
+  private volatile AwsIoTHubGeofenceIndex index         = null;
+  private long                            lastModified  = 0L;
+
+  /**
+   * Loads the file and starts polling it.
+   *
+   * @param coordinateFields
+   *          the longitude and latitude fields, comma separated, in the
+   *          coordinate system of the file
+   */
+  public AwsIoTHubGeofence(File file, String coordinateFields)
+  {
+    this.file = file;
+    List<String> coordinates = AwsIoTHubDownsampler.split(coordinateFields);
+    this.xLocator = (coordinates.size() == 2) ? new AwsIoTHubFieldLocator(coordinates.get(0)) : null;
+    this.yLocator = (coordinates.size() == 2) ? new AwsIoTHubFieldLocator(coordinates.get(1)) : null;
+    run();
+    poller = AwsIoTHubScheduler.getExecutor().scheduleWithFixedDelay(this, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return <code>false</code> if the message is located outside all the
+   *         polygons
+   */
+  public boolean admit(byte[] payload)
+  {
+    AwsIoTHubGeofenceIndex currentIndex = index;
+    if (currentIndex == null || xLocator == null || payload == null)
+    {
+      return true;
+    }
+    double x = AwsIoTHubDownsampler.readNumber(payload, xLocator);
+    double y = AwsIoTHubDownsampler.readNumber(payload, yLocator);
+    return Double.isNaN(x) || Double.isNaN(y) || currentIndex.contains(x, y);
+  }
+
+  public void close()
+  {
+    poller.cancel(false);
+  }
+
+  /**
+   * Reloads the file if it was modified.
+   */
+  @Override
+  public synchronized void run()
+  {
+    long modified = file.lastModified();
+    // a missing file is usually a copy still in progress; wait for it
+    if (modified == 0L || modified == lastModified)
+    {
+      return;
+    }
+    try
+    {
+      AwsIoTHubGeofenceIndex newIndex = AwsIoTHubGeofenceIndex.load(file);
+      if (newIndex.getPolygonCount() == 0)
+      {
+        index = null;
+        LOGGER.warn("GEOFENCE_EMPTY", file);
+      }
+      else
+      {
+        index = newIndex;
+        LOGGER.info("GEOFENCE_LOADED", newIndex.getPolygonCount(), file);
+      }
+    }
+    catch (Exception e)
+    {
+      // never let an exception cancel the periodic check
+      LOGGER.error("GEOFENCE_LOAD_ERROR", e, file);
+    }
+    // a broken file is not retried until it is modified again
+    lastModified = modified;
+  }
+
+  @Override
+  public String toString()
+  {
+    return file + ((xLocator != null) ? " " + xLocator.getFieldName() + "," + yLocator.getFieldName() : " without coordinate fields");
+  }
+}
@@ -0,0 +1,279 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * An immutable set of polygons with a uniform grid over their extent: each
+ * grid cell lists the polygons whose bounding box overlaps it, so a point is
+ * only tested against the few polygons near it.
+ */
+public class AwsIoTHubGeofenceIndex
+{
+  // cells per polygon, so the candidates per cell stay few
+  private static final int    CELLS_PER_POLYGON = 16;
+  private static final int    MAX_GRID_SIZE     = 1024;
+
+  private final List<Polygon> polygons;
+  private final double        minX;
+  private final double        minY;
+  private final double        maxX;
+  private final double        maxY;
+  private final int           gridSize;
+  private final double        cellWidth;
+  private final double        cellHeight;
+  private final int[][]       cells;
+
+  public AwsIoTHubGeofenceIndex(List<Polygon> polygons)
+  {
+    this.polygons = polygons;
+    double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+    for (Polygon polygon : polygons)
+    {
+      x0 = Math.min(x0, polygon.minX);
+      y0 = Math.min(y0, polygon.minY);
+      x1 = Math.max(x1, polygon.maxX);
+      y1 = Math.max(y1, polygon.maxY);
+    }
+    minX = x0;
+    minY = y0;
+    maxX = x1;
+    maxY = y1;
+    gridSize = (int) Math.max(1, Math.min(MAX_GRID_SIZE, Math.ceil(Math.sqrt((double) polygons.size() * CELLS_PER_POLYGON))));
+    cellWidth = polygons.isEmpty() ? 1.0 : Math.max((maxX - minX) / gridSize, Double.MIN_NORMAL);
+    cellHeight = polygons.isEmpty() ? 1.0 : Math.max((maxY - minY) / gridSize, Double.MIN_NORMAL);
+
+    List<List<Integer>> lists = new ArrayList<List<Integer>>();
+    for (int i = 0; i < gridSize * gridSize; i++)
+    {
+      lists.add(new ArrayList<Integer>());
+    }
+    for (int p = 0; p < polygons.size(); p++)
+    {
+      Polygon polygon = polygons.get(p);
+      for (int row = row(polygon.minY); row <= row(polygon.maxY); row++)
+      {
+        for (int column = column(polygon.minX); column <= column(polygon.maxX); column++)
+        {
+          lists.get(row * gridSize + column).add(p);
+        }
+      }
+    }
+    cells = new int[lists.size()][];
+    for (int i = 0; i < cells.length; i++)
+    {
+      List<Integer> list = lists.get(i);
+      cells[i] = new int[list.size()];
+      for (int j = 0; j < cells[i].length; j++)
+      {
+        cells[i][j] = list.get(j);
+      }
+    }
+  }
+
+  /**
+   * Reads the polygons and multipolygons of a GeoJSON file: a feature
+   * collection, a feature or a bare geometry. Other geometries are ignored.
+   */
+  public static AwsIoTHubGeofenceIndex load(File file) throws IOException
+  {
+    List<Polygon> polygons = new ArrayList<Polygon>();
+    addGeometries(new ObjectMapper().readTree(file), polygons);
+    return new AwsIoTHubGeofenceIndex(polygons);
+  }
+
+  public int getPolygonCount()
+  {
+    return polygons.size();
+  }
+
+  /**
+   * @return <code>true</code> if the point lies in any of the polygons
+   */
+  public boolean contains(double x, double y)
+  {
+    if (!(x >= minX && x <= maxX && y >= minY && y <= maxY))
+    {
+      return false;
+    }
+    for (int p : cells[row(y) * gridSize + column(x)])
+    {
+      if (polygons.get(p).contains(x, y))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int column(double x)
+  {
+    return Math.min(gridSize - 1, Math.max(0, (int) ((x - minX) / cellWidth)));
+  }
+
+  private int row(double y)
+  {
+    return Math.min(gridSize - 1, Math.max(0, (int) ((y - minY) / cellHeight)));
+  }
+
+  private static void addGeometries(JsonNode node, List<Polygon> polygons) throws IOException
+  {
+    String type = node.path("type").asText();
+    switch (type)
+    {
+      case "FeatureCollection":
+        for (JsonNode feature : node.path("features"))
+        {
+          addGeometries(feature, polygons);
+        }
+        break;
+      case "Feature":
+        addGeometries(node.path("geometry"), polygons);
+        break;
+      case "GeometryCollection":
+        for (JsonNode geometry : node.path("geometries"))
+        {
+          addGeometries(geometry, polygons);
+        }
+        break;
+      case "Polygon":
+        polygons.add(toPolygon(node.path("coordinates")));
+        break;
+      case "MultiPolygon":
+        for (JsonNode coordinates : node.path("coordinates"))
+        {
+          polygons.add(toPolygon(coordinates));
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * @param coordinates
+   *          the rings of a GeoJSON polygon: the exterior ring, then the holes
+   */
+  private static Polygon toPolygon(JsonNode coordinates) throws IOException
+  {
+    List<double[]> rings = new ArrayList<double[]>();
+    for (JsonNode ring : coordinates)
+    {
+      double[] points = new double[ring.size() * 2];
+      int i = 0;
+      for (JsonNode position : ring)
+      {
+        if (position.size() < 2)
+        {
+          throw new IOException("Invalid position " + position);
+        }
+        points[i++] = position.get(0).asDouble();
+        points[i++] = position.get(1).asDouble();
+      }
+      if (points.length < 6)
+      {
+        throw new IOException("Invalid ring " + ring);
+      }
+      rings.add(points);
+    }
+    if (rings.isEmpty())
+    {
+      throw new IOException("Polygon without rings");
+    }
+    return new Polygon(rings);
+  }
+
+  /**
+   * A polygon with holes; the rings are flat x,y arrays.
+   */
+  public static class Polygon
+  {
+    private final List<double[]> rings;
+    private final double         minX;
+    private final double         minY;
+    private final double         maxX;
+    private final double         maxY;
+
+    public Polygon(List<double[]> rings)
+    {
+      this.rings = rings;
+      double[] exterior = rings.get(0);
+      double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < exterior.length; i += 2)
+      {
+        x0 = Math.min(x0, exterior[i]);
+        y0 = Math.min(y0, exterior[i + 1]);
+        x1 = Math.max(x1, exterior[i]);
+        y1 = Math.max(y1, exterior[i + 1]);
+      }
+      minX = x0;
+      minY = y0;
+      maxX = x1;
+      maxY = y1;
+    }
+
+    public boolean contains(double x, double y)
+    {
+      if (x < minX || x > maxX || y < minY || y > maxY || !inRing(rings.get(0), x, y))
+      {
+        return false;
+      }
+      for (int i = 1; i < rings.size(); i++)
+      {
+        if (inRing(rings.get(i), x, y))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Even-odd ray casting.
+     */
+    private static boolean inRing(double[] ring, double x, double y)
+    {
+      boolean inside = false;
+      int n = ring.length;
+      for (int i = 0, j = n - 2; i < n; j = i, i += 2)
+      {
+        double xi = ring[i], yi = ring[i + 1], xj = ring[j], yj = ring[j + 1];
+        if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi)
+        {
+          inside = !inside;
+        }
+      }
+      return inside;
+    }
+  }
+}
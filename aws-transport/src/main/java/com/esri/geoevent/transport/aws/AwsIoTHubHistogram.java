@@ -0,0 +1,197 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with HDR-style log-linear buckets: every power
+ * of two is split into 8 linear sub-buckets, which bounds the error of the
+ * reported percentiles to 12.5% while covering the full range of a long with
+ * fewer than 500 buckets. Values are recorded in nanoseconds.
+ */
+public class AwsIoTHubHistogram
+{
+  private static final int      SUB_BUCKET_BITS = 3;
+  private static final int      SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+  private static final int      BUCKETS         = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts          = new AtomicLongArray(BUCKETS);
+  private final LongAdder       count           = new LongAdder();
+  private final LongAdder       sum             = new LongAdder();
+  private final AtomicLong      max             = new AtomicLong();
+
+  public void record(long nanos)
+  {
+    long value = Math.max(0L, nanos);
+    counts.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    if (value > max.get())
+    {
+      max.accumulateAndGet(value, Math::max);
+    }
+  }
+
+  public long getCount()
+  {
+    return count.sum();
+  }
+
+  /**
+   * @return the upper bound of the bucket holding the given percentile (0-100)
+   *         in nanoseconds
+   */
+  public long getPercentile(double percentile)
+  {
+    long total = count.sum();
+    if (total == 0)
+    {
+      return 0L;
+    }
+    long target = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+    long cumulative = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      cumulative += counts.get(i);
+      if (cumulative >= target)
+      {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public void reset()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      counts.set(i, 0L);
+    }
+    count.reset();
+    sum.reset();
+    max.set(0L);
+  }
+
+  public Snapshot getSnapshot()
+  {
+    long total = count.sum();
+    double mean = (total > 0) ? (double) sum.sum() / total : 0.0;
+    return new Snapshot(total, toMicros(mean), toMicros(getPercentile(50.0)), toMicros(getPercentile(99.0)), toMicros(getPercentile(99.9)), toMicros(max.get()));
+  }
+
+  static int index(long value)
+  {
+    if (value < SUB_BUCKETS)
+    {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long upperBound(int index)
+  {
+    if (index < SUB_BUCKETS)
+    {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = SUB_BUCKETS + index % SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  private static double toMicros(double nanos)
+  {
+    return nanos / TimeUnit.MICROSECONDS.toNanos(1);
+  }
+
+  /**
+   * An immutable view of the histogram, exposed over JMX as composite data.
+   * All the times are in microseconds.
+   */
+  public static class Snapshot
+  {
+    private final long   count;
+    private final double mean;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+    private final double max;
+
+    @ConstructorProperties({ "count", "mean", "p50", "p99", "p999", "max" })
+    public Snapshot(long count, double mean, double p50, double p99, double p999, double max)
+    {
+      this.count = count;
+      this.mean = mean;
+      this.p50 = p50;
+      this.p99 = p99;
+      this.p999 = p999;
+      this.max = max;
+    }
+
+    public long getCount()
+    {
+      return count;
+    }
+
+    public double getMean()
+    {
+      return mean;
+    }
+
+    public double getP50()
+    {
+      return p50;
+    }
+
+    public double getP99()
+    {
+      return p99;
+    }
+
+    public double getP999()
+    {
+      return p999;
+    }
+
+    public double getMax()
+    {
+      return max;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus", count, mean, p50, p99, p999, max);
+    }
+  }
+}
@@ -24,17 +24,22 @@
 
 package com.esri.geoevent.transport.aws;
 
-import java.math.BigInteger;
+import java.io.File;
+import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.amazonaws.services.iot.client.AWSIotException;
 import com.amazonaws.services.iot.client.AWSIotMessage;
-import com.amazonaws.services.iot.client.AWSIotMqttClient;
 import com.amazonaws.services.iot.client.AWSIotQos;
 import com.amazonaws.services.iot.client.AWSIotTopic;
-import com.esri.geoevent.transport.aws.AwsIoTHubUtil.KeyStorePasswordPair;
 import com.esri.ges.core.component.ComponentException;
 import com.esri.ges.core.component.RunningException;
 import com.esri.ges.core.component.RunningState;
@@ -42,34 +47,79 @@ import com.esri.ges.framework.i18n.BundleLogger;
 import com.esri.ges.framework.i18n.BundleLoggerFactory;
 import com.esri.ges.transport.InboundTransportBase;
 import com.esri.ges.transport.TransportDefinition;
+import com.esri.ges.util.Converter;
+import com.esri.ges.util.Validator;
 
-public class AwsIoTHubInboundTransport extends InboundTransportBase implements Runnable
+public class AwsIoTHubInboundTransport extends InboundTransportBase implements AwsIoTHubReconnector.Callback
 {
   // based on the aws-iot-device-sdk-java
   // https://github.com/aws/aws-iot-device-sdk-java
 
   // logger
-  private static final BundleLogger LOGGER                 = BundleLoggerFactory.getLogger(AwsIoTHubInboundTransport.class);
+  private static final BundleLogger            LOGGER                   = BundleLoggerFactory.getLogger(AwsIoTHubInboundTransport.class);
+
+  // the byte listener channel of the replayed states, apart from the live
+  // messages
+  private static final String                  STATE_CHANNEL            = "state";
+  // the most live messages held back while the shadows are fetched
+  private static final int                     MAX_HELD_MESSAGES        = 10000;
 
   // transport properties
-  private boolean                   isEventHubType         = true;
-  private String                    iotServiceType         = "";
+  private boolean                              isEventHubType           = true;
+  private String                               iotServiceType           = "";
 
-  private String                    thingName              = "";
+  private String                               thingName                = "";
 
-  private String                    clientEndpoint         = "";
-  private String                    x509Certificate        = "";
-  private String                    privateKey             = "";
-  private String                    topicName              = "";
+  private String                               clientEndpoint           = "";
+  private String                               x509Certificate          = "";
+  private String                               privateKey               = "";
+  private volatile String                      topicName                = "";
+  private int                                  certificateCheckInterval = 60;
+  private boolean                              persistentSession        = false;
+  private String                               clientIdPrefix           = "";
+  private int                                  drainTimeout             = 5000;
+  private String                               timestampField           = "";
+  private String                               captureFile              = "";
+  private int                                  captureMaxSize           = 1024;
+  private int                                  dispatchLanes            = 0;
+  private boolean                              conflate                 = false;
+  private AwsIoTHubMessageKey                  dispatchKey              = AwsIoTHubMessageKey.parse("TOPIC", null);
 
   // data members
-  private String                    clientId               = null;
-  private AWSIotMqttClient          awsClient              = null;
-  private AwsIoTHubDevice           geIoTDevice            = null;
-  private AWSIotTopic               iotTopic               = null;
-  private String                    errorMessage;
-  private Thread                    thread                 = null;
-  private volatile boolean          propertiesNeedUpdating = false;
+  private volatile AwsIoTHubConnection         connection               = null;
+  private AwsIoTHubCertificateWatcher          certificateWatcher       = null;
+  private String                               errorMessage;
+  private final AwsIoTHubReconnector           reconnector              = new AwsIoTHubReconnector(this);
+  // messages currently being delivered to the byte listener
+  private final AtomicInteger                  inFlight                 = new AtomicInteger();
+  private volatile boolean                     accepting                = false;
+  private volatile AwsIoTHubTimestampExtractor timestampExtractor       = null;
+  private volatile AwsIoTHubCaptureWriter      capture                  = null;
+  private volatile AwsIoTHubDispatcher         dispatcher               = null;
+  private volatile AwsIoTHubDownsampler        downsampler              = null;
+  private volatile AwsIoTHubGeofence           geofence                 = null;
+  private volatile AwsIoTHubResequencer        resequencer              = null;
+  // null to deliver the chunks of the large messages as they are
+  private volatile AwsIoTHubChunkAssembler     chunkAssembler           = null;
+  // the last message of each device, keyed by the dispatch key
+  private volatile AwsIoTHubStateCache         stateCache               = null;
+  private volatile File                        stateFile                = null;
+  private ScheduledFuture<?>                   statePersister           = null;
+  // the state file is written under this lock rather than the transport's
+  private final Object                         stateSaveLock            = new Object();
+  private long                                 stateSavedVersion        = -1L;
+  // the things whose shadow is fetched before the live updates, IOT_DEVICE only
+  private String                               shadowBootstrapThings    = "";
+  private int                                  shadowBootstrapRequests  = 25;
+  private int                                  shadowBootstrapTimeout   = 30;
+  // the shadows are fetched on the first connect after a start only
+  private volatile boolean                     shadowBootstrapPending   = false;
+  // the shadows being fetched, cancelled by stop and by too many held messages
+  private final AtomicReference<AwsIoTHubShadowBootstrap> shadowBootstrap = new AtomicReference<AwsIoTHubShadowBootstrap>();
+  // the live messages held back while the shadows are fetched, else null
+  private final Object                         heldLock                 = new Object();
+  private volatile List<Runnable>              heldMessages             = null;
+  private final AwsIoTHubMetrics               metrics                  = new AwsIoTHubMetrics("Inbound", inFlight::get, reconnector::getState);
 
   public enum AwsIoTServiceType
   {
@@ -94,8 +144,10 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
           return;
       }
       setRunningState(RunningState.STARTING);
-      thread = new Thread(this);
-      thread.start();
+      metrics.register(hasProperty("topic") ? getProperty("topic").getValueAsString() : topicName);
+      shadowBootstrapPending = true;
+      // connect asynchronously on the shared scheduler, retrying with backoff
+      reconnector.start();
     }
     catch (Exception e)
     {
@@ -104,76 +156,399 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
     }
   }
 
+  /**
+   * Connects with the current properties. The shadows are fetched once the
+   * transport lock is released, so stopping or reconfiguring the connector
+   * does not wait for them.
+   */
+  @Override
+  public void connect() throws AWSIotException
+  {
+    AwsIoTHubShadowBootstrap bootstrap;
+    AwsIoTHubConnection newConnection;
+    synchronized (this)
+    {
+      // stopped while this connect was waiting to run
+      if (!reconnector.isActive())
+      {
+        return;
+      }
+
+      applyProperties();
+      cleanup();
+
+      accepting = true;
+      long connectStart = System.nanoTime();
+      bootstrap = shadowBootstrapPending ? createShadowBootstrap() : null;
+      newConnection = createConnection(bootstrap != null);
+      connection = newConnection;
+      shadowBootstrapPending = false;
+      shadowBootstrap.set(bootstrap);
+      metrics.connected(connectStart);
+
+      // watch the PEM files to rotate the credentials in place
+      certificateWatcher = new AwsIoTHubCertificateWatcher(x509Certificate, privateKey, this::replaceConnection);
+      certificateWatcher.start(certificateCheckInterval);
+    }
+    if (bootstrap != null)
+    {
+      bootstrapShadows(bootstrap, newConnection);
+    }
+  }
+
   @Override
-  public void run()
+  public synchronized void onConnected()
   {
-    connectToAwsEventHub();
+    if (reconnector.isActive())
+    {
+      errorMessage = null;
+      setErrorMessage(null);
+      setRunningState(RunningState.STARTED);
+    }
   }
 
-  private void connectToAwsEventHub()
+  @Override
+  public synchronized void onConnectFailed(Exception error, long retryDelay)
   {
-    String errorMessage = null;
-    RunningState runningState = RunningState.STARTED;
+    if (reconnector.isActive())
+    {
+      LOGGER.error("AWSIOT_INIT_ERROR", error);
+      metrics.connectFailed();
+      errorMessage = LOGGER.translate("CONNECT_RETRY", error.getMessage(), retryDelay / 1000);
+      setErrorMessage(errorMessage);
+      setRunningState(RunningState.ERROR);
+    }
+  }
+
+  /**
+   * The client gave up reconnecting on its own (e.g. a longer outage); keep
+   * trying through the reconnector with backoff.
+   */
+  private synchronized void onConnectionLost(AwsIoTHubConnection lostConnection)
+  {
+    if (lostConnection == connection && reconnector.isActive())
+    {
+      LOGGER.warn("CONNECTION_LOST", lostConnection.getClientId());
+      metrics.connectionLost();
+      errorMessage = LOGGER.translate("CONNECTION_LOST", lostConnection.getClientId());
+      setErrorMessage(errorMessage);
+      setRunningState(RunningState.ERROR);
+      reconnector.reconnect();
+    }
+  }
 
+  /**
+   * Creates, connects and subscribes a new connection with the current
+   * properties. The connection is closed again if any step fails.
+   *
+   * @param holdLiveMessages
+   *          whether the live messages are held back until the shadows were
+   *          fetched and {@link #releaseLiveMessages()} is called
+   */
+  private AwsIoTHubConnection createConnection(boolean holdLiveMessages) throws AWSIotException
+  {
+    AwsIoTHubConnection newConnection = new AwsIoTHubConnection(clientEndpoint, createClientId(), x509Certificate, privateKey, this::onConnectionLost);
     try
     {
-      applyProperties();
-      if (propertiesNeedUpdating)
+      // a persistent session makes the broker keep the subscription and queue
+      // QoS 1 messages while the client is away
+      newConnection.getClient().setCleanSession(!persistentSession);
+
+      // attach device
+      if (!isEventHubType)
       {
-        cleanup();
-        propertiesNeedUpdating = false;
+        newConnection.attach(thingName);
       }
 
-      // iot service type: IOT_TOPIC|IOT_DEVICE
-      isEventHubType = AwsIoTServiceType.IOT_TOPIC.toString().equals(iotServiceType);
+      // connect
+      newConnection.connect();
 
-      // Get KeyStore credentials
-      KeyStorePasswordPair pair = AwsIoTHubUtil.getKeyStorePasswordPair(x509Certificate, privateKey, null);
+      // geIoTDevice.delete(10000); // delete shadow
 
-      // create AwsClient
-      clientId = String.format("%s-%s", thingName, new BigInteger(128, new SecureRandom()).toString(32));
-      awsClient = new AWSIotMqttClient(clientEndpoint, clientId, pair.keyStore, pair.keyPassword);
-      if (awsClient == null)
+      // the current states go before the live updates: the live messages
+      // arriving meanwhile are held back, so that none is missed and none is
+      // overtaken by an older shadow state
+      if (holdLiveMessages)
+      {
+        heldMessages = new ArrayList<Runnable>();
+      }
+      try
+      {
+        // register topic handler
+        newConnection.subscribe(new AwsIoTTopicListener(topicName, getSubscriptionQos(), newConnection.getClientId()));
+      }
+      catch (AWSIotException e)
       {
-        runningState = RunningState.ERROR;
-        errorMessage = LOGGER.translate("FAILED_TO_CREATE_EH_CLIENT", clientEndpoint);
-        LOGGER.error(errorMessage);
+        releaseLiveMessages();
+        throw e;
       }
+    }
+    catch (AWSIotException e)
+    {
+      newConnection.close();
+      throw e;
+    }
+    return newConnection;
+  }
 
-      // attach device
-      if (!isEventHubType)
+  /**
+   * @return the bootstrap of the configured things, or <code>null</code> if
+   *         there are none or the list is invalid; the bootstrap is
+   *         best-effort, the connector goes on with the live messages
+   */
+  private AwsIoTHubShadowBootstrap createShadowBootstrap()
+  {
+    if (isEventHubType || !Validator.isNotBlank(shadowBootstrapThings))
+    {
+      return null;
+    }
+    try
+    {
+      List<String> thingNames = AwsIoTHubShadowBootstrap.parseThingNames(shadowBootstrapThings);
+      return new AwsIoTHubShadowBootstrap(thingNames, shadowBootstrapRequests, TimeUnit.SECONDS.toMillis(Math.max(1, shadowBootstrapTimeout)));
+    }
+    catch (IOException | IllegalArgumentException e)
+    {
+      LOGGER.warn("SHADOW_BOOTSTRAP_INVALID", e, shadowBootstrapThings);
+      return null;
+    }
+  }
+
+  /**
+   * Delivers the reported state of the configured things, fetched with
+   * shadow GET requests, for at most shadowBootstrapTimeout seconds, then
+   * releases the live messages held back meanwhile. The shadows not fetched
+   * by then are left out, and so are the ones arriving once the live
+   * messages were released; a failed request is logged.
+   */
+  private void bootstrapShadows(AwsIoTHubShadowBootstrap bootstrap, AwsIoTHubConnection newConnection)
+  {
+    String clientId = newConnection.getClientId();
+    LOGGER.info("SHADOW_BOOTSTRAP", bootstrap);
+    try
+    {
+      bootstrap.run(newConnection.getClient(), (topic, document) -> acceptShadow(topic, document, clientId));
+      LOGGER.info("SHADOW_BOOTSTRAPPED", bootstrap.getDelivered(), bootstrap.getMissing(), bootstrap.getUnanswered(), bootstrap.getElapsedMillis());
+    }
+    catch (AWSIotException e)
+    {
+      LOGGER.warn("SHADOW_BOOTSTRAP_ERROR", e, bootstrap.getDelivered());
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    finally
+    {
+      shadowBootstrap.compareAndSet(bootstrap, null);
+      releaseLiveMessages();
+    }
+  }
+
+  /**
+   * Accepts a shadow state as long as the live messages are held back; a
+   * later one would overtake the newer live messages already delivered.
+   */
+  private void acceptShadow(String topic, byte[] document, String clientId)
+  {
+    synchronized (heldLock)
+    {
+      if (heldMessages != null)
       {
-        LOGGER.info(System.currentTimeMillis() + ": ClientId: " + ": Attaching device:" + geIoTDevice.getThingName());
-        geIoTDevice = new AwsIoTHubDevice(thingName);
-        awsClient.attach(geIoTDevice);
+        accept(topic, document, clientId, System.currentTimeMillis(), System.nanoTime());
       }
+    }
+  }
 
-      // connect
-      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Connecting");
-      awsClient.connect();
-      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Connected");
+  private void cancelShadowBootstrap()
+  {
+    AwsIoTHubShadowBootstrap bootstrap = shadowBootstrap.getAndSet(null);
+    if (bootstrap != null)
+    {
+      bootstrap.cancel();
+    }
+  }
 
-      // geIoTDevice.delete(10000); // delete shadow
+  /**
+   * Holds back a live message while the shadows are fetched. Once too many
+   * are held, they are released early rather than growing without bounds,
+   * and the rest of the shadows is dropped.
+   *
+   * @return <code>false</code> if the message is not held and has to be
+   *         delivered now
+   */
+  private boolean holdLiveMessage(Runnable delivery)
+  {
+    synchronized (heldLock)
+    {
+      if (heldMessages == null)
+      {
+        return false;
+      }
+      if (heldMessages.size() >= MAX_HELD_MESSAGES)
+      {
+        LOGGER.warn("SHADOW_BOOTSTRAP_OVERFLOW", heldMessages.size());
+        // the shadows still to come are older than the released messages
+        cancelShadowBootstrap();
+        releaseLiveMessages();
+        return false;
+      }
+      heldMessages.add(delivery);
+      return true;
+    }
+  }
 
-      // register topic handler
-      iotTopic = new AwsIoTTopicListener(topicName, AWSIotQos.QOS0);
-      awsClient.subscribe(iotTopic, true);
-      LOGGER.info("Subscribed to topic:" + topicName);
+  /**
+   * Delivers the live messages held back, in their order, and stops holding
+   * them.
+   */
+  private void releaseLiveMessages()
+  {
+    // the messages arriving meanwhile wait for the lock, and are not let
+    // through before the held ones were delivered
+    synchronized (heldLock)
+    {
+      List<Runnable> held = heldMessages;
+      if (held != null)
+      {
+        for (Runnable delivery : held)
+        {
+          delivery.run();
+        }
+      }
+      heldMessages = null;
+    }
+  }
 
-      setErrorMessage(errorMessage);
-      setRunningState(runningState);
+  /**
+   * With persistent sessions the client id is derived from the connector, so
+   * a restarted connector resumes its session; otherwise every connection
+   * gets a random id and a clean session.
+   */
+  private String createClientId()
+  {
+    if (persistentSession)
+    {
+      String prefix = Validator.isNotBlank(clientIdPrefix) ? clientIdPrefix : thingName;
+      return AwsIoTHubUtil.createStableClientId(prefix, "inbound", clientEndpoint, iotServiceType, thingName, topicName);
     }
-    catch (AWSIotException iote)
+    return AwsIoTHubUtil.createClientId(thingName);
+  }
+
+  /**
+   * Make-before-break connection replacement, used when the endpoint or the
+   * credentials change: the replacement connection is connected and
+   * subscribed before the old one is closed, so no messages are missed while
+   * switching. Messages arriving during the overlap may be delivered by both
+   * connections.
+   *
+   * @return <code>false</code> if the new connection could not be
+   *         established; the old connection is kept in that case.
+   */
+  private synchronized boolean replaceConnection()
+  {
+    AwsIoTHubConnection oldConnection = connection;
+    if (getRunningState() != RunningState.STARTED || oldConnection == null)
     {
-      LOGGER.error("AWSIOT_INIT_ERROR", iote);
-      setErrorMessage(iote.getMessage());
-      setRunningState(RunningState.ERROR);
+      return true;
     }
-    catch (Exception ex)
+
+    try
     {
-      LOGGER.error("INIT_ERROR", ex);
-      setErrorMessage(ex.getMessage());
-      setRunningState(RunningState.ERROR);
+      LOGGER.info("REPLACING_CONNECTION", oldConnection.getClientId());
+      if (createClientId().equals(oldConnection.getClientId()))
+      {
+        // the broker drops a connection when another one connects with the
+        // same client id, so the old connection has to go first; the
+        // persistent session keeps the messages published in between
+        connection = null;
+        oldConnection.close();
+      }
+      AwsIoTHubConnection newConnection = createConnection(false);
+      connection = newConnection;
+      oldConnection.close();
+      LOGGER.info("REPLACED_CONNECTION", oldConnection.getClientId(), newConnection.getClientId());
+      return true;
+    }
+    catch (Exception e)
+    {
+      LOGGER.error("CONNECTION_REPLACEMENT_ERROR", e);
+      if (connection == null)
+      {
+        // the old connection is already gone, keep trying with backoff
+        connection = oldConnection;
+        onConnectionLost(oldConnection);
+      }
+      return false;
+    }
+  }
+
+  @Override
+  public void afterPropertiesSet()
+  {
+    super.afterPropertiesSet();
+
+    // apply changed properties to the live connection
+    if (getRunningState() == RunningState.STARTED)
+    {
+      reconfigure(applyProperties());
+    }
+  }
+
+  /**
+   * Applies property changes to the running transport with the least
+   * disruptive action: a topic change only moves the subscription, a service
+   * type or thing name change only detaches/attaches the device and only an
+   * endpoint or credential change needs a new connection. With a persistent
+   * session, a change of the properties the session is identified by also
+   * needs a new connection, on the session the next restart resumes.
+   */
+  private synchronized void reconfigure(EnumSet<AwsIoTHubReconfiguration> changes)
+  {
+    AwsIoTHubConnection activeConnection = connection;
+    if (activeConnection == null)
+    {
+      return;
+    }
+    if (persistentSession && !createClientId().equals(activeConnection.getClientId()))
+    {
+      changes.add(AwsIoTHubReconfiguration.CONNECTION);
+    }
+    if (changes.isEmpty())
+    {
+      return;
+    }
+
+    if (changes.contains(AwsIoTHubReconfiguration.CONNECTION) || changes.contains(AwsIoTHubReconfiguration.CERTIFICATE_WATCH))
+    {
+      restartCertificateWatcher();
+    }
+    if (changes.contains(AwsIoTHubReconfiguration.CONNECTION))
+    {
+      // the new connection picks up all the other changes as well
+      if (!replaceConnection())
+      {
+        setErrorMessage(LOGGER.translate("CONNECTION_REPLACEMENT_ERROR"));
+      }
+      return;
+    }
+
+    try
+    {
+      if (changes.contains(AwsIoTHubReconfiguration.DEVICE))
+      {
+        activeConnection.reattach(isEventHubType ? null : thingName);
+      }
+      if (changes.contains(AwsIoTHubReconfiguration.SUBSCRIPTION))
+      {
+        activeConnection.resubscribe(new AwsIoTTopicListener(topicName, getSubscriptionQos(), activeConnection.getClientId()));
+      }
+      LOGGER.info("RECONFIGURED", activeConnection.getClientId(), changes);
+    }
+    catch (AWSIotException e)
+    {
+      LOGGER.error("RECONFIGURATION_ERROR", e);
+      setErrorMessage(e.getMessage());
     }
   }
 
@@ -181,44 +556,111 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
   public synchronized void stop()
   {
     errorMessage = null;
+    reconnector.stop();
+    cancelShadowBootstrap();
+    drain();
+    accepting = false;
+    closeChunkAssembler();
+    closeStateCache();
+    closeResequencer();
+    closeDispatcher();
+    closeDownsampler();
+    closeGeofence();
     cleanup();
+    closeCapture();
+    metrics.unregister();
     setErrorMessage(null);
     setRunningState(RunningState.STOPPED);
   }
 
-  private void cleanup()
+  /**
+   * Lets the messages already handed over by the client finish their delivery
+   * to the byte listener before disconnecting, for at most drainTimeout ms.
+   * With a clean session the subscription is dropped first and late messages
+   * are rejected. A persistent session keeps its subscription so that
+   * messages not delivered yet stay queued at the broker for the next start:
+   * the client acknowledges a message as soon as it is handed over, so the
+   * connection is closed first and every message handed over until then is
+   * delivered.
+   */
+  private void drain()
   {
-    if (awsClient != null)
+    AwsIoTHubConnection activeConnection = connection;
+    if (activeConnection == null)
     {
+      return;
+    }
+
+    long deadline = System.currentTimeMillis() + drainTimeout;
+    if (persistentSession)
+    {
+      activeConnection.close();
       try
       {
-        if (geIoTDevice != null)
-        {
-          LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Detaching device:" + geIoTDevice.getThingName());
-          awsClient.detach(geIoTDevice);
-          LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Detached device:" + geIoTDevice.getThingName());
-          // geIoTDevice.delete(5000);
-        }
-        LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Disconnecting");
-        awsClient.disconnect(5000);
-        LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Disconnected");
+        activeConnection.awaitCallbacks(Math.max(0L, deadline - System.currentTimeMillis()));
       }
-      catch (Exception e)
+      catch (InterruptedException e)
       {
-        LOGGER.error("CLEANUP_ERROR", e);
-        setErrorMessage(e.getMessage());
+        Thread.currentThread().interrupt();
       }
-      finally
+    }
+    else
+    {
+      accepting = false;
+      try
       {
-        geIoTDevice = null;
-        awsClient = null;
+        activeConnection.unsubscribe();
       }
+      catch (AWSIotException e)
+      {
+        LOGGER.warn("DRAIN_UNSUBSCRIBE_ERROR", e);
+      }
+    }
+    // buffered messages need not wait for older ones any more
+    AwsIoTHubResequencer currentResequencer = resequencer;
+    if (currentResequencer != null)
+    {
+      currentResequencer.flush();
+    }
+    if (!AwsIoTHubUtil.awaitZero(inFlight, Math.max(0L, deadline - System.currentTimeMillis())))
+    {
+      // already acknowledged, they are lost
+      LOGGER.warn("DRAIN_DROPPED", activeConnection.getClientId(), inFlight.get());
+    }
+  }
+
+  private void cleanup()
+  {
+    cancelShadowBootstrap();
+    if (certificateWatcher != null)
+    {
+      certificateWatcher.stop();
+      certificateWatcher = null;
+    }
+    if (connection != null)
+    {
+      connection.close();
+      connection = null;
     }
   }
 
-  private void applyProperties() throws Exception
+  private synchronized void restartCertificateWatcher()
   {
-    boolean somethingChanged = false;
+    if (certificateWatcher != null)
+    {
+      certificateWatcher.stop();
+      certificateWatcher = new AwsIoTHubCertificateWatcher(x509Certificate, privateKey, this::replaceConnection);
+      certificateWatcher.start(certificateCheckInterval);
+    }
+  }
+
+  /**
+   * Reads the connector properties and works out what has to be redone on a
+   * live connection for the changes to take effect.
+   */
+  private synchronized EnumSet<AwsIoTHubReconfiguration> applyProperties()
+  {
+    EnumSet<AwsIoTHubReconfiguration> changes = EnumSet.noneOf(AwsIoTHubReconfiguration.class);
 
     // iot service type; Event Hub or Device
     if (hasProperty("iotservicetype"))
@@ -228,7 +670,9 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
       if (!iotServiceType.equals(newIotServiceType))
       {
         iotServiceType = newIotServiceType;
-        somethingChanged = true;
+        // iot service type: IOT_TOPIC|IOT_DEVICE
+        isEventHubType = AwsIoTServiceType.IOT_TOPIC.toString().equals(iotServiceType);
+        changes.add(AwsIoTHubReconfiguration.DEVICE);
       }
     }
     // Device Id Field Name
@@ -238,7 +682,7 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
       if (!thingName.equals(newThingName))
       {
         thingName = newThingName;
-        somethingChanged = true;
+        changes.add(AwsIoTHubReconfiguration.DEVICE);
       }
     }
     // Client End point
@@ -248,9 +692,427 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
       if (!clientEndpoint.equals(newClientEndpoint))
       {
         clientEndpoint = newClientEndpoint;
-        somethingChanged = true;
+        changes.add(AwsIoTHubReconfiguration.CONNECTION);
       }
     }
+    // X.509 certificate and private key
+    if (applyCredentialProperties())
+    {
+      changes.add(AwsIoTHubReconfiguration.CONNECTION);
+    }
+    // certificate check interval
+    if (hasProperty("certificateCheckInterval"))
+    {
+      int newCertificateCheckInterval = Converter.convertToInteger(getProperty("certificateCheckInterval").getValueAsString(), 60);
+      if (certificateCheckInterval != newCertificateCheckInterval)
+      {
+        certificateCheckInterval = newCertificateCheckInterval;
+        changes.add(AwsIoTHubReconfiguration.CERTIFICATE_WATCH);
+      }
+    }
+    // persistent session and client id; both identify the broker session
+    if (hasProperty("persistentSession"))
+    {
+      boolean newPersistentSession = Converter.convertToBoolean(getProperty("persistentSession").getValueAsString(), false);
+      if (persistentSession != newPersistentSession)
+      {
+        persistentSession = newPersistentSession;
+        changes.add(AwsIoTHubReconfiguration.CONNECTION);
+      }
+    }
+    if (hasProperty("clientId"))
+    {
+      String newClientIdPrefix = getProperty("clientId").getValueAsString();
+      newClientIdPrefix = (newClientIdPrefix != null) ? newClientIdPrefix.trim() : "";
+      if (!clientIdPrefix.equals(newClientIdPrefix))
+      {
+        clientIdPrefix = newClientIdPrefix;
+        changes.add(AwsIoTHubReconfiguration.CONNECTION);
+      }
+    }
+    // drain timeout; only used when stopping
+    if (hasProperty("drainTimeout"))
+    {
+      drainTimeout = Converter.convertToInteger(getProperty("drainTimeout").getValueAsString(), 5000);
+    }
+    // payload trace; applies to the next message
+    applyTraceProperties();
+    // device timestamp field; applies to the next message
+    if (hasProperty("timestampField"))
+    {
+      String newTimestampField = getProperty("timestampField").getValueAsString();
+      newTimestampField = (newTimestampField != null) ? newTimestampField.trim() : "";
+      if (!timestampField.equals(newTimestampField))
+      {
+        timestampField = newTimestampField;
+        timestampExtractor = Validator.isNotBlank(timestampField) ? new AwsIoTHubTimestampExtractor(timestampField) : null;
+      }
+    }
+    // message capture; the file is replaced when the capture (re)starts
+    applyCaptureProperties();
+    // dispatch lanes; apply when the connector starts so no device sees its
+    // messages reordered by a change
+    applyDispatchProperties();
+    // downsampling of the tracks keyed by the dispatch key; applies when the
+    // connector starts
+    applyDownsampleProperties();
+    // geofence; the file is reloaded whenever it changes, the other
+    // properties apply when the connector starts
+    applyGeofenceProperties();
+    // resequencing of the devices keyed by the dispatch key on the device
+    // timestamp; applies when the connector starts
+    applyResequenceProperties();
+    // reassembly of the chunked messages; applies when the connector starts
+    applyChunkProperties();
+    // last known state of the devices keyed by the dispatch key; applies when
+    // the connector starts
+    applyStateProperties();
+    // shadow bootstrap; applies when the connector (re)connects
+    applyShadowBootstrapProperties();
+    // topic name
+    if (hasProperty("topic"))
+    {
+      String newTopicName = getProperty("topic").getValueAsString();
+      if (!topicName.equals(newTopicName))
+      {
+        topicName = newTopicName;
+        changes.add(AwsIoTHubReconfiguration.SUBSCRIPTION);
+      }
+    }
+
+    return changes;
+  }
+
+  private void applyTraceProperties()
+  {
+    int traceSampleRate = hasProperty("traceSampleRate") ? Converter.convertToInteger(getProperty("traceSampleRate").getValueAsString(), 0) : 0;
+    String traceMatches = hasProperty("traceMatches") ? getProperty("traceMatches").getValueAsString() : "";
+    int traceCapacity = hasProperty("traceCapacity") ? Converter.convertToInteger(getProperty("traceCapacity").getValueAsString(), AwsIoTHubTrace.DEFAULT_CAPACITY) : AwsIoTHubTrace.DEFAULT_CAPACITY;
+    metrics.getTrace().configure(traceSampleRate, traceMatches, traceCapacity);
+  }
+
+  private void applyCaptureProperties()
+  {
+    String newCaptureFile = hasProperty("captureFile") ? getProperty("captureFile").getValueAsString() : "";
+    newCaptureFile = (newCaptureFile != null) ? newCaptureFile.trim() : "";
+    // DataOutputStream counts the bytes written in an int
+    int newCaptureMaxSize = hasProperty("captureMaxSize") ? Math.min(2047, Converter.convertToInteger(getProperty("captureMaxSize").getValueAsString(), 1024)) : 1024;
+    if (!captureFile.equals(newCaptureFile) || captureMaxSize != newCaptureMaxSize)
+    {
+      captureFile = newCaptureFile;
+      captureMaxSize = newCaptureMaxSize;
+      closeCapture();
+    }
+    if (capture == null && Validator.isNotBlank(captureFile) && captureMaxSize > 0 && reconnector.isActive())
+    {
+      try
+      {
+        capture = new AwsIoTHubCaptureWriter(new File(captureFile), captureMaxSize * 1024L * 1024L);
+      }
+      catch (IOException e)
+      {
+        LOGGER.error("CAPTURE_ERROR", e, captureFile);
+      }
+    }
+  }
+
+  private void applyDispatchProperties()
+  {
+    if (dispatcher != null)
+    {
+      return;
+    }
+    dispatchLanes = hasProperty("dispatchLanes") ? Converter.convertToInteger(getProperty("dispatchLanes").getValueAsString(), 0) : 0;
+    conflate = hasProperty("conflate") && Converter.convertToBoolean(getProperty("conflate").getValueAsString(), false);
+    String dispatchKeyType = hasProperty("dispatchKeyType") ? getProperty("dispatchKeyType").getValueAsString() : "TOPIC";
+    dispatchKey = AwsIoTHubMessageKey.parse(dispatchKeyType, hasProperty("dispatchKey") ? getProperty("dispatchKey").getValueAsString() : null);
+    if ((dispatchLanes > 0 || conflate) && reconnector.isActive())
+    {
+      // conflation needs a queue, so it brings a lane of its own
+      int lanes = Math.max(1, dispatchLanes);
+      dispatcher = new AwsIoTHubDispatcher(String.valueOf(metrics.getInstance()), lanes, conflate ? this::messageConflated : null);
+      LOGGER.info(conflate ? "CONFLATION_LANES" : "DISPATCH_LANES", lanes, dispatchKey);
+    }
+  }
+
+  private void applyDownsampleProperties()
+  {
+    if (downsampler != null || !reconnector.isActive())
+    {
+      return;
+    }
+    long interval = hasProperty("downsampleInterval") ? Converter.convertToLong(getProperty("downsampleInterval").getValueAsString(), 0L) : 0L;
+    double distance = hasProperty("downsampleDistance") ? Converter.convertToDouble(getProperty("downsampleDistance").getValueAsString(), 0.0) : 0.0;
+    String coordinateFields = hasProperty("coordinateFields") ? getProperty("coordinateFields").getValueAsString() : "lon,lat";
+    String changeFields = hasProperty("downsampleChangeFields") ? getProperty("downsampleChangeFields").getValueAsString() : "";
+    int maxTracks = hasProperty("downsampleTracks") ? Converter.convertToInteger(getProperty("downsampleTracks").getValueAsString(), 100000) : 100000;
+    int idleTimeout = hasProperty("downsampleIdleTimeout") ? Converter.convertToInteger(getProperty("downsampleIdleTimeout").getValueAsString(), 600) : 600;
+    if (AwsIoTHubDownsampler.isEnabled(interval, distance, changeFields))
+    {
+      downsampler = new AwsIoTHubDownsampler(interval, distance, coordinateFields, changeFields, maxTracks, TimeUnit.SECONDS.toMillis(idleTimeout));
+      LOGGER.info("DOWNSAMPLING", downsampler, dispatchKey);
+    }
+  }
+
+  private void closeDownsampler()
+  {
+    AwsIoTHubDownsampler currentDownsampler = downsampler;
+    if (currentDownsampler != null)
+    {
+      downsampler = null;
+      currentDownsampler.close();
+    }
+  }
+
+  private void applyGeofenceProperties()
+  {
+    if (geofence != null || !reconnector.isActive())
+    {
+      return;
+    }
+    String geofenceFile = hasProperty("geofenceFile") ? getProperty("geofenceFile").getValueAsString() : "";
+    String coordinateFields = hasProperty("coordinateFields") ? getProperty("coordinateFields").getValueAsString() : "lon,lat";
+    if (Validator.isNotBlank(geofenceFile))
+    {
+      geofence = new AwsIoTHubGeofence(new File(geofenceFile.trim()), coordinateFields);
+      LOGGER.info("GEOFENCE", geofence);
+    }
+  }
+
+  private void applyResequenceProperties()
+  {
+    if (resequencer != null || !reconnector.isActive())
+    {
+      return;
+    }
+    long lateness = hasProperty("resequenceLateness") ? Converter.convertToLong(getProperty("resequenceLateness").getValueAsString(), 0L) : 0L;
+    int capacity = hasProperty("resequenceBuffer") ? Converter.convertToInteger(getProperty("resequenceBuffer").getValueAsString(), 10000) : 10000;
+    boolean keepLate = hasProperty("resequenceKeepLate") && Converter.convertToBoolean(getProperty("resequenceKeepLate").getValueAsString(), false);
+    if (lateness > 0L)
+    {
+      if (timestampExtractor == null)
+      {
+        LOGGER.warn("RESEQUENCING_WITHOUT_TIMESTAMP");
+        return;
+      }
+      resequencer = new AwsIoTHubResequencer(String.valueOf(metrics.getInstance()), lateness, capacity, 100000, keepLate, metrics::messageLate);
+      LOGGER.info("RESEQUENCING", resequencer, dispatchKey, timestampField);
+    }
+  }
+
+  private void closeResequencer()
+  {
+    AwsIoTHubResequencer currentResequencer = resequencer;
+    if (currentResequencer != null)
+    {
+      resequencer = null;
+      // the messages still buffered after the drain are lost
+      inFlight.addAndGet(-currentResequencer.close());
+    }
+  }
+
+  private void applyChunkProperties()
+  {
+    if (chunkAssembler != null || !reconnector.isActive())
+    {
+      return;
+    }
+    int timeout = hasProperty("chunkTimeout") ? Converter.convertToInteger(getProperty("chunkTimeout").getValueAsString(), 30) : 30;
+    int memory = hasProperty("chunkMemory") ? Converter.convertToInteger(getProperty("chunkMemory").getValueAsString(), 64) : 64;
+    if (memory > 0)
+    {
+      chunkAssembler = new AwsIoTHubChunkAssembler(TimeUnit.SECONDS.toMillis(Math.max(1, timeout)), memory * 1024L * 1024L, metrics::chunksDropped);
+      LOGGER.info("CHUNK_REASSEMBLY", chunkAssembler);
+    }
+  }
+
+  private void closeChunkAssembler()
+  {
+    AwsIoTHubChunkAssembler currentChunkAssembler = chunkAssembler;
+    if (currentChunkAssembler != null)
+    {
+      chunkAssembler = null;
+      // the incomplete messages are lost
+      currentChunkAssembler.clear();
+    }
+  }
+
+  /**
+   * Creates the state cache, loads the state file into it and replays the
+   * loaded states before the live messages arrive.
+   */
+  private void applyStateProperties()
+  {
+    if (stateCache != null || !reconnector.isActive())
+    {
+      return;
+    }
+    // a direct buffer is limited to 2 GB
+    int memory = hasProperty("stateMemory") ? Math.min(2047, Converter.convertToInteger(getProperty("stateMemory").getValueAsString(), 0)) : 0;
+    String file = hasProperty("stateFile") ? getProperty("stateFile").getValueAsString() : "";
+    int persistInterval = hasProperty("statePersistInterval") ? Converter.convertToInteger(getProperty("statePersistInterval").getValueAsString(), 60) : 60;
+    boolean replay = !hasProperty("stateReplay") || Converter.convertToBoolean(getProperty("stateReplay").getValueAsString(), true);
+    if (memory <= 0)
+    {
+      return;
+    }
+    AwsIoTHubStateCache cache = new AwsIoTHubStateCache(memory * 1024 * 1024);
+    stateFile = Validator.isNotBlank(file) ? new File(file.trim()) : null;
+    int loaded = 0;
+    if (stateFile != null && stateFile.isFile())
+    {
+      try
+      {
+        loaded = cache.load(stateFile);
+      }
+      catch (IOException e)
+      {
+        LOGGER.warn("STATE_LOAD_ERROR", e, stateFile);
+      }
+    }
+    synchronized (stateSaveLock)
+    {
+      stateSavedVersion = cache.getVersion();
+    }
+    stateCache = cache;
+    metrics.setStateCache(cache, this::replayStates);
+    LOGGER.info("STATE_CACHE", cache, dispatchKey, loaded, (stateFile != null) ? stateFile : "-");
+    if (replay && loaded > 0)
+    {
+      replayStates();
+    }
+    if (stateFile != null && persistInterval > 0)
+    {
+      statePersister = AwsIoTHubScheduler.getExecutor().scheduleWithFixedDelay(this::saveStates, persistInterval, persistInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  private void applyShadowBootstrapProperties()
+  {
+    shadowBootstrapThings = hasProperty("shadowBootstrapThings") ? getProperty("shadowBootstrapThings").getValueAsString() : "";
+    shadowBootstrapRequests = hasProperty("shadowBootstrapConcurrency") ? Converter.convertToInteger(getProperty("shadowBootstrapConcurrency").getValueAsString(), 25) : 25;
+    shadowBootstrapTimeout = hasProperty("shadowBootstrapTimeout") ? Converter.convertToInteger(getProperty("shadowBootstrapTimeout").getValueAsString(), 30) : 30;
+  }
+
+  /**
+   * Delivers the last known state of every device to the byte listener, on
+   * a channel of its own.
+   *
+   * @return the number of states delivered
+   */
+  int replayStates()
+  {
+    AwsIoTHubStateCache cache = stateCache;
+    if (cache == null)
+    {
+      return 0;
+    }
+    try
+    {
+      int replayed = cache.snapshot((keyHash, arrivalMillis, topic, payload) -> receive(payload, STATE_CHANNEL));
+      LOGGER.info("STATE_REPLAYED", replayed);
+      return replayed;
+    }
+    catch (IOException e)
+    {
+      // the visitor does no I/O
+      return 0;
+    }
+  }
+
+  /**
+   * Writes the state file if any state changed since it was last written.
+   * The periodic writes do not hold the transport lock, so connecting and
+   * reconfiguring go on meanwhile; stopping writes the last states itself.
+   */
+  private void saveStates()
+  {
+    AwsIoTHubStateCache cache = stateCache;
+    File file = stateFile;
+    synchronized (stateSaveLock)
+    {
+      if (cache == null || file == null || cache.getVersion() == stateSavedVersion)
+      {
+        return;
+      }
+      long version = cache.getVersion();
+      try
+      {
+        cache.save(file);
+        stateSavedVersion = version;
+      }
+      catch (IOException e)
+      {
+        LOGGER.warn("STATE_SAVE_ERROR", e, file);
+      }
+    }
+  }
+
+  private void closeStateCache()
+  {
+    if (statePersister != null)
+    {
+      statePersister.cancel(false);
+      statePersister = null;
+    }
+    if (stateCache != null)
+    {
+      // the states of the last messages delivered
+      saveStates();
+      metrics.setStateCache(null, null);
+      stateCache = null;
+    }
+  }
+
+  private void closeGeofence()
+  {
+    AwsIoTHubGeofence currentGeofence = geofence;
+    if (currentGeofence != null)
+    {
+      geofence = null;
+      currentGeofence.close();
+    }
+  }
+
+  /**
+   * A queued message was replaced by a newer one of the same key.
+   */
+  private void messageConflated()
+  {
+    inFlight.decrementAndGet();
+    metrics.messageConflated();
+  }
+
+  private void closeDispatcher()
+  {
+    AwsIoTHubDispatcher currentDispatcher = dispatcher;
+    if (currentDispatcher != null)
+    {
+      dispatcher = null;
+      // the deliveries still queued after the drain are lost
+      inFlight.addAndGet(-currentDispatcher.close().size());
+    }
+  }
+
+  private void closeCapture()
+  {
+    AwsIoTHubCaptureWriter currentCapture = capture;
+    if (currentCapture != null)
+    {
+      capture = null;
+      currentCapture.close();
+    }
+  }
+
+  /**
+   * Reads the certificate and private key properties.
+   *
+   * @return <code>true</code> if either of them changed
+   */
+  private synchronized boolean applyCredentialProperties()
+  {
+    boolean credentialsChanged = false;
+
     // X.509 certificate
     if (hasProperty("X509certificate"))
     {
@@ -258,7 +1120,7 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
       if (!x509Certificate.equals(newX509Cert))
       {
         x509Certificate = newX509Cert;
-        somethingChanged = true;
+        credentialsChanged = true;
       }
     }
     // private key
@@ -268,38 +1130,81 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
       if (!privateKey.equals(newPrivateKey))
       {
         privateKey = newPrivateKey;
-        somethingChanged = true;
+        credentialsChanged = true;
       }
     }
-    // topic name
-    if (hasProperty("topic"))
+
+    return credentialsChanged;
+  }
+
+  /**
+   * The per-message work of the inbound path, from a payload handed over by
+   * the client to the byte listener.
+   *
+   * @param arrivalMillis
+   *          wall clock time the client handed the message over
+   * @param arrivalNanos
+   *          {@link System#nanoTime()} at the same moment
+   */
+  void deliver(String topic, byte[] payload, String clientId, long arrivalMillis, long arrivalNanos)
+  {
+    deliver(topic, payload, clientId, arrivalMillis, arrivalNanos, "");
+  }
+
+  /**
+   * @param channelId
+   *          the channel of the byte listener; adapters keep the partial
+   *          records of each channel apart, so concurrent deliveries need
+   *          channels of their own
+   */
+  void deliver(String topic, byte[] payload, String clientId, long arrivalMillis, long arrivalNanos, String channelId)
+  {
+    metrics.messageIn(payload != null ? payload.length : 0);
+    if (metrics.getTrace().isSampled(topic, thingName))
     {
-      String newTopicName = getProperty("topic").getValueAsString();
-      if (!topicName.equals(newTopicName))
+      metrics.getTrace().record("received", clientId, topic, payload);
+    }
+    AwsIoTHubCaptureWriter currentCapture = capture;
+    if (currentCapture != null)
+    {
+      currentCapture.record(arrivalNanos, topic, payload);
+    }
+    AwsIoTHubStateCache currentStateCache = stateCache;
+    if (currentStateCache != null && payload != null)
+    {
+      currentStateCache.record(dispatchKey.hash64(topic, payload), topic, payload, arrivalMillis);
+    }
+    long deviceMillis = AwsIoTHubTimestampExtractor.NONE;
+    AwsIoTHubTimestampExtractor extractor = timestampExtractor;
+    if (extractor != null)
+    {
+      deviceMillis = extractor.extract(payload);
+      if (deviceMillis == AwsIoTHubTimestampExtractor.NONE)
       {
-        topicName = newTopicName;
-        somethingChanged = true;
+        metrics.timestampMissing();
       }
     }
-
-    propertiesNeedUpdating = somethingChanged;
+    if (receive(payload, channelId))
+    {
+      metrics.messageDelivered(topic, arrivalMillis, arrivalNanos, deviceMillis);
+    }
   }
 
-  private void receive(byte[] bytes)
+  /**
+   * @return <code>true</code> if the message was handed to the byte listener
+   */
+  private boolean receive(byte[] bytes, String channelId)
   {
     if (bytes != null && bytes.length > 0)
     {
-      String str = new String(bytes);
-      str = str + '\n';
-      byte[] newBytes = str.getBytes();
-
-      ByteBuffer bb = ByteBuffer.allocate(newBytes.length);
+      ByteBuffer bb = frame(bytes);
       try
       {
-        bb.put(newBytes);
-        bb.flip();
-        byteListener.receive(bb, "");
+        long listenerStart = System.nanoTime();
+        byteListener.receive(bb, channelId);
+        metrics.listenerCalled(listenerStart);
         bb.clear();
+        return true;
       }
       catch (BufferOverflowException boe)
       {
@@ -310,10 +1215,30 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
       catch (Exception e)
       {
         LOGGER.error("UNEXPECTED_ERROR", e);
-        stop();
+        // called on a delivering thread: stopping from here would take the
+        // transport lock and wait for this very message, so only report the
+        // error and let the owner stop the transport
+        setErrorMessage(e.getMessage());
         setRunningState(RunningState.ERROR);
       }
     }
+    return false;
+  }
+
+  /**
+   * Frames a message payload for the byte listener: the payload as a new line
+   * terminated record in a buffer ready to be read.
+   */
+  static ByteBuffer frame(byte[] bytes)
+  {
+    String str = new String(bytes);
+    str = str + '\n';
+    byte[] newBytes = str.getBytes();
+
+    ByteBuffer bb = ByteBuffer.allocate(newBytes.length);
+    bb.put(newBytes);
+    bb.flip();
+    return bb;
   }
 
   /**
@@ -322,17 +1247,128 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
    */
   public final class AwsIoTTopicListener extends AWSIotTopic
   {
+    private final String clientId;
 
-    public AwsIoTTopicListener(String topic, AWSIotQos qos)
+    public AwsIoTTopicListener(String topic, AWSIotQos qos, String clientId)
     {
       super(topic, qos);
+      this.clientId = clientId;
     }
 
     @Override
     public void onMessage(AWSIotMessage message)
     {
-      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": subscribe success for: " + this.topic + " >>> " + message.getStringPayload());
-      receive(message.getPayload());
+      // taken first, so the latencies include everything done here
+      long arrivalNanos = System.nanoTime();
+      long arrivalMillis = System.currentTimeMillis();
+      String topic = message.getTopic();
+      byte[] payload = message.getPayload();
+      if (heldMessages != null && holdLiveMessage(() -> accept(topic, payload, clientId, arrivalMillis, arrivalNanos)))
+      {
+        return;
+      }
+      accept(topic, payload, clientId, arrivalMillis, arrivalNanos);
+    }
+  }
+
+  /**
+   * Everything done for a message handed over by the client: a chunk is held
+   * until its message is complete, the message is geofenced, downsampled and
+   * resequenced, then delivered on the calling thread (the resequencer thread
+   * for a resequenced message) or queued on the lane of its device.
+   */
+  void accept(String topic, byte[] payload, String clientId, long arrivalMillis, long arrivalNanos)
+  {
+    AwsIoTHubChunkAssembler currentChunkAssembler = chunkAssembler;
+    if (currentChunkAssembler != null && AwsIoTHubChunks.isChunk(payload))
+    {
+      byte[] message = accepting ? currentChunkAssembler.offer(topic, payload, arrivalMillis) : null;
+      if (message != null)
+      {
+        metrics.messageChunked();
+        accept(topic, message, clientId, arrivalMillis, arrivalNanos);
+      }
+      return;
+    }
+    inFlight.incrementAndGet();
+    if (!accepting)
+    {
+      inFlight.decrementAndGet();
+      return;
+    }
+    AwsIoTHubGeofence currentGeofence = geofence;
+    if (currentGeofence != null && !currentGeofence.admit(payload))
+    {
+      metrics.messageOutsideGeofence();
+      inFlight.decrementAndGet();
+      return;
+    }
+    AwsIoTHubDownsampler currentDownsampler = downsampler;
+    if (currentDownsampler != null && !currentDownsampler.admit(dispatchKey.hash64(topic, payload), payload, arrivalMillis))
+    {
+      metrics.messageSuppressed();
+      inFlight.decrementAndGet();
+      return;
+    }
+    AwsIoTHubResequencer currentResequencer = resequencer;
+    AwsIoTHubTimestampExtractor extractor = timestampExtractor;
+    long deviceMillis = (currentResequencer != null && extractor != null) ? extractor.extract(payload) : AwsIoTHubTimestampExtractor.NONE;
+    if (deviceMillis != AwsIoTHubTimestampExtractor.NONE)
+    {
+      if (!currentResequencer.offer(dispatchKey.hash64(topic, payload), deviceMillis, arrivalMillis, () -> dispatch(topic, payload, clientId, arrivalMillis, arrivalNanos)))
+      {
+        inFlight.decrementAndGet();
+      }
+      return;
+    }
+    dispatch(topic, payload, clientId, arrivalMillis, arrivalNanos);
+  }
+
+  /**
+   * Delivers an accepted message on the calling thread or queues it on the
+   * lane of its device.
+   */
+  private void dispatch(String topic, byte[] payload, String clientId, long arrivalMillis, long arrivalNanos)
+  {
+    AwsIoTHubDispatcher currentDispatcher = dispatcher;
+    if (currentDispatcher == null)
+    {
+      try
+      {
+        deliver(topic, payload, clientId, arrivalMillis, arrivalNanos);
+      }
+      finally
+      {
+        inFlight.decrementAndGet();
+      }
+      return;
+    }
+
+    // hand over to the lane of the device, which delivers in order
+    int lane = currentDispatcher.laneOf(dispatchKey.hash(topic, payload));
+    String channelId = currentDispatcher.getChannelId(lane);
+    Object key = currentDispatcher.isConflating() ? dispatchKey.extract(topic, payload) : null;
+    boolean queued = false;
+    try
+    {
+      queued = currentDispatcher.dispatch(lane, key, () ->
+      {
+        try
+        {
+          deliver(topic, payload, clientId, arrivalMillis, arrivalNanos, channelId);
+        }
+        finally
+        {
+          inFlight.decrementAndGet();
+        }
+      });
+    }
+    finally
+    {
+      if (!queued)
+      {
+        inFlight.decrementAndGet();
+      }
     }
   }
 
@@ -342,10 +1378,19 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
     return errorMessage;
   }
 
+  /**
+   * Only QoS 1 subscriptions are queued by the broker for a persistent session.
+   */
+  private AWSIotQos getSubscriptionQos()
+  {
+    return persistentSession ? AWSIotQos.QOS1 : AWSIotQos.QOS0;
+  }
+
   @Override
   public boolean isClusterable()
   {
-    return false;
+    // every node derives a client id and session of its own
+    return persistentSession;
   }
 
 }
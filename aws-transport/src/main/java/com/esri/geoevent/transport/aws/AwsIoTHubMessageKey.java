@@ -0,0 +1,210 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Identifies the device (or track) a message belongs to, cheaply: by its
+ * topic, by one segment of its topic or by the value of a payload field
+ * found without parsing the payload. Messages without the segment or field
+ * fall back to their topic.
+ */
+public class AwsIoTHubMessageKey
+{
+  public enum Type
+  {
+    TOPIC, TOPIC_SEGMENT, PAYLOAD_FIELD
+  };
+
+  /** see {@link #keyHash64(String, byte[])} */
+  public static final long            MISSING    = 0L;
+
+  private static final long           FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long           FNV_PRIME  = 0x100000001b3L;
+
+  private final Type                  type;
+  private final int                   segment;
+  private final AwsIoTHubFieldLocator locator;
+
+  /**
+   * @param key
+   *          the 0-based index of the topic segment, or the name of the
+   *          payload field; not used for {@link Type#TOPIC}
+   */
+  public AwsIoTHubMessageKey(Type type, String key)
+  {
+    this.type = type;
+    this.segment = (type == Type.TOPIC_SEGMENT) ? Integer.parseInt(key.trim()) : -1;
+    this.locator = (type == Type.PAYLOAD_FIELD) ? new AwsIoTHubFieldLocator(key.trim()) : null;
+  }
+
+  /**
+   * Reads the key type and key from connector properties.
+   *
+   * @return the key, or a topic key if the properties are not valid
+   */
+  public static AwsIoTHubMessageKey parse(String type, String key)
+  {
+    try
+    {
+      Type keyType = Type.valueOf(type.trim());
+      return (keyType == Type.TOPIC || key == null || key.trim().isEmpty()) ? new AwsIoTHubMessageKey(Type.TOPIC, null) : new AwsIoTHubMessageKey(keyType, key);
+    }
+    catch (RuntimeException e)
+    {
+      return new AwsIoTHubMessageKey(Type.TOPIC, null);
+    }
+  }
+
+  /**
+   * @return a hash of the key; messages with equal keys have equal hashes.
+   *         Does not allocate.
+   */
+  public int hash(String topic, byte[] payload)
+  {
+    long hash = hash64(topic, payload);
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  /**
+   * @return a 64-bit (FNV-1a) hash of the key, wide enough to stand for the
+   *         key in tables of many devices. Does not allocate.
+   */
+  public long hash64(String topic, byte[] payload)
+  {
+    long hash = keyHash64(topic, payload);
+    return (hash != MISSING) ? hash : topicHash64(topic);
+  }
+
+  /**
+   * @return the 64-bit hash of the key like {@link #hash64(String, byte[])},
+   *         or {@link #MISSING} if the message has no segment or field to
+   *         key it by, instead of falling back to the topic
+   */
+  public long keyHash64(String topic, byte[] payload)
+  {
+    long hash = FNV_OFFSET;
+    switch (type)
+    {
+      case TOPIC_SEGMENT:
+        int start = segmentStart(topic);
+        if (start >= 0)
+        {
+          for (int i = start; i < topic.length() && topic.charAt(i) != '/'; i++)
+          {
+            hash = (hash ^ topic.charAt(i)) * FNV_PRIME;
+          }
+          return hash;
+        }
+        return MISSING;
+      case PAYLOAD_FIELD:
+        int at = locator.locate(payload);
+        if (at >= 0)
+        {
+          int end = AwsIoTHubFieldLocator.valueEnd(payload, at);
+          for (int i = at; i < end; i++)
+          {
+            hash = (hash ^ (payload[i] & 0xFF)) * FNV_PRIME;
+          }
+          return hash;
+        }
+        return MISSING;
+      default:
+        return topicHash64(topic);
+    }
+  }
+
+  private static long topicHash64(String topic)
+  {
+    long hash = FNV_OFFSET;
+    for (int i = 0; i < topic.length(); i++)
+    {
+      hash = (hash ^ topic.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * @return the key itself; string values include their quotes
+   */
+  public String extract(String topic, byte[] payload)
+  {
+    switch (type)
+    {
+      case TOPIC_SEGMENT:
+        int start = segmentStart(topic);
+        if (start >= 0)
+        {
+          int end = topic.indexOf('/', start);
+          return topic.substring(start, (end >= 0) ? end : topic.length());
+        }
+        break;
+      case PAYLOAD_FIELD:
+        int at = locator.locate(payload);
+        if (at >= 0)
+        {
+          return new String(payload, at, AwsIoTHubFieldLocator.valueEnd(payload, at) - at, StandardCharsets.UTF_8);
+        }
+        break;
+      default:
+        break;
+    }
+    return topic;
+  }
+
+  @Override
+  public String toString()
+  {
+    switch (type)
+    {
+      case TOPIC_SEGMENT:
+        return type + ":" + segment;
+      case PAYLOAD_FIELD:
+        return type + ":" + locator.getFieldName();
+      default:
+        return type.toString();
+    }
+  }
+
+  /**
+   * @return the index of the first character of the segment, or -1 if the
+   *         topic has fewer segments
+   */
+  private int segmentStart(String topic)
+  {
+    int start = 0;
+    for (int n = 0; n < segment; n++)
+    {
+      start = topic.indexOf('/', start) + 1;
+      if (start == 0)
+      {
+        return -1;
+      }
+    }
+    return start;
+  }
+}
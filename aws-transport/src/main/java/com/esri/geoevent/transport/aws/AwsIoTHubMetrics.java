@@ -0,0 +1,551 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * Per-transport counters and latency histograms, registered as an MXBean
+ * under <code>com.esri.geoevent.transport.aws</code> while the transport is
+ * started, together with the payload trace. The counters are striped
+ * ({@link LongAdder}) so the message paths of concurrent client threads do
+ * not contend on them.
+ */
+public class AwsIoTHubMetrics implements AwsIoTHubMetricsMXBean
+{
+  // logger
+  private static final BundleLogger       LOGGER                  = BundleLoggerFactory.getLogger(AwsIoTHubMetrics.class);
+
+  private static final String             DOMAIN                  = "com.esri.geoevent.transport.aws";
+  private static final AtomicInteger      INSTANCES               = new AtomicInteger();
+  // topics beyond this share one entry, so wildcard subscriptions over many
+  // devices cannot grow the maps without bound
+  private static final int                MAX_TOPICS              = 100;
+  private static final String             OTHER_TOPICS            = "(other)";
+
+  private final String                    type;
+  private final int                       instance                = INSTANCES.incrementAndGet();
+  private final IntSupplier               queueDepth;
+  private final Supplier<?>               connectionState;
+  private ObjectName                      objectName              = null;
+
+  private final LongAdder                 messagesIn              = new LongAdder();
+  private final LongAdder                 bytesIn                 = new LongAdder();
+  private final LongAdder                 messagesOut             = new LongAdder();
+  private final LongAdder                 bytesOut                = new LongAdder();
+  private final LongAdder                 publishSuccesses        = new LongAdder();
+  private final LongAdder                 publishFailures         = new LongAdder();
+  private final LongAdder                 publishTimeouts         = new LongAdder();
+  private final LongAdder                 connects                = new LongAdder();
+  private final LongAdder                 connectFailures         = new LongAdder();
+  private final LongAdder                 connectionLosses        = new LongAdder();
+  private final AwsIoTHubHistogram        publishLatency          = new AwsIoTHubHistogram();
+  private final AwsIoTHubHistogram        connectTime             = new AwsIoTHubHistogram();
+  private final AwsIoTHubHistogram        listenerTime            = new AwsIoTHubHistogram();
+  private final AwsIoTHubHistogram        priorityLatency         = new AwsIoTHubHistogram();
+  private final LongAdder                 missingTimestamps       = new LongAdder();
+  private final LongAdder                 messagesConflated       = new LongAdder();
+  private final LongAdder                 messagesSuppressed      = new LongAdder();
+  private final LongAdder                 messagesOutsideGeofence = new LongAdder();
+  private final LongAdder                 messagesLate            = new LongAdder();
+  private final LongAdder                 messagesThrottled       = new LongAdder();
+  private final LongAdder                 messagesChunked         = new LongAdder();
+  private final LongAdder                 chunksDropped           = new LongAdder();
+  private final Map<String, TopicLatency> topicLatencies          = new ConcurrentHashMap<String, TopicLatency>();
+  private final AwsIoTHubTrace            trace                   = new AwsIoTHubTrace();
+  private volatile AwsIoTHubStateCache    stateCache              = null;
+  private volatile IntSupplier            stateReplay             = null;
+
+  /**
+   * @param type
+   *          the MBean type, e.g. <code>Inbound</code>
+   * @param queueDepth
+   *          reports the number of messages waiting in the transport
+   * @param connectionState
+   *          reports the state of the connection
+   */
+  public AwsIoTHubMetrics(String type, IntSupplier queueDepth, Supplier<?> connectionState)
+  {
+    this.type = type;
+    this.queueDepth = queueDepth;
+    this.connectionState = connectionState;
+  }
+
+  /**
+   * Registers the MXBean; the topic is part of the name to tell the
+   * connectors apart.
+   */
+  public synchronized void register(String topic)
+  {
+    unregister();
+    try
+    {
+      ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",topic=" + ObjectName.quote(topic) + ",instance=" + instance);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      objectName = name;
+    }
+    catch (Exception e)
+    {
+      LOGGER.warn("METRICS_REGISTRATION_ERROR", e);
+    }
+  }
+
+  public synchronized void unregister()
+  {
+    if (objectName != null)
+    {
+      try
+      {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName))
+        {
+          server.unregisterMBean(objectName);
+        }
+      }
+      catch (Exception e)
+      {
+        LOGGER.warn("METRICS_REGISTRATION_ERROR", e);
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * @return the number telling the transports of this type apart
+   */
+  public int getInstance()
+  {
+    return instance;
+  }
+
+  public AwsIoTHubTrace getTrace()
+  {
+    return trace;
+  }
+
+  /**
+   * @param replay
+   *          delivers the states again and returns their number
+   */
+  public void setStateCache(AwsIoTHubStateCache stateCache, IntSupplier replay)
+  {
+    this.stateCache = stateCache;
+    this.stateReplay = replay;
+  }
+
+  public void messageIn(int bytes)
+  {
+    messagesIn.increment();
+    bytesIn.add(bytes);
+  }
+
+  public void messageOut(int bytes)
+  {
+    messagesOut.increment();
+    bytesOut.add(bytes);
+  }
+
+  public void publishSucceeded(long startNanos)
+  {
+    publishSuccesses.increment();
+    publishLatency.record(System.nanoTime() - startNanos);
+  }
+
+  public void publishFailed(long startNanos)
+  {
+    publishFailures.increment();
+    publishLatency.record(System.nanoTime() - startNanos);
+  }
+
+  public void publishTimedOut(long startNanos)
+  {
+    publishTimeouts.increment();
+    publishLatency.record(System.nanoTime() - startNanos);
+  }
+
+  public void connected(long startNanos)
+  {
+    connects.increment();
+    connectTime.record(System.nanoTime() - startNanos);
+  }
+
+  public void connectFailed()
+  {
+    connectFailures.increment();
+  }
+
+  public void connectionLost()
+  {
+    connectionLosses.increment();
+  }
+
+  public void listenerCalled(long startNanos)
+  {
+    listenerTime.record(System.nanoTime() - startNanos);
+  }
+
+  public void priorityPublished(long createNanos)
+  {
+    priorityLatency.record(System.nanoTime() - createNanos);
+  }
+
+  /**
+   * Records the latencies of a message handed to the byte listener.
+   *
+   * @param arrivalMillis
+   *          wall clock time the client handed the message over
+   * @param arrivalNanos
+   *          {@link System#nanoTime()} at the same moment
+   * @param deviceMillis
+   *          the device timestamp of the message, or
+   *          {@link AwsIoTHubTimestampExtractor#NONE}
+   */
+  public void messageDelivered(String topic, long arrivalMillis, long arrivalNanos, long deviceMillis)
+  {
+    TopicLatency latency = getTopicLatency(topic);
+    latency.delivery.record(System.nanoTime() - arrivalNanos);
+    if (deviceMillis != AwsIoTHubTimestampExtractor.NONE)
+    {
+      // device clocks running ahead are recorded as 0
+      latency.broker.record(TimeUnit.MILLISECONDS.toNanos(arrivalMillis - deviceMillis));
+    }
+  }
+
+  public void messageConflated()
+  {
+    messagesConflated.increment();
+  }
+
+  public void messageSuppressed()
+  {
+    messagesSuppressed.increment();
+  }
+
+  public void messageOutsideGeofence()
+  {
+    messagesOutsideGeofence.increment();
+  }
+
+  public void messageLate()
+  {
+    messagesLate.increment();
+  }
+
+  public void messageThrottled()
+  {
+    messagesThrottled.increment();
+  }
+
+  public void messageChunked()
+  {
+    messagesChunked.increment();
+  }
+
+  public void chunksDropped(int chunks)
+  {
+    chunksDropped.add(chunks);
+  }
+
+  public void timestampMissing()
+  {
+    missingTimestamps.increment();
+  }
+
+  private TopicLatency getTopicLatency(String topic)
+  {
+    TopicLatency latency = topicLatencies.get(topic);
+    if (latency == null)
+    {
+      String key = (topicLatencies.size() < MAX_TOPICS) ? topic : OTHER_TOPICS;
+      latency = topicLatencies.computeIfAbsent(key, k -> new TopicLatency());
+    }
+    return latency;
+  }
+
+  @Override
+  public long getMessagesIn()
+  {
+    return messagesIn.sum();
+  }
+
+  @Override
+  public long getBytesIn()
+  {
+    return bytesIn.sum();
+  }
+
+  @Override
+  public long getMessagesOut()
+  {
+    return messagesOut.sum();
+  }
+
+  @Override
+  public long getBytesOut()
+  {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public long getPublishSuccesses()
+  {
+    return publishSuccesses.sum();
+  }
+
+  @Override
+  public long getPublishFailures()
+  {
+    return publishFailures.sum();
+  }
+
+  @Override
+  public long getPublishTimeouts()
+  {
+    return publishTimeouts.sum();
+  }
+
+  @Override
+  public long getConnects()
+  {
+    return connects.sum();
+  }
+
+  @Override
+  public long getConnectFailures()
+  {
+    return connectFailures.sum();
+  }
+
+  @Override
+  public long getConnectionLosses()
+  {
+    return connectionLosses.sum();
+  }
+
+  @Override
+  public int getQueueDepth()
+  {
+    return queueDepth.getAsInt();
+  }
+
+  @Override
+  public String getConnectionState()
+  {
+    return String.valueOf(connectionState.get());
+  }
+
+  @Override
+  public AwsIoTHubHistogram.Snapshot getPublishLatency()
+  {
+    return publishLatency.getSnapshot();
+  }
+
+  @Override
+  public AwsIoTHubHistogram.Snapshot getConnectTime()
+  {
+    return connectTime.getSnapshot();
+  }
+
+  @Override
+  public AwsIoTHubHistogram.Snapshot getListenerTime()
+  {
+    return listenerTime.getSnapshot();
+  }
+
+  @Override
+  public AwsIoTHubHistogram.Snapshot getPriorityLatency()
+  {
+    return priorityLatency.getSnapshot();
+  }
+
+  @Override
+  public long getMessagesConflated()
+  {
+    return messagesConflated.sum();
+  }
+
+  @Override
+  public long getMessagesSuppressed()
+  {
+    return messagesSuppressed.sum();
+  }
+
+  @Override
+  public long getMessagesOutsideGeofence()
+  {
+    return messagesOutsideGeofence.sum();
+  }
+
+  @Override
+  public long getMessagesLate()
+  {
+    return messagesLate.sum();
+  }
+
+  @Override
+  public long getMessagesThrottled()
+  {
+    return messagesThrottled.sum();
+  }
+
+  @Override
+  public long getMessagesChunked()
+  {
+    return messagesChunked.sum();
+  }
+
+  @Override
+  public long getChunksDropped()
+  {
+    return chunksDropped.sum();
+  }
+
+  @Override
+  public long getMissingTimestamps()
+  {
+    return missingTimestamps.sum();
+  }
+
+  @Override
+  public Map<String, AwsIoTHubHistogram.Snapshot> getBrokerLatency()
+  {
+    Map<String, AwsIoTHubHistogram.Snapshot> snapshots = new TreeMap<String, AwsIoTHubHistogram.Snapshot>();
+    for (Map.Entry<String, TopicLatency> entry : topicLatencies.entrySet())
+    {
+      if (entry.getValue().broker.getCount() > 0)
+      {
+        snapshots.put(entry.getKey(), entry.getValue().broker.getSnapshot());
+      }
+    }
+    return snapshots;
+  }
+
+  @Override
+  public Map<String, AwsIoTHubHistogram.Snapshot> getDeliveryLatency()
+  {
+    Map<String, AwsIoTHubHistogram.Snapshot> snapshots = new TreeMap<String, AwsIoTHubHistogram.Snapshot>();
+    for (Map.Entry<String, TopicLatency> entry : topicLatencies.entrySet())
+    {
+      snapshots.put(entry.getKey(), entry.getValue().delivery.getSnapshot());
+    }
+    return snapshots;
+  }
+
+  @Override
+  public void reset()
+  {
+    messagesIn.reset();
+    bytesIn.reset();
+    messagesOut.reset();
+    bytesOut.reset();
+    publishSuccesses.reset();
+    publishFailures.reset();
+    publishTimeouts.reset();
+    connects.reset();
+    connectFailures.reset();
+    connectionLosses.reset();
+    publishLatency.reset();
+    connectTime.reset();
+    listenerTime.reset();
+    priorityLatency.reset();
+    missingTimestamps.reset();
+    messagesConflated.reset();
+    messagesSuppressed.reset();
+    messagesOutsideGeofence.reset();
+    messagesLate.reset();
+    messagesThrottled.reset();
+    messagesChunked.reset();
+    chunksDropped.reset();
+    topicLatencies.clear();
+  }
+
+  @Override
+  public String[] dumpTrace()
+  {
+    List<String> lines = trace.dump();
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  @Override
+  public void clearTrace()
+  {
+    trace.clear();
+  }
+
+  @Override
+  public int getStates()
+  {
+    AwsIoTHubStateCache cache = stateCache;
+    return (cache != null) ? cache.getSize() : 0;
+  }
+
+  @Override
+  public long getStateBytes()
+  {
+    AwsIoTHubStateCache cache = stateCache;
+    return (cache != null) ? cache.getBytes() : 0L;
+  }
+
+  @Override
+  public long getStatesDropped()
+  {
+    AwsIoTHubStateCache cache = stateCache;
+    return (cache != null) ? cache.getDropped() : 0L;
+  }
+
+  @Override
+  public int replayStates()
+  {
+    IntSupplier replay = stateReplay;
+    return (replay != null) ? replay.getAsInt() : 0;
+  }
+
+  /**
+   * The latencies of the messages of one topic.
+   */
+  private static class TopicLatency
+  {
+    // device timestamp to the arrival at the transport
+    private final AwsIoTHubHistogram broker   = new AwsIoTHubHistogram();
+    // arrival at the transport to the byte listener returning
+    private final AwsIoTHubHistogram delivery = new AwsIoTHubHistogram();
+  }
+}
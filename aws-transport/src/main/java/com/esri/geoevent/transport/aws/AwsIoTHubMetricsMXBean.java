@@ -0,0 +1,169 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.Map;
+
+/**
+ * The JMX management interface of {@link AwsIoTHubMetrics}. Times are in
+ * microseconds.
+ */
+public interface AwsIoTHubMetricsMXBean
+{
+  long getMessagesIn();
+
+  long getBytesIn();
+
+  long getMessagesOut();
+
+  long getBytesOut();
+
+  long getPublishSuccesses();
+
+  long getPublishFailures();
+
+  long getPublishTimeouts();
+
+  long getConnects();
+
+  long getConnectFailures();
+
+  long getConnectionLosses();
+
+  int getQueueDepth();
+
+  String getConnectionState();
+
+  AwsIoTHubHistogram.Snapshot getPublishLatency();
+
+  AwsIoTHubHistogram.Snapshot getConnectTime();
+
+  AwsIoTHubHistogram.Snapshot getListenerTime();
+
+  /**
+   * @return the time from a priority event reaching the outbound transport to
+   *         its publish completing
+   */
+  AwsIoTHubHistogram.Snapshot getPriorityLatency();
+
+  /**
+   * @return the number of received messages dropped because a newer message
+   *         of the same device replaced them before they were delivered
+   */
+  long getMessagesConflated();
+
+  /**
+   * @return the number of messages dropped because their track did not move
+   *         or change enough: received messages dropped by the downsampling,
+   *         or events not published by the delta suppression
+   */
+  long getMessagesSuppressed();
+
+  /**
+   * @return the number of received messages dropped because they were located
+   *         outside the geofence polygons
+   */
+  long getMessagesOutsideGeofence();
+
+  /**
+   * @return the number of received messages older than a message of the same
+   *         device already delivered by the resequencing; they are dropped
+   *         unless late messages are kept
+   */
+  long getMessagesLate();
+
+  /**
+   * @return the number of events not published because they exceeded the
+   *         publish rate limits of all the connections
+   */
+  long getMessagesThrottled();
+
+  /**
+   * @return the number of payloads over the size limit published as chunks,
+   *         or received as chunks and reassembled
+   */
+  long getMessagesChunked();
+
+  /**
+   * @return the number of received chunks dropped because their payload was
+   *         not complete in time, did not fit in the reassembly memory or the
+   *         chunk was malformed
+   */
+  long getChunksDropped();
+
+  /**
+   * @return the number of received messages without a device timestamp,
+   *         while a timestamp field is configured
+   */
+  long getMissingTimestamps();
+
+  /**
+   * @return per topic, the latency from the device timestamp of a message to
+   *         its arrival at the transport, i.e. the time spent in AWS and on
+   *         the network; includes the clock offset of the device
+   */
+  Map<String, AwsIoTHubHistogram.Snapshot> getBrokerLatency();
+
+  /**
+   * @return per topic, the latency from the arrival of a message at the
+   *         transport to the byte listener returning, i.e. the time spent in
+   *         GeoEvent
+   */
+  Map<String, AwsIoTHubHistogram.Snapshot> getDeliveryLatency();
+
+  void reset();
+
+  /**
+   * @return the payloads captured by the trace, oldest first
+   */
+  String[] dumpTrace();
+
+  void clearTrace();
+
+  /**
+   * @return the number of devices in the last known state cache
+   */
+  int getStates();
+
+  /**
+   * @return the bytes taken by the last known states
+   */
+  long getStateBytes();
+
+  /**
+   * @return the number of states dropped from the cache to make room for
+   *         newer ones
+   */
+  long getStatesDropped();
+
+  /**
+   * Delivers the last known state of every device to the byte listener
+   * again, e.g. for a consumer that restarted.
+   *
+   * @return the number of states delivered
+   */
+  int replayStates();
+}
@@ -24,49 +24,124 @@
 
 package com.esri.geoevent.transport.aws;
 
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.amazonaws.services.iot.client.AWSIotException;
 import com.amazonaws.services.iot.client.AWSIotMessage;
-import com.amazonaws.services.iot.client.AWSIotMqttClient;
 import com.amazonaws.services.iot.client.AWSIotQos;
-import com.esri.geoevent.transport.aws.AwsIoTHubUtil.KeyStorePasswordPair;
 import com.esri.ges.core.component.ComponentException;
 import com.esri.ges.core.component.RunningException;
 import com.esri.ges.core.component.RunningState;
+import com.esri.ges.core.geoevent.GeoEvent;
+import com.esri.ges.core.geoevent.GeoEventDefinition;
 import com.esri.ges.framework.i18n.BundleLogger;
 import com.esri.ges.framework.i18n.BundleLoggerFactory;
+import com.esri.ges.transport.GeoEventAwareTransport;
 import com.esri.ges.transport.OutboundTransportBase;
 import com.esri.ges.transport.TransportDefinition;
+import com.esri.ges.util.Converter;
 import com.esri.ges.util.Validator;
 
-public class AwsIoTHubOutboundTransport extends OutboundTransportBase
+public class AwsIoTHubOutboundTransport extends OutboundTransportBase implements GeoEventAwareTransport, AwsIoTHubReconnector.Callback
 {
   // logger
-  private static final BundleLogger LOGGER                 = BundleLoggerFactory.getLogger(AwsIoTHubOutboundTransport.class);
+  private static final BundleLogger             LOGGER                   = BundleLoggerFactory.getLogger(AwsIoTHubOutboundTransport.class);
 
-  // transport properties
-  private String                    iotServiceType         = "";
-  private String                    thingName              = "";
+  // spill connections unused for this long are closed
+  private static final long                     SPILL_IDLE_SECONDS       = 60L;
+  // at most one spill connection is opened in this time
+  private static final long                     SPILL_COOLDOWN_NANOS     = TimeUnit.SECONDS.toNanos(5);
+  private static final long                     SPILL_MIN_WAIT_NANOS     = TimeUnit.MILLISECONDS.toNanos(1);
+  // lost pool connections are reopened this often
+  private static final long                     POOL_RETRY_SECONDS       = 5L;
+  private static final int                      PRIORITY_LANE_CAPACITY   = 256;
+  private static final int                      BULK_LANE_CAPACITY       = 1024;
+  // the chunks of a payload wait for fewer publishes than this in flight, the
+  // client refuses more than 10
+  private static final int                      CHUNK_WINDOW             = 8;
 
-  private String                    clientEndpoint         = "";
-  private String                    x509Certificate        = "";
-  private String                    privateKey             = "";
-  private String                    topicName              = "";
+  // transport properties
+  private String                                iotServiceType           = "";
+  private String                                thingName                = "";
 
-  private volatile boolean          propertiesNeedUpdating = false;
+  private String                                clientEndpoint           = "";
+  private String                                x509Certificate          = "";
+  private String                                privateKey               = "";
+  private volatile String                       topicName                = "";
+  private int                                   certificateCheckInterval = 60;
+  private boolean                               persistentSession        = false;
+  private String                                clientIdPrefix           = "";
+  private int                                   drainTimeout             = 5000;
+  private volatile double                       rateLimitMessages        = 0.0;
+  private volatile int                          rateLimitKilobytes       = 0;
+  private volatile AwsIoTHubRateGovernor.Policy ratePolicy               = AwsIoTHubRateGovernor.Policy.SHED;
+  private volatile int                          rateQueueTimeout         = 1000;
+  private volatile int                          maxConnections           = 1;
+  private int                                   connectionPoolSize       = 1;
+  // events selected by the field values or the GeoEvent definitions go first
+  private volatile AwsIoTHubFieldLocator        priorityField            = null;
+  private volatile Set<String>                  priorityValues           = Collections.emptySet();
+  private volatile Set<String>                  priorityDefinitions      = Collections.emptySet();
+  private volatile AWSIotQos                    priorityQos              = AWSIotQos.QOS1;
+  private volatile double                       priorityReserve          = 0.2;
 
-  private boolean                   isEventHubType         = true;
+  private volatile boolean                      isEventHubType           = true;
 
-  // device id client and receiver
-  private AwsIoTHubDevice           geIoTDevice            = null;
-  // event hub client
-  private String                    clientId               = null;
-  private AWSIotMqttClient          awsClient              = null;
-  private AWSIotMessage             iotMessage             = null;
+  // aws hub connection, device and client
+  private volatile AwsIoTHubConnection          connection               = null;
+  // opened while the publishes exceed the rate limits of the connection
+  private final List<AwsIoTHubConnection>       spillConnections         = new CopyOnWriteArrayList<AwsIoTHubConnection>();
+  private final AtomicBoolean                   spillOpening             = new AtomicBoolean();
+  private volatile long                         spillRequestNanos        = 0L;
+  private int                                   spillCount               = 0;
+  private ScheduledFuture<?>                    spillSweeper             = null;
+  // the pool connections by slot, the main connection in slot 0; null for a
+  // connection that is down
+  private AwsIoTHubConnection[]                 poolSlots                = new AwsIoTHubConnection[0];
+  // routes the events by key while the pool has more than one slot
+  private volatile AwsIoTHubConnectionRing      ring                     = null;
+  private ScheduledFuture<?>                    poolKeeper               = null;
+  private AwsIoTHubCertificateWatcher           certificateWatcher       = null;
+  private final AwsIoTHubReconnector            reconnector              = new AwsIoTHubReconnector(this);
+  // publishes and shadow updates still waiting for their callback
+  private final AtomicInteger                   pendingPublishes         = new AtomicInteger();
+  // signalled by the completed publishes while chunks wait for the window
+  private final ReentrantLock                   windowLock               = new ReentrantLock();
+  private final Condition                       windowOpen               = windowLock.newCondition();
+  private volatile int                          windowWaiters            = 0;
+  private volatile boolean                      accepting                = false;
+  private AwsIoTHubMessageKey                   publishKey               = AwsIoTHubMessageKey.parse("PAYLOAD_FIELD", "TRACK_ID");
+  // an event without the publish key was logged since the key was set
+  private final AtomicBoolean                   publishKeyMissing        = new AtomicBoolean();
+  private volatile AwsIoTHubDownsampler         deltaFilter              = null;
+  // the publisher of the priority and bulk events; null while no event is
+  // selected as priority, the events are published by the caller then
+  private volatile AwsIoTHubPublishLanes        lanes                    = null;
+  // the topics of the events by their content; null to publish all of them
+  // on the topic property
+  private volatile AwsIoTHubTopicRules          topicRules               = null;
+  private String                                topicRulesText           = "";
+  private AwsIoTHubTopicRules.Mode              topicRouting             = AwsIoTHubTopicRules.Mode.FIRST;
+  // payloads larger than this are published as chunks; 0 to never split
+  private volatile int                          maxPayloadSize           = 128 * 1024;
+  // random per transport so the chunk ids of the senders on a topic differ
+  private final AtomicLong                      chunkIds                 = new AtomicLong(ThreadLocalRandom.current().nextLong());
+  private final AwsIoTHubMetrics                metrics                  = new AwsIoTHubMetrics("Outbound", pendingPublishes::get, reconnector::getState);
 
   public enum AwsIoTServiceType
   {
@@ -84,9 +159,9 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
     try
     {
       setRunningState(RunningState.STARTING);
-      connectToAwsEventHub();
-      setRunningState(RunningState.STARTED);
-
+      metrics.register(hasProperty("topic") ? getProperty("topic").getValueAsString() : topicName);
+      // connect asynchronously on the shared scheduler, retrying with backoff
+      reconnector.start();
     }
     catch (Exception e)
     {
@@ -96,9 +171,110 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
     }
   }
 
-  private void applyProperties()
+  @Override
+  public synchronized void connect() throws AWSIotException
+  {
+    // stopped while this connect was waiting to run
+    if (!reconnector.isActive())
+    {
+      return;
+    }
+
+    // every track publishes its next event on a new connection
+    closeDeltaFilter();
+    applyProperties();
+    cleanup();
+
+    accepting = true;
+    long connectStart = System.nanoTime();
+    connection = createConnection();
+    metrics.connected(connectStart);
+
+    // watch the PEM files to rotate the credentials in place
+    certificateWatcher = new AwsIoTHubCertificateWatcher(x509Certificate, privateKey, this::replaceConnection);
+    certificateWatcher.start(certificateCheckInterval);
+    spillSweeper = AwsIoTHubScheduler.getExecutor().scheduleWithFixedDelay(this::closeIdleSpillConnections, SPILL_IDLE_SECONDS, SPILL_IDLE_SECONDS, TimeUnit.SECONDS);
+    openPool();
+  }
+
+  @Override
+  public synchronized void onConnected()
+  {
+    if (reconnector.isActive())
+    {
+      setErrorMessage(null);
+      setRunningState(RunningState.STARTED);
+    }
+  }
+
+  @Override
+  public synchronized void onConnectFailed(Exception error, long retryDelay)
+  {
+    if (reconnector.isActive())
+    {
+      LOGGER.error("INIT_ERROR", error);
+      metrics.connectFailed();
+      setErrorMessage(LOGGER.translate("CONNECT_RETRY", error.getMessage(), retryDelay / 1000));
+      setRunningState(RunningState.ERROR);
+    }
+  }
+
+  /**
+   * The client gave up reconnecting on its own (e.g. a longer outage); keep
+   * trying through the reconnector with backoff.
+   */
+  private synchronized void onConnectionLost(AwsIoTHubConnection lostConnection)
+  {
+    // a spill connection is opened again when it is needed
+    if (spillConnections.remove(lostConnection))
+    {
+      LOGGER.warn("CONNECTION_LOST", lostConnection.getClientId());
+      lostConnection.close();
+      return;
+    }
+    // the main connection is slot 0 of a pool, and is lost like any other
+    // slot while a connection of the pool is left
+    boolean pooled = false;
+    AwsIoTHubConnectionRing currentRing = ring;
+    for (int slot = 0; slot < poolSlots.length && currentRing != null; slot++)
+    {
+      if (poolSlots[slot] == lostConnection)
+      {
+        pooled = true;
+        if (currentRing.size() > 1)
+        {
+          // its events move to the other connections until it is reopened
+          LOGGER.warn("POOL_CONNECTION_LOST", lostConnection.getClientId(), slot);
+          metrics.connectionLost();
+          poolSlots[slot] = null;
+          if (slot == 0)
+          {
+            connection = null;
+          }
+          rebuildRing();
+          lostConnection.close();
+          return;
+        }
+      }
+    }
+    // the last live connection: connect again from scratch
+    if ((lostConnection == connection || pooled) && reconnector.isActive())
+    {
+      LOGGER.warn("CONNECTION_LOST", lostConnection.getClientId());
+      metrics.connectionLost();
+      setErrorMessage(LOGGER.translate("CONNECTION_LOST", lostConnection.getClientId()));
+      setRunningState(RunningState.ERROR);
+      reconnector.reconnect();
+    }
+  }
+
+  /**
+   * Reads the connector properties and works out what has to be redone on a
+   * live connection for the changes to take effect.
+   */
+  private synchronized EnumSet<AwsIoTHubReconfiguration> applyProperties()
   {
-    boolean somethingChanged = false;
+    EnumSet<AwsIoTHubReconfiguration> changes = EnumSet.noneOf(AwsIoTHubReconfiguration.class);
 
     if (hasProperty("iotservicetype"))
     {
@@ -107,7 +283,9 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
       if (!iotServiceType.equals(newIotServiceType))
       {
         iotServiceType = newIotServiceType;
-        somethingChanged = true;
+        // iot service type - IOT_TOPIC | IOT_DEVICE
+        isEventHubType = AwsIoTServiceType.IOT_TOPIC.toString().equals(iotServiceType);
+        changes.add(AwsIoTHubReconfiguration.DEVICE);
       }
     }
     // Device Id Field Name
@@ -117,7 +295,7 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
       if (!thingName.equals(newThingName))
       {
         thingName = newThingName;
-        somethingChanged = true;
+        changes.add(AwsIoTHubReconfiguration.DEVICE);
       }
     }
     // Client End point
@@ -127,192 +305,1344 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
       if (!clientEndpoint.equals(newClientEndpoint))
       {
         clientEndpoint = newClientEndpoint;
-        somethingChanged = true;
+        changes.add(AwsIoTHubReconfiguration.CONNECTION);
       }
     }
-    // X.509 certificate
-    if (hasProperty("X509certificate"))
+    // X.509 certificate and private key
+    if (applyCredentialProperties())
     {
-      String newX509Cert = getProperty("X509certificate").getValueAsString();
-      if (!x509Certificate.equals(newX509Cert))
+      changes.add(AwsIoTHubReconfiguration.CONNECTION);
+    }
+    // certificate check interval
+    if (hasProperty("certificateCheckInterval"))
+    {
+      int newCertificateCheckInterval = Converter.convertToInteger(getProperty("certificateCheckInterval").getValueAsString(), 60);
+      if (certificateCheckInterval != newCertificateCheckInterval)
       {
-        x509Certificate = newX509Cert;
-        somethingChanged = true;
+        certificateCheckInterval = newCertificateCheckInterval;
+        changes.add(AwsIoTHubReconfiguration.CERTIFICATE_WATCH);
       }
     }
-    // private key
-    if (hasProperty("privateKey"))
+    // persistent session and client id; both identify the broker session
+    if (hasProperty("persistentSession"))
     {
-      String newPrivateKey = getProperty("privateKey").getValueAsString();
-      if (!privateKey.equals(newPrivateKey))
+      boolean newPersistentSession = Converter.convertToBoolean(getProperty("persistentSession").getValueAsString(), false);
+      if (persistentSession != newPersistentSession)
       {
-        privateKey = newPrivateKey;
-        somethingChanged = true;
+        persistentSession = newPersistentSession;
+        changes.add(AwsIoTHubReconfiguration.CONNECTION);
+      }
+    }
+    if (hasProperty("clientId"))
+    {
+      String newClientIdPrefix = getProperty("clientId").getValueAsString();
+      newClientIdPrefix = (newClientIdPrefix != null) ? newClientIdPrefix.trim() : "";
+      if (!clientIdPrefix.equals(newClientIdPrefix))
+      {
+        clientIdPrefix = newClientIdPrefix;
+        changes.add(AwsIoTHubReconfiguration.CONNECTION);
       }
     }
-    // topic name
+    // drain timeout; only used when stopping
+    if (hasProperty("drainTimeout"))
+    {
+      drainTimeout = Converter.convertToInteger(getProperty("drainTimeout").getValueAsString(), 5000);
+    }
+    // payload trace; applies to the next event
+    applyTraceProperties();
+    // publish rate limits; apply to the live connections at once
+    applyRateProperties();
+    // the key of the tracks, for the delta suppression and the pool routing;
+    // applies to the next event
+    String publishKeyType = hasProperty("publishKeyType") ? getProperty("publishKeyType").getValueAsString() : "PAYLOAD_FIELD";
+    publishKey = AwsIoTHubMessageKey.parse(publishKeyType, hasProperty("publishKey") ? getProperty("publishKey").getValueAsString() : "TRACK_ID");
+    publishKeyMissing.set(false);
+    // delta suppression of the tracks keyed by the publish key; applies when
+    // the connection is (re)established
+    applyDeltaProperties();
+    // priority lanes; apply to the next event
+    applyPriorityProperties();
+    // topic name; read for every publish, nothing to redo on the connection
     if (hasProperty("topic"))
     {
       String newTopicName = getProperty("topic").getValueAsString();
       if (!topicName.equals(newTopicName))
       {
         topicName = newTopicName;
-        somethingChanged = true;
       }
     }
+    // topic routing, the topic property is the default; applies to the next
+    // event
+    applyTopicRules();
+    // chunking of the large payloads; applies to the next event
+    int payloadKilobytes = hasProperty("maxPayloadSize") ? Converter.convertToInteger(getProperty("maxPayloadSize").getValueAsString(), 128) : 128;
+    maxPayloadSize = (payloadKilobytes > 0) ? Math.max(1, payloadKilobytes) * 1024 : 0;
 
-    propertiesNeedUpdating = somethingChanged;
+    return changes;
   }
 
-  private void connectToAwsEventHub() throws AWSIotException
+  private void applyTraceProperties()
   {
-    applyProperties();
-    if (propertiesNeedUpdating)
+    int traceSampleRate = hasProperty("traceSampleRate") ? Converter.convertToInteger(getProperty("traceSampleRate").getValueAsString(), 0) : 0;
+    String traceMatches = hasProperty("traceMatches") ? getProperty("traceMatches").getValueAsString() : "";
+    int traceCapacity = hasProperty("traceCapacity") ? Converter.convertToInteger(getProperty("traceCapacity").getValueAsString(), AwsIoTHubTrace.DEFAULT_CAPACITY) : AwsIoTHubTrace.DEFAULT_CAPACITY;
+    metrics.getTrace().configure(traceSampleRate, traceMatches, traceCapacity);
+  }
+
+  private void applyRateProperties()
+  {
+    double newRateLimitMessages = hasProperty("rateLimitMessages") ? Converter.convertToDouble(getProperty("rateLimitMessages").getValueAsString(), 0.0) : 0.0;
+    int newRateLimitKilobytes = hasProperty("rateLimitKilobytes") ? Converter.convertToInteger(getProperty("rateLimitKilobytes").getValueAsString(), 0) : 0;
+    String policy = hasProperty("ratePolicy") ? getProperty("ratePolicy").getValueAsString() : null;
+    try
+    {
+      ratePolicy = Validator.isNotBlank(policy) ? AwsIoTHubRateGovernor.Policy.valueOf(policy.trim().toUpperCase()) : AwsIoTHubRateGovernor.Policy.SHED;
+    }
+    catch (IllegalArgumentException e)
     {
-      cleanup();
-      propertiesNeedUpdating = false;
+      LOGGER.warn("INVALID_RATE_POLICY", policy);
+      ratePolicy = AwsIoTHubRateGovernor.Policy.SHED;
+    }
+    rateQueueTimeout = hasProperty("rateQueueTimeout") ? Converter.convertToInteger(getProperty("rateQueueTimeout").getValueAsString(), 1000) : 1000;
+    maxConnections = hasProperty("maxConnections") ? Math.max(1, Converter.convertToInteger(getProperty("maxConnections").getValueAsString(), 1)) : 1;
+    // the pool is opened with the main connection
+    connectionPoolSize = hasProperty("connectionPoolSize") ? Math.max(1, Converter.convertToInteger(getProperty("connectionPoolSize").getValueAsString(), 1)) : 1;
+    if (rateLimitMessages != newRateLimitMessages || rateLimitKilobytes != newRateLimitKilobytes)
+    {
+      rateLimitMessages = newRateLimitMessages;
+      rateLimitKilobytes = newRateLimitKilobytes;
+      AwsIoTHubConnection activeConnection = connection;
+      if (activeConnection != null)
+      {
+        activeConnection.getRateGovernor().configure(rateLimitMessages, rateLimitKilobytes * 1024.0);
+      }
+      for (AwsIoTHubConnection spillConnection : spillConnections)
+      {
+        spillConnection.getRateGovernor().configure(rateLimitMessages, rateLimitKilobytes * 1024.0);
+      }
+      for (int slot = 1; slot < poolSlots.length; slot++)
+      {
+        if (poolSlots[slot] != null)
+        {
+          poolSlots[slot].getRateGovernor().configure(rateLimitMessages, rateLimitKilobytes * 1024.0);
+        }
+      }
     }
+  }
 
-    // iot service type - IOT_TOPIC | IOT_DEVICE
-    isEventHubType = AwsIoTServiceType.IOT_TOPIC.toString().equals(iotServiceType);
+  private void applyDeltaProperties()
+  {
+    if (deltaFilter != null || !reconnector.isActive())
+    {
+      return;
+    }
+    boolean deltaSuppression = hasProperty("deltaSuppression") && Converter.convertToBoolean(getProperty("deltaSuppression").getValueAsString(), false);
+    if (deltaSuppression)
+    {
+      int heartbeat = hasProperty("deltaHeartbeat") ? Converter.convertToInteger(getProperty("deltaHeartbeat").getValueAsString(), 60) : 60;
+      double distance = hasProperty("deltaDistance") ? Converter.convertToDouble(getProperty("deltaDistance").getValueAsString(), 0.0) : 0.0;
+      String coordinateFields = hasProperty("coordinateFields") ? getProperty("coordinateFields").getValueAsString() : "x,y";
+      String deltaFields = hasProperty("deltaFields") ? getProperty("deltaFields").getValueAsString() : "";
+      String ignoreFields = hasProperty("deltaIgnoreFields") ? getProperty("deltaIgnoreFields").getValueAsString() : "";
+      int maxTracks = hasProperty("deltaTracks") ? Converter.convertToInteger(getProperty("deltaTracks").getValueAsString(), 100000) : 100000;
+      // the heartbeat is the interval after which an unchanged event passes
+      deltaFilter = new AwsIoTHubDownsampler(TimeUnit.SECONDS.toMillis(heartbeat), distance, coordinateFields, deltaFields, (ignoreFields != null) ? ignoreFields : "", maxTracks, TimeUnit.SECONDS.toMillis(Math.max(600, 2 * heartbeat)));
+      LOGGER.info("DELTA_SUPPRESSION", deltaFilter, publishKey);
+    }
+  }
 
-    // get KeyStore credentials
-    KeyStorePasswordPair pair = AwsIoTHubUtil.getKeyStorePasswordPair(x509Certificate, privateKey, null);
+  private void applyPriorityProperties()
+  {
+    String field = hasProperty("priorityField") ? getProperty("priorityField").getValueAsString() : "";
+    String values = hasProperty("priorityValues") ? getProperty("priorityValues").getValueAsString() : "true";
+    String definitions = hasProperty("priorityDefinitions") ? getProperty("priorityDefinitions").getValueAsString() : "";
+    priorityField = Validator.isNotBlank(field) ? new AwsIoTHubFieldLocator(field.trim()) : null;
+    priorityValues = new HashSet<String>(AwsIoTHubDownsampler.split(values));
+    priorityDefinitions = new HashSet<String>(AwsIoTHubDownsampler.split(definitions));
+    int qos = hasProperty("priorityQos") ? Converter.convertToInteger(getProperty("priorityQos").getValueAsString(), 1) : 1;
+    priorityQos = (qos > 0) ? AWSIotQos.QOS1 : AWSIotQos.QOS0;
+    int reserve = hasProperty("priorityReserve") ? Converter.convertToInteger(getProperty("priorityReserve").getValueAsString(), 20) : 20;
+    priorityReserve = Math.max(0, Math.min(90, reserve)) / 100.0;
 
-    // create AwsClient
-    clientId = String.format("%s-%s", thingName, new BigInteger(128, new SecureRandom()).toString(32));
-    awsClient = new AWSIotMqttClient(clientEndpoint, clientId, pair.keyStore, pair.keyPassword);
+    boolean prioritized = priorityField != null || !priorityDefinitions.isEmpty();
+    if (prioritized && lanes == null && reconnector.isActive())
+    {
+      lanes = new AwsIoTHubPublishLanes("outbound-" + metrics.getInstance(), PRIORITY_LANE_CAPACITY, BULK_LANE_CAPACITY);
+      LOGGER.info("PRIORITY_LANES", (priorityField != null) ? priorityField.getFieldName() + "=" + priorityValues : "", priorityDefinitions, priorityQos, reserve);
+    }
+    else if (!prioritized)
+    {
+      closeLanes(drainTimeout);
+    }
+  }
 
-    // attach device
-    if (!isEventHubType)
+  private void applyTopicRules()
+  {
+    String rules = hasProperty("topicRules") ? getProperty("topicRules").getValueAsString() : "";
+    String routing = hasProperty("topicRouting") ? getProperty("topicRouting").getValueAsString() : "";
+    rules = (rules != null) ? rules.trim() : "";
+    AwsIoTHubTopicRules.Mode mode = "ALL".equalsIgnoreCase((routing != null) ? routing.trim() : "") ? AwsIoTHubTopicRules.Mode.ALL : AwsIoTHubTopicRules.Mode.FIRST;
+    if (rules.equals(topicRulesText) && mode == topicRouting)
     {
-      // IoT Device attach
-      geIoTDevice = new AwsIoTHubDevice(thingName);
-      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Attaching device:" + geIoTDevice.getThingName());
-      awsClient.attach(geIoTDevice);
+      return;
+    }
+    topicRulesText = rules;
+    topicRouting = mode;
+    if (rules.isEmpty())
+    {
+      topicRules = null;
+      return;
+    }
+    try
+    {
+      // compiled once, evaluated for every event
+      topicRules = new AwsIoTHubTopicRules(rules, mode);
+      LOGGER.info("TOPIC_RULES", topicRules, topicName);
+    }
+    catch (IllegalArgumentException e)
+    {
+      // the events keep their topic rather than going nowhere
+      LOGGER.error("TOPIC_RULES_INVALID", e.getMessage());
+      topicRules = null;
     }
+  }
 
-    // connect to Aws IoT Hub
-    LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Connecting");
-    awsClient.connect();
-    LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": Connected");
+  /**
+   * Publishes the events still queued on the lanes, for at most the given
+   * time, and stops the publisher.
+   */
+  private void closeLanes(long timeoutMillis)
+  {
+    AwsIoTHubPublishLanes currentLanes = lanes;
+    if (currentLanes != null)
+    {
+      lanes = null;
+      List<Runnable> unpublished = currentLanes.close(timeoutMillis);
+      if (!unpublished.isEmpty())
+      {
+        LOGGER.warn("PRIORITY_LANES_UNPUBLISHED", unpublished.size());
+      }
+    }
+  }
 
-    // geIoTDevice.delete(10000); // delete shadow
+  private void closeDeltaFilter()
+  {
+    AwsIoTHubDownsampler currentDeltaFilter = deltaFilter;
+    if (currentDeltaFilter != null)
+    {
+      deltaFilter = null;
+      currentDeltaFilter.close();
+    }
   }
 
-  @Override
-  public synchronized void stop()
+  /**
+   * Reads the certificate and private key properties.
+   *
+   * @return <code>true</code> if either of them changed
+   */
+  private synchronized boolean applyCredentialProperties()
   {
-    setRunningState(RunningState.STOPPING);
-    cleanup();
-    setRunningState(RunningState.STOPPED);
+    boolean credentialsChanged = false;
+
+    // X.509 certificate
+    if (hasProperty("X509certificate"))
+    {
+      String newX509Cert = getProperty("X509certificate").getValueAsString();
+      if (!x509Certificate.equals(newX509Cert))
+      {
+        x509Certificate = newX509Cert;
+        credentialsChanged = true;
+      }
+    }
+    // private key
+    if (hasProperty("privateKey"))
+    {
+      String newPrivateKey = getProperty("privateKey").getValueAsString();
+      if (!privateKey.equals(newPrivateKey))
+      {
+        privateKey = newPrivateKey;
+        credentialsChanged = true;
+      }
+    }
+
+    return credentialsChanged;
   }
 
-  private void cleanup()
+  /**
+   * Creates and connects a new connection with the current properties. The
+   * connection is closed again if any step fails.
+   */
+  private AwsIoTHubConnection createConnection() throws AWSIotException
   {
-    // clean up the aws hub client
+    return createConnection(createClientId());
+  }
+
+  private AwsIoTHubConnection createConnection(String clientId) throws AWSIotException
+  {
+    AwsIoTHubConnection newConnection = new AwsIoTHubConnection(clientEndpoint, clientId, x509Certificate, privateKey, this::onConnectionLost);
+    newConnection.setRateGovernor(new AwsIoTHubRateGovernor(rateLimitMessages, rateLimitKilobytes * 1024.0));
     try
     {
-      if (awsClient != null)
+      // a persistent session makes the broker keep the subscription and queue
+      // QoS 1 messages while the client is away
+      newConnection.getClient().setCleanSession(!persistentSession);
+
+      // IoT Device attach
+      if (!isEventHubType)
       {
-        if (geIoTDevice != null)
-        {
-          LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": detaching device: " + geIoTDevice.getThingName());
-          awsClient.detach(geIoTDevice);
-          LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": detached device: " + geIoTDevice.getThingName());
-          // geIoTDevice.delete(5000); // delete shadow
-        }
-        LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": disconnecting");
-        awsClient.disconnect(5000);
-        LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": disconnected");
+        newConnection.attach(thingName);
       }
+
+      // connect to Aws IoT Hub
+      newConnection.connect();
+
+      // geIoTDevice.delete(10000); // delete shadow
     }
-    catch (Exception e)
+    catch (AWSIotException e)
     {
-      LOGGER.error("CLEANUP_ERROR", e);
-      setErrorMessage(e.getMessage());
+      newConnection.close();
+      throw e;
     }
-    finally
+    return newConnection;
+  }
+
+  /**
+   * With persistent sessions the client id is derived from the connector, so
+   * a restarted connector resumes its session; otherwise every connection
+   * gets a random id and a clean session. The outbound connection subscribes
+   * to nothing, so the topic is not part of its id and a topic change keeps
+   * the session.
+   */
+  private String createClientId()
+  {
+    if (persistentSession)
     {
-      geIoTDevice = null;
-      awsClient = null;
+      String prefix = Validator.isNotBlank(clientIdPrefix) ? clientIdPrefix : thingName;
+      return AwsIoTHubUtil.createStableClientId(prefix, "outbound", clientEndpoint, iotServiceType, thingName);
     }
+    return AwsIoTHubUtil.createClientId(thingName);
   }
 
-  @Override
-  public void receive(ByteBuffer buffer, String channelId)
+  /**
+   * Make-before-break connection replacement, used when the endpoint or the
+   * credentials change: the replacement connection is connected before events
+   * are switched over to it. Publishes still in flight on the old connection
+   * complete while it disconnects.
+   *
+   * @return <code>false</code> if the new connection could not be
+   *         established; the old connection is kept in that case.
+   */
+  private synchronized boolean replaceConnection()
   {
+    AwsIoTHubConnection oldConnection = connection;
+    if (getRunningState() != RunningState.STARTED || oldConnection == null)
+    {
+      return true;
+    }
+
     try
     {
-      // Send Event to an Event Hub
-      String message = new String(buffer.array(), StandardCharsets.UTF_8);
-      byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
-      iotMessage = new AWSIoTPublishListener(topicName, AWSIotQos.QOS0, bytes);
+      LOGGER.info("REPLACING_CONNECTION", oldConnection.getClientId());
+      if (createClientId().equals(oldConnection.getClientId()))
+      {
+        // the broker drops a connection when another one connects with the
+        // same client id, so the old connection has to go first; the
+        // persistent session keeps the messages published in between
+        connection = null;
+        oldConnection.close();
+      }
+      AwsIoTHubConnection newConnection = createConnection();
+      connection = newConnection;
+      oldConnection.close();
+      // reopened with the new properties when needed
+      closeSpillConnections();
+      replacePoolConnections();
+      LOGGER.info("REPLACED_CONNECTION", oldConnection.getClientId(), newConnection.getClientId());
+      return true;
+    }
+    catch (Exception e)
+    {
+      LOGGER.error("CONNECTION_REPLACEMENT_ERROR", e);
+      if (connection == null)
+      {
+        // the old connection is already gone, keep trying with backoff
+        connection = oldConnection;
+        onConnectionLost(oldConnection);
+      }
+      return false;
+    }
+  }
 
-      if (isEventHubType)
+  @Override
+  public void afterPropertiesSet()
+  {
+    super.afterPropertiesSet();
+
+    // apply changed properties to the live connection
+    if (getRunningState() == RunningState.STARTED)
+    {
+      reconfigure(applyProperties());
+    }
+  }
+
+  /**
+   * Applies property changes to the running transport with the least
+   * disruptive action: a topic change takes effect with the next publish, a
+   * service type or thing name change only detaches/attaches the device and
+   * only an endpoint or credential change needs a new connection. With a
+   * persistent session, a change of the properties the session is identified
+   * by also needs a new connection, on the session the next restart resumes.
+   */
+  private synchronized void reconfigure(EnumSet<AwsIoTHubReconfiguration> changes)
+  {
+    AwsIoTHubConnection activeConnection = connection;
+    if (activeConnection == null)
+    {
+      return;
+    }
+    if (persistentSession && !createClientId().equals(activeConnection.getClientId()))
+    {
+      changes.add(AwsIoTHubReconfiguration.CONNECTION);
+    }
+    if (changes.isEmpty())
+    {
+      return;
+    }
+
+    if (changes.contains(AwsIoTHubReconfiguration.CONNECTION) || changes.contains(AwsIoTHubReconfiguration.CERTIFICATE_WATCH))
+    {
+      restartCertificateWatcher();
+    }
+    if (changes.contains(AwsIoTHubReconfiguration.CONNECTION))
+    {
+      // the new connection picks up all the other changes as well
+      if (!replaceConnection())
       {
-        if (awsClient != null)
-        {
-          LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": publishing to topic : " + this.topicName + ", message:  >>> " + message);
-          awsClient.publish(iotMessage);
-        }
-        else
-        {
-          LOGGER.warn("FAILED_TO_SEND_INVALID_EH_CONNECTION", clientEndpoint);
-        }
+        setErrorMessage(LOGGER.translate("CONNECTION_REPLACEMENT_ERROR"));
       }
-      else
+      return;
+    }
+
+    try
+    {
+      if (changes.contains(AwsIoTHubReconfiguration.DEVICE))
       {
-        // update shadow
-        if (thingName != null & Validator.isNotBlank(thingName))
-        {
-          // geIoTDevice.delete(); // delete shadow
-          LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": updating the device state");
-          geIoTDevice.update(iotMessage, 10000); // update device state
-        }
-        else
-        {
-          LOGGER.warn("FAILED_TO_SEND_INVALID_DEVICE_ID", thingName);
-        }
+        activeConnection.reattach(isEventHubType ? null : thingName);
       }
+      LOGGER.info("RECONFIGURED", activeConnection.getClientId(), changes);
     }
-    catch (Exception e)
+    catch (AWSIotException e)
     {
-      // streamClient.stop();
-      LOGGER.error(e.getMessage(), e);
+      LOGGER.error("RECONFIGURATION_ERROR", e);
       setErrorMessage(e.getMessage());
-      setRunningState(RunningState.ERROR);
     }
   }
 
+  @Override
+  public synchronized void stop()
+  {
+    setRunningState(RunningState.STOPPING);
+    reconnector.stop();
+    drain();
+    cleanup();
+    closeDeltaFilter();
+    metrics.unregister();
+    setRunningState(RunningState.STOPPED);
+  }
+
   /**
-   * AWSIoTPublishListener class extends {@link AWSIotMessage} to publish
-   * messages to a topic.
+   * Stops taking new events and waits, for at most drainTimeout ms, until the
+   * publishes already handed to the client were completed (written, or
+   * acknowledged for QoS 1) before disconnecting.
    */
-  private final class AWSIoTPublishListener extends AWSIotMessage
+  private void drain()
   {
-
-    public AWSIoTPublishListener(String topic, AWSIotQos qos, byte[] payload)
+    // the queued events are published first, while the rate limits still
+    // hold them back; both waits share the drain timeout
+    long deadline = System.currentTimeMillis() + drainTimeout;
+    closeLanes(drainTimeout);
+    accepting = false;
+    // the main connection may be down while the pool publishes
+    if (!AwsIoTHubUtil.awaitZero(pendingPublishes, Math.max(0L, deadline - System.currentTimeMillis())))
     {
-      super(topic, qos, payload);
+      LOGGER.warn("DRAIN_TIMEOUT", createClientId(), pendingPublishes.get());
     }
+  }
 
-    @Override
-    public void onSuccess()
+  private void cleanup()
+  {
+    if (certificateWatcher != null)
+    {
+      certificateWatcher.stop();
+      certificateWatcher = null;
+    }
+    if (spillSweeper != null)
+    {
+      spillSweeper.cancel(false);
+      spillSweeper = null;
+    }
+    closeSpillConnections();
+    closePool();
+    // clean up the aws hub client
+    if (connection != null)
     {
-      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": publish success for: " + this.topic + " >>> " + getStringPayload());
+      connection.close();
+      connection = null;
     }
+  }
 
-    @Override
-    public void onFailure()
+  private synchronized void restartCertificateWatcher()
+  {
+    if (certificateWatcher != null)
     {
-      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": publish failed for: " + this.topic + " >>> " + getStringPayload());
+      certificateWatcher.stop();
+      certificateWatcher = new AwsIoTHubCertificateWatcher(x509Certificate, privateKey, this::replaceConnection);
+      certificateWatcher.start(certificateCheckInterval);
     }
+  }
 
-    @Override
-    public void onTimeout()
+  /**
+   * Opens the pool connections next to the main connection. A connection
+   * that fails to open is retried in the background.
+   */
+  private void openPool()
+  {
+    int size = isEventHubType ? connectionPoolSize : 1;
+    poolSlots = new AwsIoTHubConnection[size];
+    poolSlots[0] = connection;
+    if (size > 1)
     {
-      LOGGER.info(System.currentTimeMillis() + ": ClientId: " + clientId + ": publish timeout for: " + this.topic + " >>> " + getStringPayload());
+      for (int slot = 1; slot < size; slot++)
+      {
+        openPoolConnection(slot);
+      }
+      poolKeeper = AwsIoTHubScheduler.getExecutor().scheduleWithFixedDelay(this::restorePool, POOL_RETRY_SECONDS, POOL_RETRY_SECONDS, TimeUnit.SECONDS);
+      LOGGER.info("CONNECTION_POOL", size, publishKey);
+    }
+    rebuildRing();
+  }
+
+  private void openPoolConnection(int slot)
+  {
+    try
+    {
+      if (slot == 0)
+      {
+        connection = createConnection();
+        poolSlots[0] = connection;
+        return;
+      }
+      poolSlots[slot] = createConnection(createClientId() + "-p" + slot);
+    }
+    catch (AWSIotException e)
+    {
+      LOGGER.error("POOL_CONNECTION_ERROR", e, slot);
+    }
+  }
+
+  /**
+   * Reopens the lost pool connections, the main connection included; their
+   * keys move back to them.
+   */
+  private synchronized void restorePool()
+  {
+    if (!accepting || poolSlots.length < 2)
+    {
+      return;
+    }
+    boolean restored = false;
+    for (int slot = 0; slot < poolSlots.length; slot++)
+    {
+      if (poolSlots[slot] == null)
+      {
+        openPoolConnection(slot);
+        restored |= (poolSlots[slot] != null);
+      }
+    }
+    if (restored)
+    {
+      rebuildRing();
+    }
+  }
+
+  /**
+   * Replaces the pool connections one by one after the main connection was
+   * replaced.
+   */
+  private void replacePoolConnections()
+  {
+    if (poolSlots.length < 2)
+    {
+      return;
+    }
+    poolSlots[0] = connection;
+    for (int slot = 1; slot < poolSlots.length; slot++)
+    {
+      AwsIoTHubConnection oldConnection = poolSlots[slot];
+      if (oldConnection != null && oldConnection.getClientId().equals(createClientId() + "-p" + slot))
+      {
+        // the same client id would drop the old connection anyway
+        poolSlots[slot] = null;
+        rebuildRing();
+        oldConnection.close();
+      }
+      openPoolConnection(slot);
+      rebuildRing();
+      if (oldConnection != null)
+      {
+        oldConnection.close();
+      }
+    }
+  }
+
+  private void closePool()
+  {
+    if (poolKeeper != null)
+    {
+      poolKeeper.cancel(false);
+      poolKeeper = null;
+    }
+    ring = null;
+    for (int slot = 1; slot < poolSlots.length; slot++)
+    {
+      if (poolSlots[slot] != null)
+      {
+        poolSlots[slot].close();
+      }
+    }
+    poolSlots = new AwsIoTHubConnection[0];
+  }
+
+  private void rebuildRing()
+  {
+    ring = (poolSlots.length > 1) ? new AwsIoTHubConnectionRing(poolSlots) : null;
+  }
+
+  /**
+   * Publishes a message again whose connection was lost before the message
+   * was written, on the connection its key moved to. A message is published
+   * again at most once.
+   *
+   * @return <code>true</code> if the message was published again
+   */
+  private boolean republish(AWSIoTPublishListener message)
+  {
+    AwsIoTHubConnectionRing currentRing = ring;
+    if (currentRing == null || !accepting || message.republished || currentRing.contains(message.publishConnection))
+    {
+      return false;
+    }
+    AwsIoTHubConnection newConnection = currentRing.lookup(message.keyHash);
+    if (newConnection == null)
+    {
+      return false;
+    }
+    message.republished = true;
+    try
+    {
+      // over the rate limits rather than losing it
+      newConnection.getRateGovernor().tryAcquire(message.getSize(), System.nanoTime());
+      message.begin(newConnection);
+      newConnection.getClient().publish(message);
+      return true;
+    }
+    catch (AWSIotException e)
+    {
+      LOGGER.error("POOL_REPUBLISH_ERROR", e, newConnection.getClientId());
+      message.complete();
+      return false;
+    }
+  }
+
+  /**
+   * Picks a connection with tokens left for a message: the main connection
+   * first, then the spill connections. When none has, another spill
+   * connection is requested and the message waits or is dropped by the rate
+   * policy. Bulk messages leave the priority reserve of the rate limits to
+   * the priority messages, and let them pass while waiting.
+   *
+   * @param spill
+   *          whether the message may go over a spill connection
+   * @return the connection that took the tokens of the message, or
+   *         <code>null</code> if the message is dropped
+   */
+  private AwsIoTHubConnection acquireConnection(AwsIoTHubConnection activeConnection, AWSIoTPublishListener message, boolean spill) throws InterruptedException
+  {
+    int bytes = message.getSize();
+    AwsIoTHubPublishLanes currentLanes = lanes;
+    double reserve = (currentLanes != null && !message.priority) ? priorityReserve : 0.0;
+    long deadline = 0L;
+    while (true)
+    {
+      long now = System.nanoTime();
+      if (activeConnection.getRateGovernor().tryAcquire(bytes, now, reserve))
+      {
+        return activeConnection;
+      }
+      if (spill)
+      {
+        for (AwsIoTHubConnection spillConnection : spillConnections)
+        {
+          if (spillConnection.getRateGovernor().tryAcquire(bytes, now, reserve))
+          {
+            return spillConnection;
+          }
+        }
+        requestSpillConnection(now);
+      }
+      if (ratePolicy == AwsIoTHubRateGovernor.Policy.SHED || !accepting)
+      {
+        return null;
+      }
+      if (deadline == 0L)
+      {
+        deadline = now + TimeUnit.MILLISECONDS.toNanos(rateQueueTimeout);
+      }
+      if (now >= deadline)
+      {
+        return null;
+      }
+      long wait = Math.max(Math.min(activeConnection.getRateGovernor().nanosUntil(bytes, now, reserve), deadline - now), SPILL_MIN_WAIT_NANOS);
+      if (currentLanes != null && !message.priority)
+      {
+        currentLanes.servePriority(wait);
+      }
+      else
+      {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+  }
+
+  /**
+   * Opens another spill connection in the background, unless the most
+   * connections are open or one was opened within the cooldown.
+   */
+  private void requestSpillConnection(long now)
+  {
+    if (1 + spillConnections.size() >= maxConnections || (spillRequestNanos != 0L && now - spillRequestNanos < SPILL_COOLDOWN_NANOS))
+    {
+      return;
+    }
+    if (spillOpening.compareAndSet(false, true))
+    {
+      spillRequestNanos = now;
+      AwsIoTHubScheduler.getExecutor().execute(() ->
+      {
+        try
+        {
+          openSpillConnection();
+        }
+        finally
+        {
+          spillOpening.set(false);
+        }
+      });
+    }
+  }
+
+  private synchronized void openSpillConnection()
+  {
+    if (!accepting || connection == null || 1 + spillConnections.size() >= maxConnections)
+    {
+      return;
+    }
+    // a connection with the client id of another one would drop it
+    String clientId = createClientId() + "-" + (++spillCount);
+    try
+    {
+      AwsIoTHubConnection spillConnection = createConnection(clientId);
+      spillConnections.add(spillConnection);
+      LOGGER.info("SPILL_CONNECTION_OPENED", clientId, 1 + spillConnections.size(), maxConnections);
+    }
+    catch (AWSIotException e)
+    {
+      LOGGER.error("SPILL_CONNECTION_ERROR", e, clientId);
+    }
+  }
+
+  /**
+   * Closes the spill connections that published nothing for a while.
+   */
+  private void closeIdleSpillConnections()
+  {
+    long idleSince = System.nanoTime() - TimeUnit.SECONDS.toNanos(SPILL_IDLE_SECONDS);
+    for (AwsIoTHubConnection spillConnection : spillConnections)
+    {
+      if (spillConnection.getRateGovernor().getAcquireNanos() - idleSince < 0L && spillConnections.remove(spillConnection))
+      {
+        LOGGER.info("SPILL_CONNECTION_CLOSED", spillConnection.getClientId());
+        // let the publishes in flight complete before disconnecting
+        AwsIoTHubScheduler.getExecutor().schedule(spillConnection::close, drainTimeout, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private void closeSpillConnections()
+  {
+    for (AwsIoTHubConnection spillConnection : spillConnections)
+    {
+      spillConnections.remove(spillConnection);
+      spillConnection.close();
+    }
+  }
+
+  @Override
+  public void receive(ByteBuffer buffer, String channelId)
+  {
+    receive(buffer, channelId, null);
+  }
+
+  @Override
+  public void receive(ByteBuffer buffer, String channelId, GeoEvent geoEvent)
+  {
+    // stopping: the events still arriving are not published any more
+    if (!accepting)
+    {
+      return;
+    }
+
+    AwsIoTHubConnection activeConnection = connection;
+    String clientId = (activeConnection != null) ? activeConnection.getClientId() : null;
+    AWSIoTPublishListener publishListener = createMessage(buffer, clientId, geoEvent);
+    if (publishListener == null)
+    {
+      return;
+    }
+    AwsIoTHubPublishLanes currentLanes = lanes;
+    if (currentLanes == null)
+    {
+      publishAll(publishListener);
+      return;
+    }
+    try
+    {
+      // a full bulk lane holds the caller like the rate limits would, unless
+      // the events over the limits are shed
+      boolean shed = ratePolicy == AwsIoTHubRateGovernor.Policy.SHED && (rateLimitMessages > 0.0 || rateLimitKilobytes > 0);
+      if (!currentLanes.submit(publishListener.priority, () -> publishAll(publishListener), shed ? 0L : rateQueueTimeout))
+      {
+        messageDropped(publishListener);
+        if (accepting)
+        {
+          metrics.messageThrottled();
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      messageDropped(publishListener);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Publishes a message and the copies of it for the other topics of the
+   * event. The chunks of a payload are paced by the publishes in flight; once
+   * a chunk is not published the rest of its payload is not either, the
+   * receiver could not reassemble it.
+   */
+  private void publishAll(AWSIoTPublishListener first)
+  {
+    boolean skipping = false;
+    for (AWSIoTPublishListener message = first; message != null; message = message.next)
+    {
+      // a whole payload, or the first chunk of one
+      if (message.chunk <= 0)
+      {
+        skipping = false;
+      }
+      if (skipping)
+      {
+        continue;
+      }
+      if (message.chunk >= 0 && !awaitWindow(rateQueueTimeout))
+      {
+        metrics.messageThrottled();
+        messageDropped(message);
+        skipping = true;
+        continue;
+      }
+      boolean published = publish(message);
+      if (!published)
+      {
+        messageDropped(message);
+      }
+      skipping = !published && message.chunk >= 0;
+    }
+  }
+
+  /**
+   * Waits until fewer publishes than the chunk window are in flight, woken by
+   * the publishes completing.
+   *
+   * @return <code>false</code> if the window did not open within the timeout
+   */
+  private boolean awaitWindow(long timeoutMillis)
+  {
+    if (pendingPublishes.get() < CHUNK_WINDOW)
+    {
+      return true;
+    }
+    long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    windowLock.lock();
+    try
+    {
+      // counted before the check, so a completion after it signals
+      windowWaiters++;
+      while (pendingPublishes.get() >= CHUNK_WINDOW)
+      {
+        if (nanos <= 0L)
+        {
+          return false;
+        }
+        nanos = windowOpen.awaitNanos(nanos);
+      }
+      return true;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    finally
+    {
+      windowWaiters--;
+      windowLock.unlock();
+    }
+  }
+
+  /**
+   * Publishes a message on the connection of its key, or updates the device
+   * shadow with it.
+   *
+   * @return whether the message was handed to the client
+   */
+  private boolean publish(AWSIoTPublishListener publishListener)
+  {
+    try
+    {
+      // Send Event to an Event Hub
+      AwsIoTHubConnection activeConnection = connection;
+      String clientId = (activeConnection != null) ? activeConnection.getClientId() : null;
+      boolean traced = publishListener.traced;
+
+      if (isEventHubType)
+      {
+        // the pool keeps all the events of a key on the connection of the key,
+        // so they cannot spill over to another connection
+        AwsIoTHubConnectionRing currentRing = ring;
+        AwsIoTHubConnection routeConnection = (currentRing != null) ? currentRing.lookup(publishListener.keyHash) : activeConnection;
+        AwsIoTHubConnection publishConnection = (routeConnection != null) ? acquireConnection(routeConnection, publishListener, currentRing == null) : null;
+        if (publishConnection != null)
+        {
+          if (traced)
+          {
+            metrics.getTrace().record("publishing", publishConnection.getClientId(), publishListener.getTopic(), publishListener.getPayload());
+          }
+          publishListener.begin(publishConnection);
+          publishConnection.getClient().publish(publishListener);
+          return true;
+        }
+        else if (routeConnection != null)
+        {
+          // over the publish limits of all the connections
+          metrics.messageThrottled();
+        }
+        else
+        {
+          LOGGER.warn("FAILED_TO_SEND_INVALID_EH_CONNECTION", clientEndpoint);
+        }
+      }
+      else
+      {
+        // update shadow
+        AwsIoTHubDevice geIoTDevice = (activeConnection != null) ? activeConnection.getDevice() : null;
+        if (thingName != null & Validator.isNotBlank(thingName) && geIoTDevice != null)
+        {
+          // shadow updates of the one device share the main connection
+          if (acquireConnection(activeConnection, publishListener, false) == null)
+          {
+            metrics.messageThrottled();
+            return false;
+          }
+          // geIoTDevice.delete(); // delete shadow
+          if (traced)
+          {
+            metrics.getTrace().record("updating shadow", clientId, thingName, publishListener.getPayload());
+          }
+          publishListener.begin(activeConnection);
+          geIoTDevice.update(publishListener, 10000); // update device state
+          return true;
+        }
+        else
+        {
+          LOGGER.warn("FAILED_TO_SEND_INVALID_DEVICE_ID", thingName);
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // stopped while waiting for the rate limits
+      Thread.currentThread().interrupt();
+    }
+    catch (Exception e)
+    {
+      // no callback follows a publish that failed right away; a connection
+      // that is gone reports itself through onConnectionLost, so one failed
+      // message leaves the running state alone
+      if (publishListener.complete())
+      {
+        metrics.publishFailed(publishListener.startNanos);
+      }
+      LOGGER.warn("PUBLISH_ERROR", e, publishListener.getTopic());
+      // a message the rate policy lets wait is tried once more, on the
+      // connection its key is routed to by then
+      if (ratePolicy == AwsIoTHubRateGovernor.Policy.QUEUE && accepting && !publishListener.republished)
+      {
+        publishListener.republished = true;
+        return publish(publishListener);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A message of an event passed by the delta filter was not published, so
+   * the next event of its track must pass even if it is the same.
+   */
+  private void messageDropped(AWSIoTPublishListener message)
+  {
+    AwsIoTHubDownsampler currentDeltaFilter = deltaFilter;
+    if (currentDeltaFilter != null)
+    {
+      currentDeltaFilter.invalidate(message.keyHash);
+    }
+  }
+
+  /**
+   * The per-message work of the outbound path, from an event buffer to the
+   * message handed to the client.
+   *
+   * @return the message, or <code>null</code> if the event is suppressed as
+   *         unchanged
+   */
+  AWSIoTPublishListener createMessage(ByteBuffer buffer, String clientId)
+  {
+    return createMessage(buffer, clientId, null);
+  }
+
+  /**
+   * @param geoEvent
+   *          the event the buffer was encoded from, or <code>null</code> if it
+   *          is not known
+   * @return the message for the first topic of the event, linked to the ones
+   *         for its other topics, which share its payload; a payload over the
+   *         size limit is a run of chunk messages per topic
+   */
+  AWSIoTPublishListener createMessage(ByteBuffer buffer, String clientId, GeoEvent geoEvent)
+  {
+    byte[] bytes = encode(buffer);
+    AwsIoTHubDownsampler currentDeltaFilter = deltaFilter;
+    long keyHash = 0L;
+    if (currentDeltaFilter != null || ring != null)
+    {
+      keyHash = publishKey.keyHash64(topicName, bytes);
+      if (keyHash == AwsIoTHubMessageKey.MISSING)
+      {
+        // the events without a key would share one track: they are not
+        // filtered, and go to the pool connection of their topic
+        if (publishKeyMissing.compareAndSet(false, true))
+        {
+          LOGGER.warn("PUBLISH_KEY_MISSING", publishKey, topicName);
+        }
+        keyHash = publishKey.hash64(topicName, bytes);
+        currentDeltaFilter = null;
+      }
+    }
+    if (currentDeltaFilter != null && !currentDeltaFilter.admit(keyHash, bytes, System.currentTimeMillis()))
+    {
+      metrics.messageSuppressed();
+      return null;
+    }
+    boolean traced = metrics.getTrace().isSampled(topicName, thingName);
+    boolean priority = (lanes != null) && isPriority(bytes, geoEvent);
+    // the chunks are split once and shared by all the topics of the event
+    byte[][] chunks = null;
+    int sizeLimit = maxPayloadSize;
+    if (isEventHubType && sizeLimit > 0 && bytes.length > sizeLimit)
+    {
+      chunks = AwsIoTHubChunks.split(bytes, sizeLimit, chunkIds.incrementAndGet());
+      if (chunks == null)
+      {
+        LOGGER.warn("PAYLOAD_TOO_LARGE", bytes.length, sizeLimit);
+        return null;
+      }
+      metrics.messageChunked();
+    }
+    AwsIoTHubTopicRules currentTopicRules = topicRules;
+    List<AwsIoTHubTopicRules.Target> targets = (currentTopicRules != null && isEventHubType) ? currentTopicRules.route(bytes) : Collections.<AwsIoTHubTopicRules.Target> emptyList();
+    if (targets.isEmpty())
+    {
+      // no rule matched: the topic property
+      return createMessages(topicName, AWSIotQos.QOS0, bytes, chunks, clientId, traced, keyHash, priority);
+    }
+    AWSIoTPublishListener first = null;
+    AWSIoTPublishListener last = null;
+    for (AwsIoTHubTopicRules.Target target : targets)
+    {
+      AWSIoTPublishListener message = createMessages(target.getTopic(bytes), target.getQos(), bytes, chunks, clientId, traced, keyHash, priority);
+      if (first == null)
+      {
+        first = message;
+      }
+      else
+      {
+        last.next = message;
+      }
+      // past the chunks of the topic
+      last = message;
+      while (last.next != null)
+      {
+        last = last.next;
+      }
+    }
+    return first;
+  }
+
+  /**
+   * @param chunks
+   *          the payload split into chunks, or <code>null</code> to publish it
+   *          whole
+   * @return the message of the payload, or the first of its chunk messages
+   *         linked in order
+   */
+  private AWSIoTPublishListener createMessages(String topic, AWSIotQos qos, byte[] bytes, byte[][] chunks, String clientId, boolean traced, long keyHash, boolean priority)
+  {
+    if (chunks == null)
+    {
+      return createMessage(topic, qos, bytes, clientId, traced, keyHash, priority);
+    }
+    AWSIoTPublishListener first = null;
+    AWSIoTPublishListener last = null;
+    for (int index = 0; index < chunks.length; index++)
+    {
+      AWSIoTPublishListener message = createMessage(topic, qos, chunks[index], clientId, traced, keyHash, priority);
+      message.chunk = index;
+      if (first == null)
+      {
+        first = message;
+      }
+      else
+      {
+        last.next = message;
+      }
+      last = message;
+    }
+    return first;
+  }
+
+  private AWSIoTPublishListener createMessage(String topic, AWSIotQos qos, byte[] bytes, String clientId, boolean traced, long keyHash, boolean priority)
+  {
+    metrics.messageOut(bytes.length);
+    // the higher QoS of the priority events and the topic
+    AWSIotQos messageQos = (priority && priorityQos.getValue() > qos.getValue()) ? priorityQos : qos;
+    AWSIoTPublishListener message = new AWSIoTPublishListener(topic, messageQos, bytes, clientId, traced);
+    message.keyHash = keyHash;
+    message.priority = priority;
+    message.createNanos = priority ? System.nanoTime() : 0L;
+    return message;
+  }
+
+  /**
+   * @return whether the event goes on the priority lane, by its GeoEvent
+   *         definition or the value of the priority field
+   */
+  private boolean isPriority(byte[] bytes, GeoEvent geoEvent)
+  {
+    GeoEventDefinition definition = (geoEvent != null) ? geoEvent.getGeoEventDefinition() : null;
+    if (definition != null && priorityDefinitions.contains(definition.getName()))
+    {
+      return true;
+    }
+    AwsIoTHubFieldLocator field = priorityField;
+    if (field == null)
+    {
+      return false;
+    }
+    String value;
+    if (geoEvent != null)
+    {
+      Object fieldValue = geoEvent.getField(field.getFieldName());
+      value = (fieldValue != null) ? fieldValue.toString() : null;
+    }
+    else
+    {
+      int at = field.locate(bytes);
+      if (at < 0)
+      {
+        return false;
+      }
+      int end = AwsIoTHubFieldLocator.valueEnd(bytes, at);
+      // a string value without its quotes
+      if (bytes[at] == '"')
+      {
+        at++;
+        end = Math.max(at, end - 1);
+      }
+      value = new String(bytes, at, end - at, StandardCharsets.UTF_8);
+    }
+    return value != null && priorityValues.contains(value);
+  }
+
+  /**
+   * Encodes an event as the UTF-8 payload of an MQTT message.
+   */
+  static byte[] encode(ByteBuffer buffer)
+  {
+    String message = new String(buffer.array(), StandardCharsets.UTF_8);
+    return message.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * AWSIoTPublishListener class extends {@link AWSIotMessage} to publish
+   * messages to a topic.
+   */
+  final class AWSIoTPublishListener extends AWSIotMessage
+  {
+    private final String                 clientId;
+    private final boolean                traced;
+    private final AtomicBoolean          pending           = new AtomicBoolean();
+    private long                         startNanos;
+    // the key of the event, for the pool routing
+    private long                         keyHash           = 0L;
+    private volatile AwsIoTHubConnection publishConnection = null;
+    private volatile boolean             republished       = false;
+    private boolean                      priority          = false;
+    // when a priority event reached the transport
+    private long                         createNanos       = 0L;
+    // the index of the chunk of the payload, -1 for a whole payload
+    private int                          chunk             = -1;
+    // the next chunk of the payload, or the message of the same event for
+    // its next topic
+    private AWSIoTPublishListener        next              = null;
+
+    /**
+     * @param payload
+     *          used as is, not copied; the messages of one event for several
+     *          topics share it
+     * @param traced
+     *          whether the callbacks of the message are captured by the trace
+     */
+    public AWSIoTPublishListener(String topic, AWSIotQos qos, byte[] payload, String clientId, boolean traced)
+    {
+      super(topic, qos);
+      this.payload = payload;
+      this.clientId = clientId;
+      this.traced = traced;
+    }
+
+    /**
+     * @return the payload size in bytes, without copying the payload
+     */
+    int getSize()
+    {
+      return (payload != null) ? payload.length : 0;
+    }
+
+    /**
+     * Counts the message as pending until one of its callbacks was called.
+     *
+     * @param connection
+     *          the connection the message is published on
+     */
+    void begin(AwsIoTHubConnection connection)
+    {
+      publishConnection = connection;
+      startNanos = System.nanoTime();
+      if (pending.compareAndSet(false, true))
+      {
+        pendingPublishes.incrementAndGet();
+      }
+    }
+
+    /**
+     * @return <code>true</code> for the call that completed the message
+     */
+    boolean complete()
+    {
+      if (pending.compareAndSet(true, false))
+      {
+        if (pendingPublishes.decrementAndGet() < CHUNK_WINDOW && windowWaiters > 0)
+        {
+          windowLock.lock();
+          try
+          {
+            windowOpen.signalAll();
+          }
+          finally
+          {
+            windowLock.unlock();
+          }
+        }
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void onSuccess()
+    {
+      if (complete())
+      {
+        metrics.publishSucceeded(startNanos);
+        if (priority)
+        {
+          metrics.priorityPublished(createNanos);
+        }
+      }
+      if (traced)
+      {
+        metrics.getTrace().record("publish success", clientId, topic, getPayload());
+      }
+    }
+
+    @Override
+    public void onFailure()
+    {
+      boolean completed = complete();
+      if (completed && republish(this))
+      {
+        return;
+      }
+      if (completed)
+      {
+        metrics.publishFailed(startNanos);
+        messageDropped(this);
+      }
+      if (traced)
+      {
+        metrics.getTrace().record("publish failed", clientId, topic, getPayload());
+      }
+    }
+
+    @Override
+    public void onTimeout()
+    {
+      boolean completed = complete();
+      if (completed && republish(this))
+      {
+        return;
+      }
+      if (completed)
+      {
+        metrics.publishTimedOut(startNanos);
+        messageDropped(this);
+      }
+      if (traced)
+      {
+        metrics.getTrace().record("publish timeout", clientId, topic, getPayload());
+      }
     }
 
   }
@@ -0,0 +1,303 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * Runs the publishes of an outbound transport on one publisher thread fed by
+ * two lanes: a priority lane for alerts, which is always served first, and a
+ * bulk lane for everything else. Each lane is bounded on its own. A full
+ * priority lane blocks the sender, while a full bulk lane holds the sender for
+ * at most the timeout it gives, which is none when bulk messages are shed, so
+ * the priority messages it sends next are not held back longer than that.
+ * <p>
+ * A bulk publish waiting for rate limit tokens on the publisher thread waits
+ * through {@link #servePriority(long)}, which runs the priority publishes
+ * queued meanwhile instead of leaving them behind the bulk message.
+ */
+public class AwsIoTHubPublishLanes
+{
+  // logger
+  private static final BundleLogger  LOGGER           = BundleLoggerFactory.getLogger(AwsIoTHubPublishLanes.class);
+
+  private final ReentrantLock        lock             = new ReentrantLock();
+  private final Condition            notEmpty         = lock.newCondition();
+  private final Condition            notFull          = lock.newCondition();
+  private final ArrayDeque<Runnable> priorityLane     = new ArrayDeque<Runnable>();
+  private final ArrayDeque<Runnable> bulkLane         = new ArrayDeque<Runnable>();
+  private final int                  priorityCapacity;
+  private final int                  bulkCapacity;
+  private final Thread               thread;
+  // a publish taken from the lanes is running
+  private boolean                    running          = false;
+  // no more publishes are queued once closing, the queued ones still run
+  private volatile boolean           closing          = false;
+  private volatile boolean           closed           = false;
+
+  /**
+   * Starts the publisher thread.
+   *
+   * @param name
+   *          part of the thread name
+   */
+  public AwsIoTHubPublishLanes(String name, int priorityCapacity, int bulkCapacity)
+  {
+    this.priorityCapacity = priorityCapacity;
+    this.bulkCapacity = bulkCapacity;
+    thread = new Thread(this::run, "aws-iot-publisher-" + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queues a publish on its lane. A priority publish waits while its lane is
+   * full, a bulk publish waits for at most the given time.
+   *
+   * @param bulkTimeoutMillis
+   *          how long a bulk publish waits for room in its lane, 0 to refuse
+   *          it at once
+   * @return <code>false</code> if the bulk lane stayed full or the lanes were
+   *         closed; the task is not run then
+   */
+  public boolean submit(boolean priority, Runnable task, long bulkTimeoutMillis) throws InterruptedException
+  {
+    ArrayDeque<Runnable> lane = priority ? priorityLane : bulkLane;
+    lock.lockInterruptibly();
+    try
+    {
+      while (priority && !closing && lane.size() >= priorityCapacity)
+      {
+        notFull.await(100L, TimeUnit.MILLISECONDS);
+      }
+      long remaining = TimeUnit.MILLISECONDS.toNanos(bulkTimeoutMillis);
+      while (!priority && !closing && lane.size() >= bulkCapacity && remaining > 0L)
+      {
+        remaining = notFull.awaitNanos(remaining);
+      }
+      if (closing || (!priority && lane.size() >= bulkCapacity))
+      {
+        return false;
+      }
+      lane.add(task);
+      notEmpty.signal();
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the given time. On the publisher thread, the priority publishes
+   * queued meanwhile are run and the wait ends early after them, so that the
+   * caller checks its own condition again.
+   */
+  public void servePriority(long nanos) throws InterruptedException
+  {
+    if (Thread.currentThread() != thread)
+    {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+      return;
+    }
+    lock.lockInterruptibly();
+    try
+    {
+      long remaining = nanos;
+      while (priorityLane.isEmpty())
+      {
+        if (remaining <= 0L)
+        {
+          return;
+        }
+        remaining = notEmpty.awaitNanos(remaining);
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    Runnable task;
+    while ((task = pollPriority()) != null)
+    {
+      runTask(task);
+    }
+  }
+
+  /**
+   * @return the number of publishes queued on both lanes
+   */
+  public int getQueued()
+  {
+    lock.lock();
+    try
+    {
+      return priorityLane.size() + bulkLane.size();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops queuing publishes and waits, for at most the given time, until the
+   * queued ones were run, then stops the publisher thread.
+   *
+   * @return the publishes still queued, which are not run
+   */
+  public List<Runnable> close(long timeoutMillis)
+  {
+    List<Runnable> pending = new ArrayList<Runnable>();
+    lock.lock();
+    try
+    {
+      closing = true;
+      notFull.signalAll();
+      long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while ((running || !priorityLane.isEmpty() || !bulkLane.isEmpty()) && remaining > 0L)
+      {
+        remaining = notFull.awaitNanos(remaining);
+      }
+      pending.addAll(priorityLane);
+      pending.addAll(bulkLane);
+      priorityLane.clear();
+      bulkLane.clear();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    finally
+    {
+      closed = true;
+      lock.unlock();
+    }
+    return pending;
+  }
+
+  private void run()
+  {
+    while (!closed)
+    {
+      try
+      {
+        Runnable task = take(100L);
+        if (task != null)
+        {
+          runTask(task);
+          finished();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+    }
+  }
+
+  private void finished()
+  {
+    lock.lock();
+    try
+    {
+      running = false;
+      notFull.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private void runTask(Runnable task)
+  {
+    try
+    {
+      task.run();
+    }
+    catch (RuntimeException e)
+    {
+      // never let a failed publish stop the publisher
+      LOGGER.error("UNEXPECTED_ERROR", e);
+    }
+  }
+
+  /**
+   * @return the oldest priority publish, else the oldest bulk publish, or
+   *         <code>null</code> if none was queued within the timeout
+   */
+  private Runnable take(long timeoutMillis) throws InterruptedException
+  {
+    lock.lockInterruptibly();
+    try
+    {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (priorityLane.isEmpty() && bulkLane.isEmpty())
+      {
+        if (remaining <= 0L)
+        {
+          return null;
+        }
+        remaining = notEmpty.awaitNanos(remaining);
+      }
+      notFull.signalAll();
+      running = true;
+      return !priorityLane.isEmpty() ? priorityLane.poll() : bulkLane.poll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private Runnable pollPriority()
+  {
+    lock.lock();
+    try
+    {
+      Runnable task = priorityLane.poll();
+      if (task != null)
+      {
+        notFull.signalAll();
+      }
+      return task;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the publishes of one connection within the rate limits of the
+ * broker, which throttles each connection by messages per second and by
+ * bytes per second. Each limit is a token bucket holding up to one second of
+ * its rate; a message takes one message token and a byte token per byte.
+ * <p>
+ * A message larger than a full byte bucket passes once the bucket is full
+ * and leaves it in debt, so that oversized messages are slowed down rather
+ * than blocked for good.
+ * <p>
+ * A share of each bucket can be held in reserve: messages acquiring with a
+ * reserve pass only while the bucket holds their tokens on top of it, which
+ * keeps that share for the messages acquiring without one.
+ */
+public class AwsIoTHubRateGovernor
+{
+  /**
+   * What happens to a message that finds no connection with tokens left: it
+   * is dropped at once (SHED), or waits for tokens up to a timeout and is
+   * dropped then (QUEUE).
+   */
+  public enum Policy
+  {
+    SHED, QUEUE
+  };
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private double            messageRate      = 0.0;
+  private double            byteRate         = 0.0;
+  private double            messageTokens    = 0.0;
+  private double            byteTokens       = 0.0;
+  private long              refillNanos      = System.nanoTime();
+  private volatile long     acquireNanos     = System.nanoTime();
+
+  /**
+   * @param messagesPerSecond
+   *          0 for no limit
+   * @param bytesPerSecond
+   *          0 for no limit
+   */
+  public AwsIoTHubRateGovernor(double messagesPerSecond, double bytesPerSecond)
+  {
+    configure(messagesPerSecond, bytesPerSecond);
+    messageTokens = messageRate;
+    byteTokens = byteRate;
+  }
+
+  /**
+   * Changes the limits; the tokens held are kept up to the new bucket sizes.
+   */
+  public synchronized void configure(double messagesPerSecond, double bytesPerSecond)
+  {
+    messageRate = Math.max(0.0, messagesPerSecond);
+    byteRate = Math.max(0.0, bytesPerSecond);
+    messageTokens = Math.min(messageTokens, messageRate);
+    byteTokens = Math.min(byteTokens, byteRate);
+  }
+
+  public synchronized boolean isLimited()
+  {
+    return messageRate > 0.0 || byteRate > 0.0;
+  }
+
+  /**
+   * Takes the tokens of a message if both buckets hold enough.
+   *
+   * @return <code>false</code> if the message would exceed a limit; no token
+   *         is taken then
+   */
+  public boolean tryAcquire(int bytes, long nowNanos)
+  {
+    return tryAcquire(bytes, nowNanos, 0.0);
+  }
+
+  /**
+   * Takes the tokens of a message if both buckets hold enough on top of the
+   * reserve.
+   *
+   * @param reserve
+   *          the share of each bucket, from 0 to 1, left to messages
+   *          acquiring without a reserve
+   * @return <code>false</code> if the message would exceed a limit; no token
+   *         is taken then
+   */
+  public synchronized boolean tryAcquire(int bytes, long nowNanos, double reserve)
+  {
+    refill(nowNanos);
+    if ((messageRate > 0.0 && messageTokens < messagesNeeded(reserve)) || (byteRate > 0.0 && byteTokens < bytesNeeded(bytes, reserve)))
+    {
+      return false;
+    }
+    messageTokens -= (messageRate > 0.0) ? 1.0 : 0.0;
+    byteTokens -= (byteRate > 0.0) ? bytes : 0.0;
+    acquireNanos = nowNanos;
+    return true;
+  }
+
+  /**
+   * @return the time until both buckets hold enough tokens for a message, in
+   *         nanoseconds
+   */
+  public long nanosUntil(int bytes, long nowNanos)
+  {
+    return nanosUntil(bytes, nowNanos, 0.0);
+  }
+
+  /**
+   * @return the time until both buckets hold enough tokens for a message on
+   *         top of the reserve, in nanoseconds
+   */
+  public synchronized long nanosUntil(int bytes, long nowNanos, double reserve)
+  {
+    refill(nowNanos);
+    double seconds = 0.0;
+    if (messageRate > 0.0)
+    {
+      seconds = Math.max(seconds, (messagesNeeded(reserve) - messageTokens) / messageRate);
+    }
+    if (byteRate > 0.0)
+    {
+      seconds = Math.max(seconds, (bytesNeeded(bytes, reserve) - byteTokens) / byteRate);
+    }
+    return (long) Math.ceil(seconds * NANOS_PER_SECOND);
+  }
+
+  /**
+   * @return the {@link System#nanoTime()} of the last message that took its
+   *         tokens
+   */
+  public long getAcquireNanos()
+  {
+    return acquireNanos;
+  }
+
+  // never more than a full bucket, or the message could never pass
+  private double messagesNeeded(double reserve)
+  {
+    return Math.max(1.0, Math.min(1.0 + reserve * messageRate, messageRate));
+  }
+
+  private double bytesNeeded(int bytes, double reserve)
+  {
+    return Math.min(bytes + reserve * byteRate, byteRate);
+  }
+
+  private void refill(long nowNanos)
+  {
+    double seconds = (double) Math.max(0L, nowNanos - refillNanos) / NANOS_PER_SECOND;
+    refillNanos = nowNanos;
+    messageTokens = Math.min(messageRate, messageTokens + seconds * messageRate);
+    byteTokens = Math.min(byteRate, byteTokens + seconds * byteRate);
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return ((messageRate > 0.0) ? messageRate + " messages/s" : "unlimited messages") + ", " + ((byteRate > 0.0) ? byteRate + " bytes/s" : "unlimited bytes");
+  }
+}
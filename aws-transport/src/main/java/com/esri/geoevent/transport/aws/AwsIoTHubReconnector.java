@@ -0,0 +1,191 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the connect of one transport on the {@link AwsIoTHubScheduler} and
+ * retries it with exponential backoff and jitter until it succeeds or the
+ * transport is stopped. The jitter spreads the reconnects of many connectors
+ * after an outage so they do not hit the endpoint all at once.
+ */
+public class AwsIoTHubReconnector implements Runnable
+{
+  public enum ConnectionState
+  {
+    DISCONNECTED, CONNECTING, CONNECTED, BACKING_OFF
+  };
+
+  /**
+   * Implemented by the transports to establish their connection and to be told
+   * about the outcome.
+   */
+  public interface Callback
+  {
+    /**
+     * Establishes the connection. Any exception schedules a retry.
+     */
+    void connect() throws Exception;
+
+    void onConnected();
+
+    void onConnectFailed(Exception error, long retryDelay);
+  }
+
+  // backoff bounds in milliseconds
+  private static final long        BASE_DELAY = 1000L;
+  private static final long        MAX_DELAY  = 120000L;
+
+  private final Callback           callback;
+  private volatile ConnectionState state      = ConnectionState.DISCONNECTED;
+  private volatile boolean         active     = false;
+  private int                      attempts   = 0;
+  private ScheduledFuture<?>       future     = null;
+
+  public AwsIoTHubReconnector(Callback callback)
+  {
+    this.callback = callback;
+  }
+
+  /**
+   * Starts connecting asynchronously right away, cancelling any pending retry.
+   */
+  public synchronized void start()
+  {
+    cancel();
+    active = true;
+    attempts = 0;
+    schedule(0L);
+  }
+
+  /**
+   * Schedules a reconnect after the connection was lost, unless one is already
+   * in progress.
+   */
+  public synchronized void reconnect()
+  {
+    if (active && state != ConnectionState.CONNECTING && state != ConnectionState.BACKING_OFF)
+    {
+      attempts++;
+      schedule(nextDelay());
+    }
+  }
+
+  public synchronized void stop()
+  {
+    active = false;
+    cancel();
+    state = ConnectionState.DISCONNECTED;
+  }
+
+  /**
+   * @return <code>false</code> once {@link #stop()} was called; the callbacks
+   *         check this so a connect that finishes after the transport was
+   *         stopped is discarded.
+   */
+  public boolean isActive()
+  {
+    return active;
+  }
+
+  public ConnectionState getState()
+  {
+    return state;
+  }
+
+  public synchronized int getAttempts()
+  {
+    return attempts;
+  }
+
+  @Override
+  public void run()
+  {
+    if (!active)
+    {
+      return;
+    }
+
+    state = ConnectionState.CONNECTING;
+    try
+    {
+      callback.connect();
+      synchronized (this)
+      {
+        if (!active)
+        {
+          return;
+        }
+        attempts = 0;
+        state = ConnectionState.CONNECTED;
+      }
+      callback.onConnected();
+    }
+    catch (Exception e)
+    {
+      long delay;
+      synchronized (this)
+      {
+        if (!active)
+        {
+          return;
+        }
+        attempts++;
+        delay = nextDelay();
+        schedule(delay);
+      }
+      callback.onConnectFailed(e, delay);
+    }
+  }
+
+  /**
+   * Exponential backoff with "equal jitter": half of the current ceiling plus a
+   * random share of the other half.
+   */
+  private long nextDelay()
+  {
+    long ceiling = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempts, 16));
+    return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+  }
+
+  private void schedule(long delay)
+  {
+    state = (delay > 0) ? ConnectionState.BACKING_OFF : ConnectionState.CONNECTING;
+    future = AwsIoTHubScheduler.getExecutor().schedule(this, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancel()
+  {
+    if (future != null)
+    {
+      future.cancel(false);
+      future = null;
+    }
+  }
+}
@@ -0,0 +1,326 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * Puts the messages of each device (a key, see {@link AwsIoTHubMessageKey})
+ * back into device timestamp order. Every message is held in the buffer of its
+ * device until it can no longer be overtaken: until a message of the device
+ * at least the lateness newer arrived, or at most the lateness after it
+ * arrived itself. Buffered messages are released oldest first.
+ * <p>
+ * A message older than one already released from its device is late; it is
+ * dropped or, if late messages are kept, released at once.
+ * <p>
+ * The buffered messages of all the devices are bounded: beyond the capacity,
+ * the oldest message of the arriving device is released early. The messages
+ * of new devices pass unsequenced while the most devices are tracked.
+ * Released messages are handed, under the lock of the resequencer, to a
+ * thread of its own that runs them in the order they were released, so a
+ * message is always run before the later messages of its device and no
+ * message runs while the lock is held.
+ */
+public class AwsIoTHubResequencer
+{
+  // logger
+  private static final BundleLogger         LOGGER       = BundleLoggerFactory.getLogger(AwsIoTHubResequencer.class);
+
+  // a device not heard from for this long is forgotten
+  private static final long                 IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+  private final long                        lateness;
+  private final int                         capacity;
+  private final int                         maxTracks;
+  private final boolean                     keepLate;
+  private final Runnable                    lateListener;
+  private final Map<Long, Track>            tracks       = new HashMap<Long, Track>();
+  // the tracks with buffered messages
+  private final Set<Track>                  waiting      = new LinkedHashSet<Track>();
+  // runs the periodic releases and the released messages
+  private final ScheduledThreadPoolExecutor executor;
+  private final ScheduledFuture<?>          releaser;
+  private boolean                           closed       = false;
+  private int                               buffered     = 0;
+  private long                              sequence     = 0L;
+  private long                              lastEviction;
+
+  /**
+   * Starts releasing the buffered messages in the background.
+   *
+   * @param name
+   *          part of the thread name
+   * @param lateness
+   *          how long a message waits for older ones, in milliseconds
+   * @param capacity
+   *          the most messages buffered over all the devices
+   * @param maxTracks
+   *          the most devices tracked at a time
+   * @param keepLate
+   *          release late messages out of order rather than dropping them
+   * @param lateListener
+   *          called for every late message, kept or not
+   */
+  public AwsIoTHubResequencer(String name, long lateness, int capacity, int maxTracks, boolean keepLate, Runnable lateListener)
+  {
+    this.lateness = Math.max(1L, lateness);
+    this.capacity = Math.max(1, capacity);
+    this.maxTracks = Math.max(1, maxTracks);
+    this.keepLate = keepLate;
+    this.lateListener = lateListener;
+    lastEviction = System.currentTimeMillis();
+    // releases within a quarter of the lateness of being due
+    long period = Math.max(10L, this.lateness / 4);
+    executor = new ScheduledThreadPoolExecutor(1, runnable ->
+    {
+      Thread thread = new Thread(runnable, "aws-iot-resequencer-" + name);
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    releaser = executor.scheduleWithFixedDelay(() -> release(System.currentTimeMillis()), period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Buffers a message and hands over the messages it makes due.
+   *
+   * @param trackHash
+   *          {@link AwsIoTHubMessageKey#hash64(String, byte[])} of the
+   *          message
+   * @param deviceMillis
+   *          the device timestamp of the message
+   * @param task
+   *          runs the message when it is released
+   * @return <code>false</code> if the message was late and dropped, or the
+   *         resequencer closed; the task is not run then
+   */
+  public synchronized boolean offer(long trackHash, long deviceMillis, long nowMillis, Runnable task)
+  {
+    if (closed)
+    {
+      return false;
+    }
+    Track track = tracks.get(trackHash);
+    if (track == null)
+    {
+      if (tracks.size() >= maxTracks)
+      {
+        run(task);
+        return true;
+      }
+      track = new Track();
+      tracks.put(trackHash, track);
+    }
+    track.seenTime = nowMillis;
+    if (deviceMillis < track.releasedTime)
+    {
+      lateListener.run();
+      if (keepLate)
+      {
+        run(task);
+      }
+      return keepLate;
+    }
+    track.pending.add(new Entry(deviceMillis, nowMillis, sequence++, task));
+    track.newestTime = Math.max(track.newestTime, deviceMillis);
+    buffered++;
+    waiting.add(track);
+    releaseDue(track, nowMillis, true);
+    while (buffered > capacity && !track.pending.isEmpty())
+    {
+      releaseFirst(track);
+    }
+    if (track.pending.isEmpty())
+    {
+      waiting.remove(track);
+    }
+    return true;
+  }
+
+  /**
+   * Hands over the buffered messages that are due and forgets the idle
+   * devices.
+   */
+  public synchronized void release(long nowMillis)
+  {
+    for (Iterator<Track> it = waiting.iterator(); it.hasNext();)
+    {
+      Track track = it.next();
+      releaseDue(track, nowMillis, false);
+      if (track.pending.isEmpty())
+      {
+        it.remove();
+      }
+    }
+    if (nowMillis - lastEviction >= TimeUnit.MINUTES.toMillis(1))
+    {
+      lastEviction = nowMillis;
+      tracks.values().removeIf(track -> track.pending.isEmpty() && nowMillis - track.seenTime >= IDLE_TIMEOUT);
+    }
+  }
+
+  /**
+   * Hands over all the buffered messages, in order per device.
+   */
+  public synchronized void flush()
+  {
+    for (Track track : waiting)
+    {
+      while (!track.pending.isEmpty())
+      {
+        releaseFirst(track);
+      }
+    }
+    waiting.clear();
+  }
+
+  /**
+   * Stops releasing; the message running is finished first.
+   *
+   * @return the number of messages still buffered or not run yet, which are
+   *         not run
+   */
+  public synchronized int close()
+  {
+    closed = true;
+    releaser.cancel(false);
+    List<Runnable> handedOver = new ArrayList<Runnable>();
+    executor.getQueue().drainTo(handedOver);
+    executor.shutdown();
+    int dropped = buffered + handedOver.size();
+    for (Track track : waiting)
+    {
+      track.pending.clear();
+    }
+    waiting.clear();
+    buffered = 0;
+    return dropped;
+  }
+
+  public synchronized int getBuffered()
+  {
+    return buffered;
+  }
+
+  /**
+   * @param removeEmpty
+   *          remove the track from the waiting set if it runs empty; callers
+   *          iterating the set remove it themselves
+   */
+  private void releaseDue(Track track, long nowMillis, boolean removeEmpty)
+  {
+    long watermark = track.newestTime - lateness;
+    Entry first;
+    while ((first = track.pending.peek()) != null && (first.deviceTime <= watermark || nowMillis - first.arrivalTime >= lateness))
+    {
+      releaseFirst(track);
+    }
+    if (removeEmpty && track.pending.isEmpty())
+    {
+      waiting.remove(track);
+    }
+  }
+
+  private void releaseFirst(Track track)
+  {
+    Entry first = track.pending.poll();
+    buffered--;
+    track.releasedTime = Math.max(track.releasedTime, first.deviceTime);
+    run(first.task);
+  }
+
+  /**
+   * Queues a released message on the thread of the resequencer, which keeps
+   * the release order.
+   */
+  private void run(Runnable task)
+  {
+    executor.execute(() ->
+    {
+      try
+      {
+        task.run();
+      }
+      catch (RuntimeException e)
+      {
+        // never let a failed delivery stop the releases
+        LOGGER.error("UNEXPECTED_ERROR", e);
+      }
+    });
+  }
+
+  @Override
+  public String toString()
+  {
+    return "lateness=" + lateness + "ms capacity=" + capacity + " tracks=" + maxTracks + (keepLate ? " keeping" : " dropping") + " late messages";
+  }
+
+  private static final class Track
+  {
+    private final PriorityQueue<Entry> pending      = new PriorityQueue<Entry>();
+    private long                       newestTime   = Long.MIN_VALUE;
+    private long                       releasedTime = Long.MIN_VALUE;
+    private long                       seenTime;
+  }
+
+  private static final class Entry implements Comparable<Entry>
+  {
+    private final long     deviceTime;
+    private final long     arrivalTime;
+    // keeps the arrival order of equal timestamps
+    private final long     sequence;
+    private final Runnable task;
+
+    private Entry(long deviceTime, long arrivalTime, long sequence, Runnable task)
+    {
+      this.deviceTime = deviceTime;
+      this.arrivalTime = arrivalTime;
+      this.sequence = sequence;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(Entry other)
+    {
+      int order = Long.compare(deviceTime, other.deviceTime);
+      return (order != 0) ? order : Long.compare(sequence, other.sequence);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The scheduler shared by all the AWS IoT transports of the bundle. It runs
+ * the (blocking) connects and the periodic housekeeping tasks so that the
+ * transports do not need threads of their own. The pool size also caps how
+ * many connects run at the same time when many connectors start together.
+ */
+public class AwsIoTHubScheduler
+{
+  private static final int                         POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors());
+  private static final ScheduledThreadPoolExecutor EXECUTOR  = new ScheduledThreadPoolExecutor(POOL_SIZE, new DaemonThreadFactory());
+
+  static
+  {
+    // cancelled retries must not pile up in the queue
+    EXECUTOR.setRemoveOnCancelPolicy(true);
+  }
+
+  private AwsIoTHubScheduler()
+  {
+  }
+
+  public static ScheduledExecutorService getExecutor()
+  {
+    return EXECUTOR;
+  }
+
+  private static final class DaemonThreadFactory implements ThreadFactory
+  {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "aws-iot-scheduler-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
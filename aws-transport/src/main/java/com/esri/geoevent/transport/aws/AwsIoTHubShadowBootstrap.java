@@ -0,0 +1,391 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Fetches the current shadow of a list of things over MQTT, so a connector
+ * starts from the state of every device instead of waiting for each one to
+ * report again. One wildcard subscription receives the responses of all the
+ * things; the shadow GET requests are published one after another with at
+ * most a given number of them unanswered, and a request unanswered for
+ * {@link #REQUEST_TIMEOUT_MILLIS} gives up its place.
+ * <p>
+ * Each response is reduced to the reported state and handed over in the
+ * shape of an update of it, on the <code>update/accepted</code> topic of its
+ * thing, so it reads like the live shadow updates.
+ */
+public class AwsIoTHubShadowBootstrap
+{
+  public static final long                    REQUEST_TIMEOUT_MILLIS = 10000L;
+  // the most thing names a list expands to, against a mistyped range
+  public static final int                     MAX_THINGS             = 1000000;
+
+  private static final String                 SHADOW_PREFIX          = "$aws/things/";
+  private static final String                 ACCEPTED_TOPIC         = SHADOW_PREFIX + "+/shadow/get/accepted";
+  private static final String                 REJECTED_TOPIC         = SHADOW_PREFIX + "+/shadow/get/rejected";
+  private static final Pattern                RANGE                  = Pattern.compile("\\{(\\d{1,9})\\.\\.(\\d{1,9})\\}");
+  private static final ObjectMapper           MAPPER                 = new ObjectMapper();
+
+  private final List<String>                  thingNames;
+  private final int                           concurrency;
+  private final long                          timeoutMillis;
+  // when each unanswered request was published, by thing name
+  private final Map<String, Long>             pending                = new ConcurrentHashMap<String, Long>();
+  private final Semaphore                     permits;
+  private final AtomicInteger                 delivered              = new AtomicInteger();
+  private final AtomicInteger                 missing                = new AtomicInteger();
+  private volatile BiConsumer<String, byte[]> listener               = null;
+  private volatile boolean                    cancelled              = false;
+  private long                                elapsedMillis          = 0L;
+
+  /**
+   * @param concurrency
+   *          the most requests unanswered at a time
+   * @param timeoutMillis
+   *          the longest the whole bootstrap takes
+   */
+  public AwsIoTHubShadowBootstrap(List<String> thingNames, int concurrency, long timeoutMillis)
+  {
+    this.thingNames = thingNames;
+    this.concurrency = Math.max(1, concurrency);
+    this.timeoutMillis = timeoutMillis;
+    this.permits = new Semaphore(this.concurrency);
+  }
+
+  /**
+   * Parses a list of thing names separated by commas or line breaks. A name
+   * may hold numeric ranges such as <code>truck-{001..250}</code>, zero
+   * padded to the width of the first number if it starts with a zero, and
+   * <code>@path</code> reads more of them from a file, one per line; lines
+   * starting with # are comments.
+   *
+   * @return the distinct thing names in the order listed
+   * @throws IllegalArgumentException
+   *           if the list expands to more than {@link #MAX_THINGS} names
+   */
+  public static List<String> parseThingNames(String spec) throws IOException
+  {
+    Set<String> names = new LinkedHashSet<String>();
+    if (spec != null)
+    {
+      parseThingNames(spec, names, true);
+    }
+    return new ArrayList<String>(names);
+  }
+
+  private static void parseThingNames(String spec, Set<String> names, boolean allowFiles) throws IOException
+  {
+    for (String entry : spec.split("[,\\r\\n]+"))
+    {
+      entry = entry.trim();
+      if (entry.isEmpty() || entry.startsWith("#"))
+      {
+        continue;
+      }
+      if (entry.startsWith("@") && allowFiles)
+      {
+        String lines = new String(Files.readAllBytes(new File(entry.substring(1).trim()).toPath()), StandardCharsets.UTF_8);
+        parseThingNames(lines, names, false);
+        continue;
+      }
+      expand(entry, names);
+    }
+  }
+
+  private static void expand(String name, Set<String> names)
+  {
+    Matcher range = RANGE.matcher(name);
+    if (!range.find())
+    {
+      if (names.size() >= MAX_THINGS)
+      {
+        throw new IllegalArgumentException("More than " + MAX_THINGS + " thing names");
+      }
+      names.add(name);
+      return;
+    }
+    String first = range.group(1);
+    long from = Long.parseLong(first);
+    long to = Long.parseLong(range.group(2));
+    int width = first.startsWith("0") ? first.length() : 0;
+    if (to - from >= MAX_THINGS)
+    {
+      throw new IllegalArgumentException("More than " + MAX_THINGS + " thing names: " + name);
+    }
+    String prefix = name.substring(0, range.start());
+    String suffix = name.substring(range.end());
+    for (long number = from; number <= to; number++)
+    {
+      String digits = Long.toString(number);
+      StringBuilder padded = new StringBuilder(prefix);
+      for (int i = digits.length(); i < width; i++)
+      {
+        padded.append('0');
+      }
+      // the suffix may hold more ranges
+      expand(padded.append(digits).append(suffix).toString(), names);
+    }
+  }
+
+  /**
+   * Requests the shadow of every thing and hands the reported states over
+   * to the listener, on the client callback thread, as they arrive. Returns
+   * once every request is answered or timed out, the overall timeout passed
+   * or the bootstrap was cancelled.
+   *
+   * @param listener
+   *          called with the topic and the document of each reported state
+   */
+  public void run(AWSIotMqttClient client, BiConsumer<String, byte[]> listener) throws AWSIotException, InterruptedException
+  {
+    long start = System.currentTimeMillis();
+    long deadline = start + timeoutMillis;
+    this.listener = listener;
+    try
+    {
+      client.subscribe(new ResponseTopic(ACCEPTED_TOPIC, true), true);
+      client.subscribe(new ResponseTopic(REJECTED_TOPIC, false), true);
+      for (String thingName : thingNames)
+      {
+        if (!acquire(deadline))
+        {
+          break;
+        }
+        // before the request, its response may come first
+        pending.put(thingName, System.currentTimeMillis());
+        client.publish(SHADOW_PREFIX + thingName + "/shadow/get", AWSIotQos.QOS0, new byte[0]);
+      }
+      // wait for the last responses
+      for (int i = 0; i < concurrency; i++)
+      {
+        if (!acquire(deadline))
+        {
+          break;
+        }
+      }
+    }
+    finally
+    {
+      // late responses are ignored
+      this.listener = null;
+      pending.clear();
+      elapsedMillis = System.currentTimeMillis() - start;
+      unsubscribe(client);
+    }
+  }
+
+  /**
+   * Stops requesting shadows; the responses arriving from now on are
+   * ignored and {@link #run(AWSIotMqttClient, BiConsumer)} returns within a
+   * tenth of a second.
+   */
+  public void cancel()
+  {
+    cancelled = true;
+    listener = null;
+  }
+
+  /**
+   * Waits for a request to be answered, giving up the requests unanswered
+   * for too long.
+   *
+   * @return <code>false</code> if the overall timeout passed or the
+   *         bootstrap was cancelled
+   */
+  private boolean acquire(long deadline) throws InterruptedException
+  {
+    while (!cancelled && !permits.tryAcquire(100L, TimeUnit.MILLISECONDS))
+    {
+      long now = System.currentTimeMillis();
+      if (now >= deadline || cancelled)
+      {
+        return false;
+      }
+      Iterator<Map.Entry<String, Long>> requests = pending.entrySet().iterator();
+      while (requests.hasNext())
+      {
+        Map.Entry<String, Long> request = requests.next();
+        if (now - request.getValue() >= REQUEST_TIMEOUT_MILLIS && pending.remove(request.getKey(), request.getValue()))
+        {
+          permits.release();
+        }
+      }
+    }
+    return !cancelled;
+  }
+
+  private void unsubscribe(AWSIotMqttClient client)
+  {
+    try
+    {
+      client.unsubscribe(ACCEPTED_TOPIC);
+      client.unsubscribe(REJECTED_TOPIC);
+    }
+    catch (AWSIotException e)
+    {
+      // the connection failed and is closed by the caller
+    }
+  }
+
+  private void respond(String topic, byte[] payload, boolean accepted)
+  {
+    BiConsumer<String, byte[]> currentListener = listener;
+    int end = topic.indexOf('/', SHADOW_PREFIX.length());
+    if (currentListener == null || end < 0)
+    {
+      return;
+    }
+    String thingName = topic.substring(SHADOW_PREFIX.length(), end);
+    // also answers the requests of other clients
+    if (pending.remove(thingName) == null)
+    {
+      return;
+    }
+    byte[] document = accepted ? reduce(payload) : null;
+    if (document != null)
+    {
+      delivered.incrementAndGet();
+      currentListener.accept(SHADOW_PREFIX + thingName + "/shadow/update/accepted", document);
+    }
+    else
+    {
+      // no shadow or no reported state
+      missing.incrementAndGet();
+    }
+    permits.release();
+  }
+
+  /**
+   * @return the reported state of a shadow document with its metadata,
+   *         version and timestamp, or <code>null</code> if it has none
+   */
+  static byte[] reduce(byte[] shadow)
+  {
+    try
+    {
+      JsonNode root = MAPPER.readTree(shadow);
+      JsonNode reported = root.path("state").path("reported");
+      if (!reported.isObject())
+      {
+        return null;
+      }
+      ObjectNode update = MAPPER.createObjectNode();
+      update.putObject("state").set("reported", reported);
+      JsonNode metadata = root.path("metadata").path("reported");
+      if (metadata.isObject())
+      {
+        update.putObject("metadata").set("reported", metadata);
+      }
+      if (root.has("version"))
+      {
+        update.set("version", root.get("version"));
+      }
+      if (root.has("timestamp"))
+      {
+        update.set("timestamp", root.get("timestamp"));
+      }
+      return MAPPER.writeValueAsBytes(update);
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+  }
+
+  public int getDelivered()
+  {
+    return delivered.get();
+  }
+
+  public int getMissing()
+  {
+    return missing.get();
+  }
+
+  /**
+   * @return the number of things not requested or not answered in time
+   */
+  public int getUnanswered()
+  {
+    return thingNames.size() - delivered.get() - missing.get();
+  }
+
+  public long getElapsedMillis()
+  {
+    return elapsedMillis;
+  }
+
+  @Override
+  public String toString()
+  {
+    return thingNames.size() + " thing(s), " + concurrency + " request(s) at a time";
+  }
+
+  private final class ResponseTopic extends AWSIotTopic
+  {
+    private final boolean accepted;
+
+    private ResponseTopic(String topic, boolean accepted)
+    {
+      super(topic, AWSIotQos.QOS0);
+      this.accepted = accepted;
+    }
+
+    @Override
+    public void onMessage(AWSIotMessage message)
+    {
+      respond(message.getTopic(), message.getPayload(), accepted);
+    }
+  }
+}
@@ -0,0 +1,459 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The last message of each device (see {@link AwsIoTHubMessageKey}), to
+ * replay the current state of a fleet to a restarted consumer.
+ * <p>
+ * The messages are kept off the heap, in a direct buffer of a fixed size
+ * written as a log: an update appends the new message and leaves the old one
+ * behind. A full log is compacted in place; when the live messages fill more
+ * than 7/8 of it, the devices updated least recently are dropped. The log is indexed
+ * by a table of primitive arrays (open addressing on the 64-bit key hash), so
+ * a large fleet adds only a few objects to the heap. Each log entry is:
+ *
+ * <pre>
+ * long   key hash
+ * long   arrival time, epoch milliseconds
+ * short  topic length
+ * int    payload length
+ * bytes  topic (UTF-8) and payload
+ * </pre>
+ *
+ * The state file holds the magic bytes <code>AWSS</code>, a version byte and
+ * the live entries, oldest first, in the same layout.
+ */
+public class AwsIoTHubStateCache
+{
+  static final byte[]       MAGIC        = { 'A', 'W', 'S', 'S' };
+  static final int          VERSION      = 1;
+
+  private static final int  HEADER_SIZE  = 8 + 8 + 2 + 4;
+  private static final long EMPTY        = 0L;
+  // the states copied out of the log at a time for a snapshot
+  private static final int  BATCH_SIZE   = 256;
+
+  private final ByteBuffer  log;
+  private int               end          = 0;
+  private int               liveBytes    = 0;
+  // the table: key hash and log offset of the live entry of each device
+  private long[]            keys;
+  private int[]             offsets;
+  private int               size         = 0;
+  // changes with every update, to skip persisting an unchanged cache
+  private long              version      = 0L;
+  private long              droppedCount = 0L;
+  private final byte[]      moveBuffer   = new byte[8192];
+
+  /**
+   * @param capacity
+   *          the size of the log in bytes, allocated off the heap at once
+   */
+  public AwsIoTHubStateCache(int capacity)
+  {
+    log = ByteBuffer.allocateDirect(capacity);
+    keys = new long[1024];
+    offsets = new int[keys.length];
+  }
+
+  /**
+   * A state copied out of the cache.
+   */
+  public interface StateVisitor
+  {
+    void visit(long keyHash, long arrivalMillis, String topic, byte[] payload) throws IOException;
+  }
+
+  /**
+   * Makes the message the state of its device.
+   *
+   * @param keyHash
+   *          {@link AwsIoTHubMessageKey#hash64(String, byte[])} of the
+   *          message
+   */
+  public synchronized void record(long keyHash, String topic, byte[] payload, long arrivalMillis)
+  {
+    byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+    int entrySize = HEADER_SIZE + topicBytes.length + payload.length;
+    if (topicBytes.length > Short.MAX_VALUE || entrySize > log.capacity())
+    {
+      return;
+    }
+    long key = (keyHash == EMPTY) ? 1L : keyHash;
+    if (end + entrySize > log.capacity())
+    {
+      compact(key, entrySize);
+    }
+    int slot = find(key);
+    if (keys[slot] == key)
+    {
+      // the old entry stays behind in the log until a compaction
+      liveBytes -= entrySizeAt(offsets[slot]);
+    }
+    else
+    {
+      if ((size + 1) * 4L > keys.length * 3L)
+      {
+        rebuild(keys.length * 2);
+        slot = find(key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    log.putLong(end, key);
+    log.putLong(end + 8, arrivalMillis);
+    log.putShort(end + 16, (short) topicBytes.length);
+    log.putInt(end + 18, payload.length);
+    log.position(end + HEADER_SIZE);
+    log.put(topicBytes);
+    log.put(payload);
+    offsets[slot] = end;
+    end += entrySize;
+    liveBytes += entrySize;
+    version++;
+  }
+
+  /**
+   * Copies the states out of the cache, oldest first, a batch at a time so
+   * the messages arriving meanwhile are not held up. A device updated during
+   * the snapshot is visited with its newer state; a device first seen during
+   * it is not visited.
+   *
+   * @return the number of states visited
+   */
+  public int snapshot(StateVisitor visitor) throws IOException
+  {
+    long[] order = keysInLogOrder();
+    long[] batchKeys = new long[BATCH_SIZE];
+    long[] batchTimes = new long[BATCH_SIZE];
+    String[] batchTopics = new String[BATCH_SIZE];
+    byte[][] batchPayloads = new byte[BATCH_SIZE][];
+    int visited = 0;
+    for (int from = 0; from < order.length; from += BATCH_SIZE)
+    {
+      int count = 0;
+      synchronized (this)
+      {
+        for (int i = from; i < Math.min(order.length, from + BATCH_SIZE); i++)
+        {
+          int slot = find(order[i]);
+          if (keys[slot] != order[i])
+          {
+            continue;
+          }
+          int offset = offsets[slot];
+          int topicLength = log.getShort(offset + 16);
+          byte[] topicBytes = new byte[topicLength];
+          byte[] payload = new byte[log.getInt(offset + 18)];
+          log.position(offset + HEADER_SIZE);
+          log.get(topicBytes);
+          log.get(payload);
+          batchKeys[count] = order[i];
+          batchTimes[count] = log.getLong(offset + 8);
+          batchTopics[count] = new String(topicBytes, StandardCharsets.UTF_8);
+          batchPayloads[count] = payload;
+          count++;
+        }
+      }
+      for (int i = 0; i < count; i++)
+      {
+        visitor.visit(batchKeys[i], batchTimes[i], batchTopics[i], batchPayloads[i]);
+        batchPayloads[i] = null;
+      }
+      visited += count;
+    }
+    return visited;
+  }
+
+  /**
+   * Writes the states to a file, replacing it only once it is complete.
+   *
+   * @return the number of states written
+   */
+  public int save(File file) throws IOException
+  {
+    File temporary = new File(file.getPath() + ".tmp");
+    int saved;
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536)))
+    {
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      saved = snapshot((keyHash, arrivalMillis, topic, payload) ->
+      {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        out.writeLong(keyHash);
+        out.writeLong(arrivalMillis);
+        out.writeShort(topicBytes.length);
+        out.writeInt(payload.length);
+        out.write(topicBytes);
+        out.write(payload);
+      });
+    }
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return saved;
+  }
+
+  /**
+   * Reads back the states of a file written by {@link #save(File)}. A last
+   * entry cut short ends the file.
+   *
+   * @return the number of states read
+   */
+  public int load(File file) throws IOException
+  {
+    int loaded = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536)))
+    {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION)
+      {
+        throw new IOException("Not a state file (version " + VERSION + "): " + file);
+      }
+      while (true)
+      {
+        long keyHash;
+        try
+        {
+          keyHash = in.readLong();
+        }
+        catch (EOFException e)
+        {
+          break;
+        }
+        long arrivalMillis = in.readLong();
+        int topicLength = in.readUnsignedShort();
+        int payloadLength = in.readInt();
+        if (payloadLength < 0 || HEADER_SIZE + topicLength + (long) payloadLength > log.capacity())
+        {
+          throw new IOException("Corrupt state file: entry of " + payloadLength + " bytes");
+        }
+        byte[] topicBytes = new byte[topicLength];
+        byte[] payload = new byte[payloadLength];
+        in.readFully(topicBytes);
+        in.readFully(payload);
+        record(keyHash, new String(topicBytes, StandardCharsets.UTF_8), payload, arrivalMillis);
+        loaded++;
+      }
+    }
+    catch (EOFException e)
+    {
+      // cut short while being written
+    }
+    return loaded;
+  }
+
+  /**
+   * @return the number of devices with a state
+   */
+  public synchronized int getSize()
+  {
+    return size;
+  }
+
+  /**
+   * @return the bytes taken by the states in the log
+   */
+  public synchronized long getBytes()
+  {
+    return liveBytes;
+  }
+
+  /**
+   * @return the number of states dropped to make room for newer ones
+   */
+  public synchronized long getDropped()
+  {
+    return droppedCount;
+  }
+
+  /**
+   * @return a number that changed if any state changed
+   */
+  public synchronized long getVersion()
+  {
+    return version;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "memory=" + log.capacity() + " bytes";
+  }
+
+  /**
+   * Moves the live entries to the start of the log, dropping the oldest ones
+   * until the new entry fits with an eighth of the log free, and rebuilds the
+   * table.
+   *
+   * @param replacedKey
+   *          the device of the new entry; its old entry is dropped
+   */
+  private void compact(long replacedKey, int entrySize)
+  {
+    int replacedSlot = find(replacedKey);
+    int replacedSize = (keys[replacedSlot] == replacedKey) ? entrySizeAt(offsets[replacedSlot]) : 0;
+    // leaving room for more updates than just this one, so a full cache is
+    // not compacted for each update
+    int excess = liveBytes - replacedSize + entrySize - (log.capacity() - log.capacity() / 8);
+    long[] oldKeys = keys;
+    int[] oldOffsets = offsets;
+    int mask = oldKeys.length - 1;
+    keys = new long[oldKeys.length];
+    offsets = new int[oldKeys.length];
+    size = 0;
+    int write = 0;
+    for (int position = 0; position < end;)
+    {
+      long key = log.getLong(position);
+      int currentSize = entrySizeAt(position);
+      // live if the table points at it
+      int slot = (int) (key ^ (key >>> 32)) & mask;
+      while (oldKeys[slot] != EMPTY && oldKeys[slot] != key)
+      {
+        slot = (slot + 1) & mask;
+      }
+      if (oldKeys[slot] == key && oldOffsets[slot] == position)
+      {
+        if (key == replacedKey)
+        {
+          liveBytes -= currentSize;
+        }
+        else if (excess > 0)
+        {
+          excess -= currentSize;
+          liveBytes -= currentSize;
+          droppedCount++;
+        }
+        else
+        {
+          move(position, write, currentSize);
+          int newSlot = find(key);
+          keys[newSlot] = key;
+          offsets[newSlot] = write;
+          size++;
+          write += currentSize;
+        }
+      }
+      position += currentSize;
+    }
+    end = write;
+  }
+
+  /**
+   * Copies an entry towards the start of the log; the two may overlap.
+   */
+  private void move(int from, int to, int length)
+  {
+    if (from == to)
+    {
+      return;
+    }
+    for (int done = 0; done < length;)
+    {
+      int count = Math.min(moveBuffer.length, length - done);
+      log.position(from + done);
+      log.get(moveBuffer, 0, count);
+      log.position(to + done);
+      log.put(moveBuffer, 0, count);
+      done += count;
+    }
+  }
+
+  /**
+   * @return the live keys, in the order of their entries in the log
+   */
+  private synchronized long[] keysInLogOrder()
+  {
+    long[] order = new long[size];
+    int count = 0;
+    for (int position = 0; position < end && count < order.length; position += entrySizeAt(position))
+    {
+      long key = log.getLong(position);
+      int slot = find(key);
+      if (keys[slot] == key && offsets[slot] == position)
+      {
+        order[count++] = key;
+      }
+    }
+    return (count == order.length) ? order : Arrays.copyOf(order, count);
+  }
+
+  private int entrySizeAt(int offset)
+  {
+    return HEADER_SIZE + log.getShort(offset + 16) + log.getInt(offset + 18);
+  }
+
+  /**
+   * Rehashes the table into one of the given size.
+   */
+  private void rebuild(int tableSize)
+  {
+    long[] oldKeys = keys;
+    int[] oldOffsets = offsets;
+    keys = new long[tableSize];
+    offsets = new int[tableSize];
+    for (int i = 0; i < oldKeys.length; i++)
+    {
+      if (oldKeys[i] != EMPTY)
+      {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        offsets[slot] = oldOffsets[i];
+      }
+    }
+  }
+
+  /**
+   * @return the slot of the key, or the empty slot where it belongs
+   */
+  private int find(long key)
+  {
+    int mask = keys.length - 1;
+    int slot = (int) (key ^ (key >>> 32)) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key)
+    {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Finds the device timestamp of a JSON payload without parsing it: only the
+ * value of the first field with the configured name, at any nesting level,
+ * is read (see {@link AwsIoTHubFieldLocator}). The value may be a number of
+ * epoch milliseconds or seconds (with an optional fraction), told apart by
+ * its magnitude, or an ISO-8601 date-time string with an offset.
+ * <p>
+ * Numbers are read straight from the bytes; only a string value allocates.
+ */
+public class AwsIoTHubTimestampExtractor
+{
+  /** Returned when the payload has no usable timestamp. */
+  public static final long            NONE          = Long.MIN_VALUE;
+
+  // epoch values below this are seconds; 10^11 s is in the year 5138 and
+  // 10^11 ms in 1973
+  private static final long           SECONDS_LIMIT = 100000000000L;
+  // longer digit runs would overflow a long
+  private static final int            MAX_DIGITS    = 18;
+
+  private final AwsIoTHubFieldLocator locator;
+
+  public AwsIoTHubTimestampExtractor(String fieldName)
+  {
+    this.locator = new AwsIoTHubFieldLocator(fieldName);
+  }
+
+  public String getFieldName()
+  {
+    return locator.getFieldName();
+  }
+
+  /**
+   * @return the device timestamp in epoch milliseconds, or {@link #NONE}
+   */
+  public long extract(byte[] payload)
+  {
+    int at = locator.locate(payload);
+    return (at >= 0) ? readValue(payload, at) : NONE;
+  }
+
+  private static long readValue(byte[] payload, int i)
+  {
+    if (payload[i] == '"')
+    {
+      int end = i + 1;
+      while (end < payload.length && payload[end] != '"')
+      {
+        end++;
+      }
+      return (end < payload.length) ? parseDateTime(new String(payload, i + 1, end - i - 1, StandardCharsets.US_ASCII)) : NONE;
+    }
+    return readNumber(payload, i);
+  }
+
+  private static long readNumber(byte[] payload, int start)
+  {
+    long whole = 0;
+    int digits = 0;
+    int i = start;
+    while (i < payload.length && isDigit(payload[i]) && digits <= MAX_DIGITS)
+    {
+      whole = whole * 10 + (payload[i++] - '0');
+      digits++;
+    }
+    if (digits == 0 || digits > MAX_DIGITS)
+    {
+      return NONE;
+    }
+    if (whole >= SECONDS_LIMIT)
+    {
+      return whole;
+    }
+
+    // seconds; keep up to three digits of the fraction
+    long millis = whole * 1000;
+    if (i < payload.length && payload[i] == '.')
+    {
+      i++;
+      for (int scale = 100; scale > 0 && i < payload.length && isDigit(payload[i]); scale /= 10)
+      {
+        millis += (payload[i++] - '0') * scale;
+      }
+    }
+    return millis;
+  }
+
+  private static long parseDateTime(String value)
+  {
+    try
+    {
+      return Instant.from(DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(value)).toEpochMilli();
+    }
+    catch (DateTimeParseException e)
+    {
+      return NONE;
+    }
+  }
+
+  private static boolean isDigit(byte b)
+  {
+    return b >= '0' && b <= '9';
+  }
+}
@@ -0,0 +1,471 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+/**
+ * Routes outbound events to topics by their content. The rules are compiled
+ * once into conditions on payload fields, which are evaluated against the raw
+ * payload bytes without parsing it; each field is located at most once per
+ * event however many conditions test it.
+ * <p>
+ * The rules are separated by semicolons or line breaks:
+ *
+ * <pre>
+ * severity &gt;= 3 and region = west -&gt; alerts/${region}@1, audit
+ * type in truck|van -&gt; fleet/vehicles
+ * * -&gt; telemetry
+ * </pre>
+ *
+ * A condition compares a field with =, !=, &lt;, &lt;=, &gt; or &gt;=, or
+ * lists its values with <code>in</code>, separated by |. Values may be
+ * quoted; numbers compare as numbers. A condition on a missing field is
+ * false, except for !=. A target is a topic, optionally followed by @ and its
+ * QoS; <code>${field}</code> in the topic is replaced by the value of the
+ * field.
+ */
+public class AwsIoTHubTopicRules
+{
+  /**
+   * Whether an event goes to the targets of the first rule it matches
+   * (FIRST) or of all of them (ALL).
+   */
+  public enum Mode
+  {
+    FIRST, ALL
+  };
+
+  private static final int              UNLOCATED = -2;
+  private static final Pattern          RULE      = Pattern.compile("(.*?)->(.*)");
+  private static final Pattern          AND       = Pattern.compile("\\s+(?i:and)\\s+|&&");
+  private static final Pattern          CONDITION = Pattern.compile("\\s*([^\\s=!<>]+)\\s*(==|=|!=|<=|>=|<|>|\\s(?i:in)\\s)\\s*(.*?)\\s*");
+  private static final Pattern          TARGET    = Pattern.compile("\\s*([^@\\s]+)\\s*(?:@\\s*([01]))?\\s*");
+  private static final Pattern          FIELD     = Pattern.compile("\\$\\{([^}]+)\\}");
+
+  private final Rule[]                  rules;
+  private final AwsIoTHubFieldLocator[] fields;
+  private final Mode                    mode;
+
+  private enum Operator
+  {
+    EQ, NE, LT, LE, GT, GE
+  };
+
+  /**
+   * @throws IllegalArgumentException
+   *           if a rule cannot be parsed; the message names the rule
+   */
+  public AwsIoTHubTopicRules(String text, Mode mode)
+  {
+    this.mode = mode;
+    Map<String, Integer> fieldIndexes = new LinkedHashMap<String, Integer>();
+    List<Rule> parsed = new ArrayList<Rule>();
+    for (String line : text.split("[;\\r\\n]+"))
+    {
+      if (!line.trim().isEmpty())
+      {
+        parsed.add(parseRule(line.trim(), fieldIndexes));
+      }
+    }
+    rules = parsed.toArray(new Rule[parsed.size()]);
+    fields = new AwsIoTHubFieldLocator[fieldIndexes.size()];
+    for (Map.Entry<String, Integer> field : fieldIndexes.entrySet())
+    {
+      fields[field.getValue()] = new AwsIoTHubFieldLocator(field.getKey());
+    }
+  }
+
+  public int size()
+  {
+    return rules.length;
+  }
+
+  /**
+   * @return the targets of an event, in rule order and without duplicates;
+   *         empty if no rule matches
+   */
+  public List<Target> route(byte[] payload)
+  {
+    int[] positions = new int[fields.length];
+    Arrays.fill(positions, UNLOCATED);
+    List<Target> matched = null;
+    for (Rule rule : rules)
+    {
+      if (!rule.matches(payload, positions))
+      {
+        continue;
+      }
+      if (mode == Mode.FIRST)
+      {
+        return rule.targets;
+      }
+      if (matched == null)
+      {
+        matched = rule.targets;
+        continue;
+      }
+      if (!(matched instanceof ArrayList))
+      {
+        matched = new ArrayList<Target>(matched);
+      }
+      for (Target target : rule.targets)
+      {
+        if (!matched.contains(target))
+        {
+          matched.add(target);
+        }
+      }
+    }
+    return (matched != null) ? matched : Collections.<Target> emptyList();
+  }
+
+  private Rule parseRule(String line, Map<String, Integer> fieldIndexes)
+  {
+    Matcher rule = RULE.matcher(line);
+    if (!rule.matches())
+    {
+      throw new IllegalArgumentException("missing -> in rule: " + line);
+    }
+    List<Condition> conditions = new ArrayList<Condition>();
+    String predicate = rule.group(1).trim();
+    if (!predicate.equals("*"))
+    {
+      for (String part : AND.split(predicate))
+      {
+        Matcher condition = CONDITION.matcher(part);
+        if (!condition.matches() || condition.group(3).isEmpty())
+        {
+          throw new IllegalArgumentException("invalid condition '" + part.trim() + "' in rule: " + line);
+        }
+        Integer field = fieldIndexes.get(condition.group(1));
+        if (field == null)
+        {
+          field = fieldIndexes.size();
+          fieldIndexes.put(condition.group(1), field);
+        }
+        conditions.add(new Condition(field, condition.group(2).trim().toLowerCase(), condition.group(3), line));
+      }
+    }
+    List<Target> targets = new ArrayList<Target>();
+    for (String part : rule.group(2).split(","))
+    {
+      Matcher target = TARGET.matcher(part);
+      if (!target.matches())
+      {
+        throw new IllegalArgumentException("invalid topic '" + part.trim() + "' in rule: " + line);
+      }
+      targets.add(new Target(target.group(1), "1".equals(target.group(2)) ? AWSIotQos.QOS1 : AWSIotQos.QOS0));
+    }
+    return new Rule(conditions.toArray(new Condition[conditions.size()]), Collections.unmodifiableList(targets));
+  }
+
+  private static String unquote(String value)
+  {
+    String trimmed = value.trim();
+    if (trimmed.length() >= 2 && trimmed.startsWith("\"") && trimmed.endsWith("\""))
+    {
+      return trimmed.substring(1, trimmed.length() - 1);
+    }
+    return trimmed;
+  }
+
+  /**
+   * @return the index after the value at the given index, without the quotes
+   *         of a string
+   */
+  private static int contentEnd(byte[] payload, int at)
+  {
+    int end = AwsIoTHubFieldLocator.valueEnd(payload, at);
+    return (payload[at] == '"') ? Math.max(at + 1, end - 1) : end;
+  }
+
+  private static int contentStart(byte[] payload, int at)
+  {
+    return (payload[at] == '"') ? at + 1 : at;
+  }
+
+  @Override
+  public String toString()
+  {
+    return rules.length + " rule(s), " + mode;
+  }
+
+  private final class Rule
+  {
+    private final Condition[]  conditions;
+    private final List<Target> targets;
+
+    private Rule(Condition[] conditions, List<Target> targets)
+    {
+      this.conditions = conditions;
+      this.targets = targets;
+    }
+
+    private boolean matches(byte[] payload, int[] positions)
+    {
+      for (Condition condition : conditions)
+      {
+        int at = positions[condition.field];
+        if (at == UNLOCATED)
+        {
+          at = fields[condition.field].locate(payload);
+          positions[condition.field] = at;
+        }
+        if (!condition.test(payload, at))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final class Condition
+  {
+    private final int      field;
+    private final Operator operator;
+    private final byte[][] texts;
+    // NaN for a value that is not a number
+    private final double[] numbers;
+
+    private Condition(int field, String operator, String values, String line)
+    {
+      this.field = field;
+      List<String> parts = new ArrayList<String>();
+      switch (operator)
+      {
+        case "=":
+        case "==":
+          this.operator = Operator.EQ;
+          parts.add(unquote(values));
+          break;
+        case "in":
+          this.operator = Operator.EQ;
+          for (String value : values.split("\\|"))
+          {
+            parts.add(unquote(value));
+          }
+          break;
+        case "!=":
+          this.operator = Operator.NE;
+          parts.add(unquote(values));
+          break;
+        case "<":
+          this.operator = Operator.LT;
+          parts.add(unquote(values));
+          break;
+        case "<=":
+          this.operator = Operator.LE;
+          parts.add(unquote(values));
+          break;
+        case ">":
+          this.operator = Operator.GT;
+          parts.add(unquote(values));
+          break;
+        default:
+          this.operator = Operator.GE;
+          parts.add(unquote(values));
+          break;
+      }
+      texts = new byte[parts.size()][];
+      numbers = new double[parts.size()];
+      for (int i = 0; i < texts.length; i++)
+      {
+        texts[i] = parts.get(i).getBytes(StandardCharsets.UTF_8);
+        numbers[i] = toNumber(parts.get(i));
+      }
+      if (this.operator != Operator.EQ && this.operator != Operator.NE && Double.isNaN(numbers[0]))
+      {
+        throw new IllegalArgumentException("not a number '" + parts.get(0) + "' in rule: " + line);
+      }
+    }
+
+    private static double toNumber(String value)
+    {
+      try
+      {
+        return Double.parseDouble(value);
+      }
+      catch (NumberFormatException e)
+      {
+        return Double.NaN;
+      }
+    }
+
+    /**
+     * @param at
+     *          the index of the value in the payload, or -1 if the field is
+     *          missing
+     */
+    private boolean test(byte[] payload, int at)
+    {
+      if (at < 0)
+      {
+        return operator == Operator.NE;
+      }
+      switch (operator)
+      {
+        case EQ:
+          return equalsAny(payload, at);
+        case NE:
+          return !equalsAny(payload, at);
+        default:
+          double value = AwsIoTHubDownsampler.readNumber(payload, at);
+          if (Double.isNaN(value))
+          {
+            return false;
+          }
+          int compared = Double.compare(value, numbers[0]);
+          return (operator == Operator.LT && compared < 0) || (operator == Operator.LE && compared <= 0) || (operator == Operator.GT && compared > 0) || (operator == Operator.GE && compared >= 0);
+      }
+    }
+
+    private boolean equalsAny(byte[] payload, int at)
+    {
+      // numbers compare as numbers, so that 3 and 3.0 are equal
+      double value = (payload[at] == '-' || (payload[at] >= '0' && payload[at] <= '9')) ? AwsIoTHubDownsampler.readNumber(payload, at) : Double.NaN;
+      int start = contentStart(payload, at);
+      int end = contentEnd(payload, at);
+      for (int i = 0; i < texts.length; i++)
+      {
+        if (!Double.isNaN(value) && !Double.isNaN(numbers[i]))
+        {
+          if (value == numbers[i])
+          {
+            return true;
+          }
+        }
+        else if (end - start == texts[i].length && regionEquals(payload, start, texts[i]))
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean regionEquals(byte[] payload, int start, byte[] text)
+    {
+      for (int i = 0; i < text.length; i++)
+      {
+        if (payload[start + i] != text[i])
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A topic of a rule and the QoS to publish on it with.
+   */
+  public static final class Target
+  {
+    private final String                  topic;
+    private final AWSIotQos               qos;
+    // the literal parts of the topic around the fields it is built from
+    private final String[]                literals;
+    private final AwsIoTHubFieldLocator[] locators;
+
+    private Target(String topic, AWSIotQos qos)
+    {
+      this.topic = topic;
+      this.qos = qos;
+      List<String> parts = new ArrayList<String>();
+      List<AwsIoTHubFieldLocator> fields = new ArrayList<AwsIoTHubFieldLocator>();
+      Matcher field = FIELD.matcher(topic);
+      int from = 0;
+      while (field.find())
+      {
+        parts.add(topic.substring(from, field.start()));
+        fields.add(new AwsIoTHubFieldLocator(field.group(1)));
+        from = field.end();
+      }
+      parts.add(topic.substring(from));
+      literals = parts.toArray(new String[parts.size()]);
+      locators = fields.toArray(new AwsIoTHubFieldLocator[fields.size()]);
+    }
+
+    public AWSIotQos getQos()
+    {
+      return qos;
+    }
+
+    /**
+     * @return the topic with its fields replaced by their values in the
+     *         payload; a missing field is replaced by nothing, and characters
+     *         a topic level cannot hold by _
+     */
+    public String getTopic(byte[] payload)
+    {
+      if (locators.length == 0)
+      {
+        return topic;
+      }
+      StringBuilder resolved = new StringBuilder(literals[0]);
+      for (int i = 0; i < locators.length; i++)
+      {
+        int at = locators[i].locate(payload);
+        if (at >= 0)
+        {
+          String value = new String(payload, contentStart(payload, at), contentEnd(payload, at) - contentStart(payload, at), StandardCharsets.UTF_8);
+          resolved.append(value.replace('/', '_').replace('+', '_').replace('#', '_'));
+        }
+        resolved.append(literals[i + 1]);
+      }
+      return resolved.toString();
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+      return (other instanceof Target) && topic.equals(((Target) other).topic) && qos == ((Target) other).qos;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return topic.hashCode() * 31 + qos.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+      return topic + "@" + qos.getValue();
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Captures sampled message payloads into a bounded in-memory ring that can be
+ * dumped on demand, in place of logging every payload.
+ * <p>
+ * {@link #isSampled(String, String)} is all the message path pays while tracing is
+ * off. Captured payloads are kept as the byte arrays handed over by the
+ * client; they are only decoded when the ring is dumped.
+ */
+public class AwsIoTHubTrace
+{
+  public static final int   DEFAULT_CAPACITY  = 256;
+  private static final int  MAX_PAYLOAD_CHARS = 1024;
+
+  private volatile Settings settings          = new Settings(0, Collections.<String> emptySet());
+  private volatile Ring     ring              = new Ring(DEFAULT_CAPACITY);
+
+  /**
+   * @param sampleEvery
+   *          capture about one in <code>sampleEvery</code> messages; 0
+   *          captures none
+   * @param matches
+   *          comma separated topics and thing names whose messages are
+   *          always captured
+   * @param capacity
+   *          number of entries kept; the oldest are overwritten
+   */
+  public void configure(int sampleEvery, String matches, int capacity)
+  {
+    Set<String> matchSet = new HashSet<String>();
+    if (matches != null)
+    {
+      for (String match : matches.split(","))
+      {
+        if (!match.trim().isEmpty())
+        {
+          matchSet.add(match.trim());
+        }
+      }
+    }
+    settings = new Settings(Math.max(0, sampleEvery), matchSet);
+    if (capacity > 0 && capacity != ring.entries.length())
+    {
+      ring = new Ring(capacity);
+    }
+  }
+
+  /**
+   * Decides whether a message is captured.
+   *
+   * @param topic
+   *          the topic of the message
+   * @param thingName
+   *          the thing of the connector; may be <code>null</code>
+   */
+  public boolean isSampled(String topic, String thingName)
+  {
+    Settings current = settings;
+    if (current.off)
+    {
+      return false;
+    }
+    if (!current.matches.isEmpty() && (current.matches.contains(topic) || (thingName != null && current.matches.contains(thingName))))
+    {
+      return true;
+    }
+    return current.sampleEvery > 0 && ThreadLocalRandom.current().nextInt(current.sampleEvery) == 0;
+  }
+
+  /**
+   * Captures an entry; only call for messages that were sampled.
+   *
+   * @param payload
+   *          the payload; must not be modified afterwards
+   */
+  public void record(String event, String clientId, String topic, byte[] payload)
+  {
+    Ring current = ring;
+    long sequence = current.next.getAndIncrement();
+    current.entries.set((int) (sequence % current.entries.length()), new Entry(System.currentTimeMillis(), event, clientId, topic, payload));
+  }
+
+  /**
+   * @return the captured entries, oldest first
+   */
+  public List<String> dump()
+  {
+    Ring current = ring;
+    int capacity = current.entries.length();
+    long end = current.next.get();
+    List<String> lines = new ArrayList<String>();
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    for (long sequence = Math.max(0, end - capacity); sequence < end; sequence++)
+    {
+      Entry entry = current.entries.get((int) (sequence % capacity));
+      if (entry != null)
+      {
+        lines.add(entry.format(format));
+      }
+    }
+    return lines;
+  }
+
+  public void clear()
+  {
+    ring = new Ring(ring.entries.length());
+  }
+
+  private static final class Settings
+  {
+    final int         sampleEvery;
+    final Set<String> matches;
+    final boolean     off;
+
+    Settings(int sampleEvery, Set<String> matches)
+    {
+      this.sampleEvery = sampleEvery;
+      this.matches = matches;
+      this.off = sampleEvery == 0 && matches.isEmpty();
+    }
+  }
+
+  private static final class Ring
+  {
+    final AtomicReferenceArray<Entry> entries;
+    final AtomicLong                  next    = new AtomicLong();
+
+    Ring(int capacity)
+    {
+      entries = new AtomicReferenceArray<Entry>(capacity);
+    }
+  }
+
+  private static final class Entry
+  {
+    final long   timestamp;
+    final String event;
+    final String clientId;
+    final String topic;
+    final byte[] payload;
+
+    Entry(long timestamp, String event, String clientId, String topic, byte[] payload)
+    {
+      this.timestamp = timestamp;
+      this.event = event;
+      this.clientId = clientId;
+      this.topic = topic;
+      this.payload = payload;
+    }
+
+    String format(SimpleDateFormat format)
+    {
+      StringBuilder line = new StringBuilder();
+      line.append(format.format(new Date(timestamp))).append(' ').append(event);
+      line.append(" clientId=").append(clientId).append(" topic=").append(topic);
+      if (payload != null)
+      {
+        String text = new String(payload, StandardCharsets.UTF_8);
+        line.append(" bytes=").append(payload.length).append(" >>> ");
+        line.append(text.length() > MAX_PAYLOAD_CHARS ? text.substring(0, MAX_PAYLOAD_CHARS) + "..." : text);
+      }
+      return line.toString();
+    }
+  }
+}
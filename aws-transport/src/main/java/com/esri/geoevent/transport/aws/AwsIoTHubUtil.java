@@ -30,6 +30,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -39,6 +42,8 @@ import java.security.SecureRandom;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AwsIoTHubUtil
 {
@@ -54,6 +59,72 @@ public class AwsIoTHubUtil
     }
   }
 
+  /**
+   * Creates a unique MQTT client id for the thing. AWS IoT drops an existing
+   * connection when another one connects with the same client id, so every
+   * connection gets a random suffix.
+   */
+  public static String createClientId(String thingName)
+  {
+    return String.format("%s-%s", thingName, new BigInteger(128, new SecureRandom()).toString(32));
+  }
+
+  /**
+   * Creates a client id that stays the same across restarts of the same
+   * connector on the same GeoEvent node, so the broker can resume a persistent
+   * session. The node name is part of the id so that every node of a cluster
+   * gets a session of its own.
+   *
+   * @param prefix
+   *          readable start of the id, usually the thing name
+   * @param connectorKey
+   *          the properties that identify the connector
+   */
+  public static String createStableClientId(String prefix, String... connectorKey)
+  {
+    StringBuilder key = new StringBuilder(getNodeName());
+    for (String part : connectorKey)
+    {
+      key.append('|').append(part);
+    }
+    String hash = UUID.nameUUIDFromBytes(key.toString().getBytes(StandardCharsets.UTF_8)).toString().replace("-", "");
+    return String.format("%s-%s", prefix, hash);
+  }
+
+  private static String getNodeName()
+  {
+    try
+    {
+      return InetAddress.getLocalHost().getHostName();
+    }
+    catch (UnknownHostException e)
+    {
+      return "localhost";
+    }
+  }
+
+  /**
+   * Waits until the counter dropped to zero or the timeout elapsed.
+   *
+   * @return <code>true</code> if the counter reached zero in time
+   */
+  public static boolean awaitZero(AtomicInteger counter, long timeoutMillis)
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    try
+    {
+      while (counter.get() > 0 && System.currentTimeMillis() < deadline)
+      {
+        Thread.sleep(10);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    return counter.get() <= 0;
+  }
+
   public static KeyStorePasswordPair getKeyStorePasswordPair(String certificateFile, String privateKeyFile)
   {
     return getKeyStorePasswordPair(certificateFile, privateKeyFile, null);
@@ -0,0 +1,174 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubChunkAssemblerTest extends TestCase
+{
+  private final AtomicInteger     dropped   = new AtomicInteger();
+  private AwsIoTHubChunkAssembler assembler = new AwsIoTHubChunkAssembler(1000L, 1000L, dropped::addAndGet);
+
+  public void testOutOfOrderAndRepeated()
+  {
+    byte[] payload = AwsIoTHubChunksTest.payload(450);
+    byte[][] chunks = AwsIoTHubChunks.split(payload, 125, 7L);
+    assertEquals(5, chunks.length);
+
+    assertNull(assembler.offer("t", chunks[3], 0L));
+    assertNull(assembler.offer("t", chunks[0], 0L));
+    assertNull(assembler.offer("t", chunks[3], 0L));
+    assertNull(assembler.offer("t", chunks[4], 0L));
+    assertNull(assembler.offer("t", chunks[1], 0L));
+    assertEquals(1, assembler.getPending());
+    assertEquals(450L, assembler.getBufferedBytes());
+    assertTrue(Arrays.equals(payload, assembler.offer("t", chunks[2], 0L)));
+    assertEquals(0, assembler.getPending());
+    assertEquals(0L, assembler.getBufferedBytes());
+
+    // a chunk repeated after its message completed is ignored
+    assertNull(assembler.offer("t", chunks[1], 10L));
+    assertEquals(0, assembler.getPending());
+    assertEquals(0, dropped.get());
+  }
+
+  public void testInterleavedMessages()
+  {
+    byte[] first = AwsIoTHubChunksTest.payload(200);
+    byte[] second = AwsIoTHubChunksTest.payload(150);
+    byte[][] firstChunks = AwsIoTHubChunks.split(first, 125, 1L);
+    byte[][] secondChunks = AwsIoTHubChunks.split(second, 125, 1L);
+
+    // the same id on another topic is another message
+    assertNull(assembler.offer("a", firstChunks[1], 0L));
+    assertNull(assembler.offer("b", secondChunks[0], 0L));
+    assertTrue(Arrays.equals(second, assembler.offer("b", secondChunks[1], 0L)));
+    assertTrue(Arrays.equals(first, assembler.offer("a", firstChunks[0], 0L)));
+  }
+
+  public void testExpiry()
+  {
+    byte[][] chunks = AwsIoTHubChunks.split(AwsIoTHubChunksTest.payload(300), 125, 1L);
+    assertNull(assembler.offer("t", chunks[0], 0L));
+    assertNull(assembler.offer("t", chunks[1], 500L));
+    assertEquals(0, dropped.get());
+
+    // the timeout runs from the first chunk
+    assertNull(assembler.offer("t", chunks[2], 1000L));
+    assertEquals(2, dropped.get());
+    // the late chunk starts a new message
+    assertEquals(1, assembler.getPending());
+    assertEquals(300L, assembler.getBufferedBytes());
+  }
+
+  public void testCompletedExpiry()
+  {
+    byte[][] chunks = AwsIoTHubChunks.split(AwsIoTHubChunksTest.payload(200), 125, 1L);
+    assertNull(assembler.offer("t", chunks[0], 0L));
+    assertNotNull(assembler.offer("t", chunks[1], 0L));
+    assertNull(assembler.offer("t", chunks[0], 999L));
+    assertEquals(0, assembler.getPending());
+
+    // once forgotten, a repeated chunk starts a new message
+    assertNull(assembler.offer("t", chunks[0], 1000L));
+    assertEquals(1, assembler.getPending());
+  }
+
+  public void testMemoryCap()
+  {
+    byte[][] first = AwsIoTHubChunks.split(AwsIoTHubChunksTest.payload(400), 125, 1L);
+    byte[][] second = AwsIoTHubChunks.split(AwsIoTHubChunksTest.payload(400), 125, 2L);
+    byte[][] third = AwsIoTHubChunks.split(AwsIoTHubChunksTest.payload(400), 125, 3L);
+    assertNull(assembler.offer("t", first[0], 0L));
+    assertNull(assembler.offer("t", first[1], 0L));
+    assertNull(assembler.offer("t", second[0], 0L));
+    assertEquals(800L, assembler.getBufferedBytes());
+
+    // the oldest message makes room for the new one
+    assertNull(assembler.offer("t", third[0], 0L));
+    assertEquals(2, dropped.get());
+    assertEquals(2, assembler.getPending());
+    assertEquals(800L, assembler.getBufferedBytes());
+    // a late chunk of the dropped message starts it again, dropping the
+    // message that is the oldest now
+    assertNull(assembler.offer("t", first[2], 0L));
+    assertEquals(2, assembler.getPending());
+    assertEquals(800L, assembler.getBufferedBytes());
+    assertEquals(3, dropped.get());
+  }
+
+  public void testLargerThanCap()
+  {
+    byte[][] chunks = AwsIoTHubChunks.split(AwsIoTHubChunksTest.payload(1001), 125, 1L);
+    assertNull(assembler.offer("t", chunks[0], 0L));
+    assertEquals(0, assembler.getPending());
+    assertEquals(0L, assembler.getBufferedBytes());
+    assertEquals(1, dropped.get());
+  }
+
+  public void testInconsistentHeaders()
+  {
+    byte[][] chunks = AwsIoTHubChunks.split(AwsIoTHubChunksTest.payload(300), 125, 1L);
+
+    // an index beyond the count
+    byte[] beyond = chunks[0].clone();
+    beyond[14] = 3;
+    assertNull(assembler.offer("t", beyond, 0L));
+    // a slice beyond the payload length
+    byte[] outside = chunks[2].clone();
+    outside[23] = 1;
+    assertNull(assembler.offer("t", outside, 0L));
+    assertEquals(0, assembler.getPending());
+    assertEquals(2, dropped.get());
+
+    // a count, or a length, other than the first chunk's
+    assertNull(assembler.offer("t", chunks[0], 0L));
+    byte[] otherCount = chunks[1].clone();
+    otherCount[16] = 4;
+    assertNull(assembler.offer("t", otherCount, 0L));
+    byte[] otherLength = chunks[1].clone();
+    otherLength[20] = (byte) 200;
+    assertNull(assembler.offer("t", otherLength, 0L));
+    assertEquals(4, dropped.get());
+
+    // the message still completes with consistent chunks
+    assertNull(assembler.offer("t", chunks[1], 0L));
+    assertNotNull(assembler.offer("t", chunks[2], 0L));
+  }
+
+  public void testClear()
+  {
+    byte[][] chunks = AwsIoTHubChunks.split(AwsIoTHubChunksTest.payload(300), 125, 1L);
+    assertNull(assembler.offer("t", chunks[0], 0L));
+    assertNull(assembler.offer("t", chunks[1], 0L));
+    assembler.clear();
+    assertEquals(0, assembler.getPending());
+    assertEquals(0L, assembler.getBufferedBytes());
+    assertEquals(2, dropped.get());
+  }
+}
@@ -0,0 +1,94 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubChunksTest extends TestCase
+{
+  public void testSplit()
+  {
+    byte[] payload = payload(250);
+    byte[][] chunks = AwsIoTHubChunks.split(payload, 125, 42L);
+
+    assertEquals(3, chunks.length);
+    assertEquals(125, chunks[0].length);
+    assertEquals(125, chunks[1].length);
+    assertEquals(AwsIoTHubChunks.HEADER_SIZE + 50, chunks[2].length);
+    for (int index = 0; index < chunks.length; index++)
+    {
+      assertTrue(AwsIoTHubChunks.isChunk(chunks[index]));
+      assertEquals(42L, AwsIoTHubChunks.getId(chunks[index]));
+      assertEquals(index, AwsIoTHubChunks.getIndex(chunks[index]));
+      assertEquals(3, AwsIoTHubChunks.getCount(chunks[index]));
+      assertEquals(250, AwsIoTHubChunks.getLength(chunks[index]));
+      assertEquals(index * 100, AwsIoTHubChunks.getOffset(chunks[index]));
+    }
+    assertTrue(Arrays.equals(Arrays.copyOfRange(payload, 200, 250), Arrays.copyOfRange(chunks[2], AwsIoTHubChunks.HEADER_SIZE, chunks[2].length)));
+  }
+
+  public void testSplitExactly()
+  {
+    assertEquals(2, AwsIoTHubChunks.split(payload(200), 125, 1L).length);
+    assertEquals(1, AwsIoTHubChunks.split(payload(1), 125, 1L).length);
+  }
+
+  public void testIdKeepsAllBits()
+  {
+    byte[][] chunks = AwsIoTHubChunks.split(payload(10), 125, -2L);
+    assertEquals(-2L, AwsIoTHubChunks.getId(chunks[0]));
+  }
+
+  public void testTooManyChunks()
+  {
+    int sliceSize = 2;
+    assertNotNull(AwsIoTHubChunks.split(payload(AwsIoTHubChunks.MAX_CHUNKS * sliceSize), AwsIoTHubChunks.HEADER_SIZE + sliceSize, 1L));
+    assertNull(AwsIoTHubChunks.split(payload(AwsIoTHubChunks.MAX_CHUNKS * sliceSize + 1), AwsIoTHubChunks.HEADER_SIZE + sliceSize, 1L));
+  }
+
+  public void testIsChunk()
+  {
+    byte[] chunk = AwsIoTHubChunks.split(payload(10), 125, 1L)[0];
+    assertFalse(AwsIoTHubChunks.isChunk(null));
+    assertFalse(AwsIoTHubChunks.isChunk("{\"id\":1,\"name\":\"not a chunk at all\"}".getBytes()));
+    assertFalse(AwsIoTHubChunks.isChunk(Arrays.copyOf(chunk, AwsIoTHubChunks.HEADER_SIZE - 1)));
+
+    byte[] otherVersion = chunk.clone();
+    otherVersion[4] = 2;
+    assertFalse(AwsIoTHubChunks.isChunk(otherVersion));
+  }
+
+  static byte[] payload(int length)
+  {
+    byte[] payload = new byte[length];
+    for (int i = 0; i < length; i++)
+    {
+      payload[i] = (byte) (i * 31 + 7);
+    }
+    return payload;
+  }
+}
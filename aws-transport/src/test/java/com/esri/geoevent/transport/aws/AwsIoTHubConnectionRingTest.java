@@ -0,0 +1,125 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubConnectionRingTest extends TestCase
+{
+  private static final int                 KEYS        = 10000;
+  private static final AwsIoTHubMessageKey KEY         = AwsIoTHubMessageKey.parse("PAYLOAD_FIELD", "id");
+
+  private AwsIoTHubConnection[]            connections;
+
+  @Override
+  protected void setUp() throws AWSIotException, URISyntaxException
+  {
+    // never connected, the ring only routes to them
+    String certificate = resource("test.pem.crt");
+    String privateKey = resource("test.pem.key");
+    connections = new AwsIoTHubConnection[4];
+    for (int i = 0; i < connections.length; i++)
+    {
+      connections[i] = new AwsIoTHubConnection("localhost:8883", "ring-test-" + i, certificate, privateKey, null);
+    }
+  }
+
+  public void testSpread()
+  {
+    AwsIoTHubConnectionRing ring = new AwsIoTHubConnectionRing(connections);
+    assertEquals(4, ring.size());
+    Map<AwsIoTHubConnection, Integer> counts = new HashMap<AwsIoTHubConnection, Integer>();
+    for (long key = 0; key < KEYS; key++)
+    {
+      counts.merge(ring.lookup(hash(key)), 1, Integer::sum);
+    }
+    assertEquals(4, counts.size());
+    for (int count : counts.values())
+    {
+      assertTrue(String.valueOf(count), count > KEYS / 8 && count < KEYS * 3 / 8);
+    }
+  }
+
+  public void testSlotRemoved()
+  {
+    AwsIoTHubConnectionRing full = new AwsIoTHubConnectionRing(connections);
+    AwsIoTHubConnection[] slots = connections.clone();
+    slots[2] = null;
+    AwsIoTHubConnectionRing reduced = new AwsIoTHubConnectionRing(slots);
+    assertEquals(3, reduced.size());
+    assertFalse(reduced.contains(connections[2]));
+    assertTrue(reduced.contains(connections[3]));
+
+    Map<AwsIoTHubConnection, Integer> moved = new HashMap<AwsIoTHubConnection, Integer>();
+    for (long key = 0; key < KEYS; key++)
+    {
+      AwsIoTHubConnection before = full.lookup(hash(key));
+      AwsIoTHubConnection after = reduced.lookup(hash(key));
+      if (before == connections[2])
+      {
+        assertNotSame(connections[2], after);
+        moved.merge(after, 1, Integer::sum);
+      }
+      else
+      {
+        // only the keys of the lost connection move
+        assertSame(before, after);
+      }
+    }
+    // and they are spread over the others
+    assertEquals(3, moved.size());
+
+    // a restored connection gets back the keys it had
+    AwsIoTHubConnectionRing restored = new AwsIoTHubConnectionRing(connections);
+    for (long key = 0; key < KEYS; key++)
+    {
+      assertSame(full.lookup(hash(key)), restored.lookup(hash(key)));
+    }
+  }
+
+  public void testNoConnection()
+  {
+    AwsIoTHubConnectionRing ring = new AwsIoTHubConnectionRing(new AwsIoTHubConnection[3]);
+    assertEquals(0, ring.size());
+    assertNull(ring.lookup(42L));
+    assertFalse(ring.contains(connections[0]));
+  }
+
+  private static long hash(long key)
+  {
+    return KEY.hash64("t", ("{\"id\":" + key + "}").getBytes());
+  }
+
+  private String resource(String name) throws URISyntaxException
+  {
+    return new File(getClass().getResource(name).toURI()).getPath();
+  }
+}
@@ -0,0 +1,155 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+package com.esri.geoevent.transport.aws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.esri.geoevent.transport.aws.AwsIoTHubDispatcher.ConflatingLaneQueue;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubDispatcherTest extends TestCase
+{
+  private final List<String>  run       = new ArrayList<String>();
+  private final AtomicInteger conflated = new AtomicInteger();
+
+  public void testReplaceInPlace() throws InterruptedException
+  {
+    ConflatingLaneQueue queue = new ConflatingLaneQueue(10, conflated::incrementAndGet);
+    assertTrue(queue.offer("a", task("a1"), 0L));
+    assertTrue(queue.offer("b", task("b1"), 0L));
+    assertTrue(queue.offer("c", task("c1"), 0L));
+    // the newer message of a keeps the position of the first one
+    assertTrue(queue.offer("a", task("a2"), 0L));
+    assertEquals(3, queue.size());
+    assertEquals(1, conflated.get());
+
+    runAll(queue);
+    assertEquals(Arrays.asList("a2", "b1", "c1"), run);
+    assertNull(queue.poll(0L));
+
+    // a key taken off the queue is queued again at the end
+    assertTrue(queue.offer("b", task("b2"), 0L));
+    assertTrue(queue.offer("a", task("a3"), 0L));
+    runAll(queue);
+    assertEquals(Arrays.asList("a2", "b1", "c1", "b2", "a3"), run);
+    assertEquals(1, conflated.get());
+  }
+
+  public void testKeyBound() throws InterruptedException
+  {
+    ConflatingLaneQueue queue = new ConflatingLaneQueue(2, conflated::incrementAndGet);
+    assertTrue(queue.offer("a", task("a1"), 0L));
+    assertTrue(queue.offer("b", task("b1"), 0L));
+    // a new key waits for room, a queued key is still replaced
+    long start = System.nanoTime();
+    assertFalse(queue.offer("c", task("c1"), 50L));
+    assertTrue(System.nanoTime() - start >= 40000000L);
+    assertTrue(queue.offer("b", task("b2"), 0L));
+    assertEquals(2, queue.size());
+
+    queue.poll(0L).run();
+    assertTrue(queue.offer("c", task("c1"), 0L));
+    runAll(queue);
+    assertEquals(Arrays.asList("a1", "b2", "c1"), run);
+  }
+
+  public void testRemoveAndDrain() throws InterruptedException
+  {
+    ConflatingLaneQueue queue = new ConflatingLaneQueue(2, conflated::incrementAndGet);
+    Runnable a1 = task("a1");
+    assertTrue(queue.offer("a", a1, 0L));
+    assertTrue(queue.offer("b", task("b1"), 0L));
+    // only the task still queued for the key is removed
+    assertFalse(queue.remove("a", task("a0")));
+    assertTrue(queue.remove("a", a1));
+
+    List<Runnable> pending = new ArrayList<Runnable>();
+    queue.drainTo(pending);
+    assertEquals(1, pending.size());
+    assertEquals(0, queue.size());
+  }
+
+  public void testLanesKeepOrder() throws InterruptedException
+  {
+    AwsIoTHubDispatcher dispatcher = new AwsIoTHubDispatcher("test", 4, null);
+    List<List<Integer>> delivered = new ArrayList<List<Integer>>();
+    for (int device = 0; device < 8; device++)
+    {
+      delivered.add(new ArrayList<Integer>());
+    }
+    AtomicInteger done = new AtomicInteger();
+    try
+    {
+      for (int i = 0; i < 1000; i++)
+      {
+        int device = i % 8;
+        int sequence = i;
+        List<Integer> sequences = delivered.get(device);
+        assertTrue(dispatcher.dispatch(dispatcher.laneOf(device), null, () ->
+        {
+          sequences.add(sequence);
+          done.incrementAndGet();
+        }));
+      }
+      long deadline = System.currentTimeMillis() + 5000L;
+      while (done.get() < 1000 && System.currentTimeMillis() < deadline)
+      {
+        Thread.sleep(1L);
+      }
+    }
+    finally
+    {
+      assertTrue(dispatcher.close().isEmpty());
+    }
+    for (int device = 0; device < 8; device++)
+    {
+      List<Integer> sequences = delivered.get(device);
+      assertEquals(125, sequences.size());
+      for (int k = 0; k < sequences.size(); k++)
+      {
+        assertEquals(device + 8 * k, sequences.get(k).intValue());
+      }
+    }
+    // the lane of a key does not change
+    assertEquals(dispatcher.laneOf(12345), dispatcher.laneOf(12345));
+  }
+
+  private Runnable task(String name)
+  {
+    return () -> run.add(name);
+  }
+
+  private static void runAll(ConflatingLaneQueue queue) throws InterruptedException
+  {
+    Runnable task;
+    while ((task = queue.poll(0L)) != null)
+    {
+      task.run();
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubDownsamplerTest extends TestCase
+{
+  public void testInterval()
+  {
+    AwsIoTHubDownsampler downsampler = new AwsIoTHubDownsampler(1000L, 0.0, "", "", 10, 60000L);
+    try
+    {
+      assertTrue(downsampler.admit(1L, json(0.0, 0.0, "a"), 0L));
+      assertFalse(downsampler.admit(1L, json(0.0, 0.0, "a"), 999L));
+      assertTrue(downsampler.admit(1L, json(0.0, 0.0, "a"), 1000L));
+      // the interval runs from the last message passed, not the last seen
+      assertFalse(downsampler.admit(1L, json(0.0, 0.0, "a"), 1500L));
+      assertTrue(downsampler.admit(1L, json(0.0, 0.0, "a"), 2000L));
+      // tracks are filtered apart
+      assertTrue(downsampler.admit(2L, json(0.0, 0.0, "a"), 2001L));
+      assertEquals(2, downsampler.getTracks());
+    }
+    finally
+    {
+      downsampler.close();
+    }
+  }
+
+  public void testDistance()
+  {
+    AwsIoTHubDownsampler downsampler = new AwsIoTHubDownsampler(0L, 100.0, "lon,lat", "", 10, 60000L);
+    try
+    {
+      assertTrue(downsampler.admit(1L, json(0.0, 0.0, "a"), 0L));
+      // about 55 m
+      assertFalse(downsampler.admit(1L, json(0.0005, 0.0, "a"), 1L));
+      // about 111 m from the last message passed
+      assertTrue(downsampler.admit(1L, json(0.001, 0.0, "a"), 2L));
+      assertFalse(downsampler.admit(1L, json(0.001, 0.0005, "a"), 3L));
+      // a message without coordinates always passes
+      assertTrue(downsampler.admit(1L, bytes("{\"status\":\"a\"}"), 4L));
+    }
+    finally
+    {
+      downsampler.close();
+    }
+  }
+
+  public void testChangedField()
+  {
+    AwsIoTHubDownsampler downsampler = new AwsIoTHubDownsampler(0L, 0.0, "", "status", 10, 60000L);
+    try
+    {
+      assertTrue(downsampler.admit(1L, json(0.0, 0.0, "a"), 0L));
+      // other fields are not watched
+      assertFalse(downsampler.admit(1L, json(1.0, 1.0, "a"), 1L));
+      assertTrue(downsampler.admit(1L, json(1.0, 1.0, "b"), 2L));
+      assertFalse(downsampler.admit(1L, json(1.0, 1.0, "b"), 3L));
+      // a missing field is a change too
+      assertTrue(downsampler.admit(1L, bytes("{\"lon\":1.0}"), 4L));
+    }
+    finally
+    {
+      downsampler.close();
+    }
+  }
+
+  public void testWholePayload()
+  {
+    AwsIoTHubDownsampler downsampler = new AwsIoTHubDownsampler(0L, 0.0, "", "", "time", 10, 60000L);
+    try
+    {
+      assertTrue(downsampler.admit(1L, bytes("{\"time\":1,\"speed\":10}"), 0L));
+      assertFalse(downsampler.admit(1L, bytes("{\"time\":2,\"speed\":10}"), 1L));
+      assertTrue(downsampler.admit(1L, bytes("{\"time\":3,\"speed\":11}"), 2L));
+    }
+    finally
+    {
+      downsampler.close();
+    }
+  }
+
+  public void testEviction()
+  {
+    AwsIoTHubDownsampler downsampler = new AwsIoTHubDownsampler(0L, 0.0, "", "status", 2, 1000L);
+    try
+    {
+      assertTrue(downsampler.admit(1L, json(0.0, 0.0, "a"), 0L));
+      assertTrue(downsampler.admit(2L, json(0.0, 0.0, "a"), 500L));
+      // the table is full: a new track passes but is not remembered
+      assertTrue(downsampler.admit(3L, json(0.0, 0.0, "a"), 600L));
+      assertTrue(downsampler.admit(3L, json(0.0, 0.0, "a"), 700L));
+      assertEquals(2, downsampler.getTracks());
+
+      assertEquals(1, downsampler.evictIdle(1200L));
+      assertEquals(1, downsampler.getTracks());
+      // the remaining track keeps its state
+      assertFalse(downsampler.admit(2L, json(0.0, 0.0, "a"), 1300L));
+      // an evicted track starts over
+      assertTrue(downsampler.admit(1L, json(0.0, 0.0, "a"), 1300L));
+      assertFalse(downsampler.admit(1L, json(0.0, 0.0, "a"), 1400L));
+    }
+    finally
+    {
+      downsampler.close();
+    }
+  }
+
+  public void testInvalidate()
+  {
+    AwsIoTHubDownsampler downsampler = new AwsIoTHubDownsampler(0L, 0.0, "", "status", 10, 60000L);
+    try
+    {
+      assertTrue(downsampler.admit(1L, json(0.0, 0.0, "a"), 0L));
+      downsampler.invalidate(1L);
+      assertTrue(downsampler.admit(1L, json(0.0, 0.0, "a"), 1L));
+      assertFalse(downsampler.admit(1L, json(0.0, 0.0, "a"), 2L));
+      // an unknown track is ignored
+      downsampler.invalidate(9L);
+      assertEquals(1, downsampler.getTracks());
+    }
+    finally
+    {
+      downsampler.close();
+    }
+  }
+
+  public void testReadNumber()
+  {
+    AwsIoTHubFieldLocator locator = new AwsIoTHubFieldLocator("v");
+    assertEquals(-12.25, AwsIoTHubDownsampler.readNumber(bytes("{\"v\":-12.25}"), locator), 0.0);
+    assertEquals(1500.0, AwsIoTHubDownsampler.readNumber(bytes("{\"v\":1.5e3}"), locator), 0.0);
+    assertTrue(Double.isNaN(AwsIoTHubDownsampler.readNumber(bytes("{\"v\":\"x\"}"), locator)));
+    assertTrue(Double.isNaN(AwsIoTHubDownsampler.readNumber(bytes("{\"w\":1}"), locator)));
+  }
+
+  private static byte[] json(double lon, double lat, String status)
+  {
+    return bytes("{\"lon\":" + lon + ",\"lat\":" + lat + ",\"status\":\"" + status + "\"}");
+  }
+
+  private static byte[] bytes(String text)
+  {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
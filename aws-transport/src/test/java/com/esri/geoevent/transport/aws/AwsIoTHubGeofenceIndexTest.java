@@ -0,0 +1,143 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubGeofenceIndexTest extends TestCase
+{
+  private File file;
+
+  @Override
+  protected void setUp() throws IOException
+  {
+    file = File.createTempFile("aws-geofence", ".geojson");
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    file.delete();
+  }
+
+  public void testPolygonWithHole() throws IOException
+  {
+    write("{\"type\":\"Polygon\",\"coordinates\":[[[0,0],[10,0],[10,10],[0,10],[0,0]],[[4,4],[6,4],[6,6],[4,6],[4,4]]]}");
+    AwsIoTHubGeofenceIndex index = AwsIoTHubGeofenceIndex.load(file);
+    assertEquals(1, index.getPolygonCount());
+    assertTrue(index.contains(1.0, 1.0));
+    assertTrue(index.contains(9.5, 5.0));
+    // in the hole
+    assertFalse(index.contains(5.0, 5.0));
+    assertFalse(index.contains(-1.0, 5.0));
+    assertFalse(index.contains(5.0, 11.0));
+  }
+
+  public void testFeatureCollection() throws IOException
+  {
+    write("{\"type\":\"FeatureCollection\",\"features\":["
+        + "{\"type\":\"Feature\",\"properties\":{},\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[[0,0],[1,0],[0,1],[0,0]]]}},"
+        + "{\"type\":\"Feature\",\"properties\":{},\"geometry\":{\"type\":\"MultiPolygon\",\"coordinates\":[[[[20,20],[21,20],[21,21],[20,21],[20,20]]],[[[-30,-30],[-29,-30],[-29,-29],[-30,-29],[-30,-30]]]]}},"
+        + "{\"type\":\"Feature\",\"properties\":{},\"geometry\":{\"type\":\"Point\",\"coordinates\":[50,50]}}]}");
+    AwsIoTHubGeofenceIndex index = AwsIoTHubGeofenceIndex.load(file);
+    // the point is ignored
+    assertEquals(3, index.getPolygonCount());
+    assertTrue(index.contains(0.2, 0.2));
+    // beyond the diagonal of the triangle
+    assertFalse(index.contains(0.8, 0.8));
+    assertTrue(index.contains(20.5, 20.5));
+    assertTrue(index.contains(-29.5, -29.5));
+    assertFalse(index.contains(10.0, 10.0));
+    assertFalse(index.contains(50.0, 50.0));
+  }
+
+  public void testGrid()
+  {
+    // a grid of 1x1 squares with gaps between them
+    List<AwsIoTHubGeofenceIndex.Polygon> polygons = new ArrayList<AwsIoTHubGeofenceIndex.Polygon>();
+    for (int row = 0; row < 20; row++)
+    {
+      for (int column = 0; column < 20; column++)
+      {
+        double x = column * 2, y = row * 2;
+        polygons.add(new AwsIoTHubGeofenceIndex.Polygon(Arrays.asList(new double[] { x, y, x + 1, y, x + 1, y + 1, x, y + 1 })));
+      }
+    }
+    AwsIoTHubGeofenceIndex index = new AwsIoTHubGeofenceIndex(polygons);
+    for (int row = 0; row < 20; row++)
+    {
+      for (int column = 0; column < 20; column++)
+      {
+        assertTrue(index.contains(column * 2 + 0.5, row * 2 + 0.5));
+        assertFalse(index.contains(column * 2 + 1.5, row * 2 + 1.5));
+      }
+    }
+  }
+
+  public void testEmpty() throws IOException
+  {
+    write("{\"type\":\"FeatureCollection\",\"features\":[]}");
+    AwsIoTHubGeofenceIndex index = AwsIoTHubGeofenceIndex.load(file);
+    assertEquals(0, index.getPolygonCount());
+    assertFalse(index.contains(0.0, 0.0));
+
+    // the geofence lets everything pass rather than dropping it all
+    AwsIoTHubGeofence geofence = new AwsIoTHubGeofence(file, "lon,lat");
+    try
+    {
+      assertTrue(geofence.admit("{\"lon\":0.0,\"lat\":0.0}".getBytes(StandardCharsets.UTF_8)));
+    }
+    finally
+    {
+      geofence.close();
+    }
+  }
+
+  public void testInvalidRing() throws IOException
+  {
+    write("{\"type\":\"Polygon\",\"coordinates\":[[[0,0],[1,1]]]}");
+    try
+    {
+      AwsIoTHubGeofenceIndex.load(file);
+      fail();
+    }
+    catch (IOException e)
+    {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid ring"));
+    }
+  }
+
+  private void write(String geoJson) throws IOException
+  {
+    Files.write(file.toPath(), geoJson.getBytes(StandardCharsets.UTF_8));
+  }
+}
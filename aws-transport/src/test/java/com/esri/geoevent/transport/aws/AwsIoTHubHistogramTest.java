@@ -0,0 +1,92 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+package com.esri.geoevent.transport.aws;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubHistogramTest extends TestCase
+{
+  public void testIndex()
+  {
+    // exact below the sub-buckets
+    for (long value = 0; value < 8; value++)
+    {
+      assertEquals(value, AwsIoTHubHistogram.index(value));
+      assertEquals(value, AwsIoTHubHistogram.upperBound((int) value));
+    }
+    // then 8 buckets per power of two
+    assertEquals(8, AwsIoTHubHistogram.index(8L));
+    assertEquals(15, AwsIoTHubHistogram.index(15L));
+    assertEquals(16, AwsIoTHubHistogram.index(16L));
+    assertEquals(16, AwsIoTHubHistogram.index(17L));
+    assertEquals(17, AwsIoTHubHistogram.index(18L));
+    assertEquals(23, AwsIoTHubHistogram.index(31L));
+    assertEquals(24, AwsIoTHubHistogram.index(32L));
+    assertEquals(Long.MAX_VALUE, AwsIoTHubHistogram.upperBound(AwsIoTHubHistogram.index(Long.MAX_VALUE)));
+  }
+
+  public void testUpperBound()
+  {
+    // every value lies in its bucket, within 12.5% of the upper bound
+    long[] values = { 8L, 9L, 100L, 1000L, 123456L, 999999999L, 1L << 40, (1L << 62) + 12345L, Long.MAX_VALUE };
+    for (long value : values)
+    {
+      int index = AwsIoTHubHistogram.index(value);
+      long upper = AwsIoTHubHistogram.upperBound(index);
+      assertTrue(value + " <= " + upper, value <= upper);
+      assertTrue(value + " > " + AwsIoTHubHistogram.upperBound(index - 1), value > AwsIoTHubHistogram.upperBound(index - 1));
+      assertTrue(value + " ~ " + upper, upper - value <= value / 8);
+    }
+    // the buckets are contiguous
+    for (int index = 1; index < AwsIoTHubHistogram.index(Long.MAX_VALUE); index++)
+    {
+      assertEquals(index, AwsIoTHubHistogram.index(AwsIoTHubHistogram.upperBound(index - 1) + 1));
+    }
+  }
+
+  public void testPercentiles()
+  {
+    AwsIoTHubHistogram histogram = new AwsIoTHubHistogram();
+    assertEquals(0L, histogram.getPercentile(50.0));
+    for (long value = 1; value <= 1000; value++)
+    {
+      histogram.record(value * 1000L);
+    }
+    histogram.record(-5L);
+    assertEquals(1001L, histogram.getCount());
+    long p50 = histogram.getPercentile(50.0);
+    assertTrue(String.valueOf(p50), p50 >= 500000L && p50 <= 500000L * 9 / 8);
+    // never above the largest value recorded
+    assertEquals(1000000L, histogram.getPercentile(100.0));
+    assertEquals(0L, histogram.getPercentile(0.0));
+
+    AwsIoTHubHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(1001L, snapshot.getCount());
+    assertEquals(1000.0, snapshot.getMax(), 0.0);
+
+    histogram.reset();
+    assertEquals(0L, histogram.getCount());
+    assertEquals(0L, histogram.getPercentile(99.0));
+  }
+}
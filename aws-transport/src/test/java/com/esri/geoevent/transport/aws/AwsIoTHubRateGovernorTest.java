@@ -0,0 +1,108 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+package com.esri.geoevent.transport.aws;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubRateGovernorTest extends TestCase
+{
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  public void testMessageRate()
+  {
+    AwsIoTHubRateGovernor governor = new AwsIoTHubRateGovernor(10.0, 0.0);
+    long now = System.nanoTime();
+    // a full bucket holds one second of the rate
+    for (int i = 0; i < 10; i++)
+    {
+      assertTrue(governor.tryAcquire(100, now));
+    }
+    assertFalse(governor.tryAcquire(100, now));
+    assertEquals(100 * MILLIS, governor.nanosUntil(100, now), 1.0);
+    assertFalse(governor.tryAcquire(100, now + 99 * MILLIS));
+    assertTrue(governor.tryAcquire(100, now + 100 * MILLIS));
+    assertEquals(now + 100 * MILLIS, governor.getAcquireNanos());
+  }
+
+  public void testByteRate()
+  {
+    AwsIoTHubRateGovernor governor = new AwsIoTHubRateGovernor(0.0, 1000.0);
+    long now = System.nanoTime();
+    assertTrue(governor.tryAcquire(600, now));
+    assertFalse(governor.tryAcquire(600, now));
+    assertEquals(200 * MILLIS, governor.nanosUntil(600, now), 1.0);
+    assertTrue(governor.tryAcquire(400, now));
+    assertTrue(governor.tryAcquire(600, now + 600 * MILLIS));
+  }
+
+  public void testOversizedMessage()
+  {
+    AwsIoTHubRateGovernor governor = new AwsIoTHubRateGovernor(0.0, 1000.0);
+    long now = System.nanoTime();
+    // passes on a full bucket and leaves it in debt
+    assertTrue(governor.tryAcquire(5000, now));
+    assertEquals(4001 * MILLIS, governor.nanosUntil(1, now), 1.0);
+    assertFalse(governor.tryAcquire(1, now + 4000 * MILLIS));
+    assertTrue(governor.tryAcquire(1, now + 4001 * MILLIS));
+  }
+
+  public void testPriorityReserve()
+  {
+    AwsIoTHubRateGovernor governor = new AwsIoTHubRateGovernor(10.0, 0.0);
+    long now = System.nanoTime();
+    // a reserve of 20% keeps 2 of the 10 tokens
+    int reserved = 0;
+    while (governor.tryAcquire(100, now, 0.2))
+    {
+      reserved++;
+    }
+    assertEquals(8, reserved);
+    assertEquals(100 * MILLIS, governor.nanosUntil(100, now, 0.2), 1.0);
+    // messages without a reserve take the rest
+    assertEquals(0L, governor.nanosUntil(100, now));
+    assertTrue(governor.tryAcquire(100, now));
+    assertTrue(governor.tryAcquire(100, now));
+    assertFalse(governor.tryAcquire(100, now));
+  }
+
+  public void testUnlimitedAndConfigure()
+  {
+    AwsIoTHubRateGovernor governor = new AwsIoTHubRateGovernor(0.0, 0.0);
+    long now = System.nanoTime();
+    assertFalse(governor.isLimited());
+    for (int i = 0; i < 1000; i++)
+    {
+      assertTrue(governor.tryAcquire(1000000, now, 0.5));
+    }
+    assertEquals(0L, governor.nanosUntil(1000000, now));
+
+    // new limits start from the tokens held, up to the new bucket
+    governor.configure(2.0, 0.0);
+    assertTrue(governor.isLimited());
+    assertFalse(governor.tryAcquire(1, now));
+    assertTrue(governor.tryAcquire(1, now + 500 * MILLIS));
+  }
+}
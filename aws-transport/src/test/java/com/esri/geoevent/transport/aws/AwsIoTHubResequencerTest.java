@@ -0,0 +1,162 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+package com.esri.geoevent.transport.aws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubResequencerTest extends TestCase
+{
+  // long enough for the periodic release to stay out of the tests
+  private static final long    LATENESS    = 60000L;
+
+  private final List<String>   run         = Collections.synchronizedList(new ArrayList<String>());
+  private final AtomicInteger  late        = new AtomicInteger();
+  private AwsIoTHubResequencer resequencer;
+  private long                 now;
+
+  @Override
+  protected void setUp()
+  {
+    now = System.currentTimeMillis();
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    if (resequencer != null)
+    {
+      resequencer.close();
+    }
+  }
+
+  public void testWatermarkOrder() throws InterruptedException
+  {
+    resequencer = new AwsIoTHubResequencer("test", LATENESS, 100, 10, false, late::incrementAndGet);
+    offer(1L, 3000L);
+    offer(1L, 1000L);
+    offer(2L, 5000L);
+    offer(1L, 2000L);
+    assertEquals(4, resequencer.getBuffered());
+
+    // the watermark of device 1 passes 1000 and 2000 only
+    offer(1L, 62500L);
+    awaitRun(2);
+    assertEquals(Arrays.asList("1@1000", "1@2000"), run);
+    assertEquals(3, resequencer.getBuffered());
+
+    // the rest is released oldest first per device
+    resequencer.flush();
+    awaitRun(5);
+    assertEquals(Arrays.asList("1@1000", "1@2000", "1@3000", "1@62500", "2@5000"), run);
+    assertEquals(0, resequencer.getBuffered());
+  }
+
+  public void testArrivalTimeout() throws InterruptedException
+  {
+    resequencer = new AwsIoTHubResequencer("test", LATENESS, 100, 10, false, late::incrementAndGet);
+    offer(1L, 2000L);
+    offer(1L, 1000L);
+    resequencer.release(now + LATENESS - 1L);
+    assertEquals(2, resequencer.getBuffered());
+    resequencer.release(now + LATENESS);
+    awaitRun(2);
+    assertEquals(Arrays.asList("1@1000", "1@2000"), run);
+  }
+
+  public void testStragglerDropped() throws InterruptedException
+  {
+    resequencer = new AwsIoTHubResequencer("test", LATENESS, 100, 10, false, late::incrementAndGet);
+    offer(1L, 1000L);
+    offer(1L, 70000L);
+    awaitRun(1);
+    // older than the message already released
+    assertFalse(resequencer.offer(1L, 500L, now, () -> run.add("1@500")));
+    assertEquals(1, late.get());
+    // not older than it: buffered as usual
+    assertTrue(offer(1L, 1000L));
+    resequencer.flush();
+    awaitRun(3);
+    assertEquals(Arrays.asList("1@1000", "1@1000", "1@70000"), run);
+  }
+
+  public void testStragglerKept() throws InterruptedException
+  {
+    resequencer = new AwsIoTHubResequencer("test", LATENESS, 100, 10, true, late::incrementAndGet);
+    offer(1L, 1000L);
+    offer(1L, 70000L);
+    assertTrue(offer(1L, 500L));
+    awaitRun(2);
+    assertEquals(Arrays.asList("1@1000", "1@500"), run);
+    assertEquals(1, late.get());
+  }
+
+  public void testCapacity() throws InterruptedException
+  {
+    resequencer = new AwsIoTHubResequencer("test", LATENESS, 2, 10, false, late::incrementAndGet);
+    offer(1L, 3000L);
+    offer(1L, 2000L);
+    // over the capacity, the oldest message of the device goes early
+    offer(1L, 1000L);
+    awaitRun(1);
+    assertEquals(Arrays.asList("1@1000"), run);
+    assertEquals(2, resequencer.getBuffered());
+  }
+
+  public void testClose() throws InterruptedException
+  {
+    resequencer = new AwsIoTHubResequencer("test", LATENESS, 100, 10, false, late::incrementAndGet);
+    offer(1L, 1000L);
+    offer(2L, 1000L);
+    assertEquals(2, resequencer.close());
+    assertFalse(offer(3L, 1000L));
+    assertEquals(0, resequencer.getBuffered());
+    assertTrue(run.isEmpty());
+  }
+
+  private boolean offer(long device, long deviceMillis)
+  {
+    return resequencer.offer(device, deviceMillis, now, () -> run.add(device + "@" + deviceMillis));
+  }
+
+  /**
+   * The released messages run on the thread of the resequencer.
+   */
+  private void awaitRun(int count) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (run.size() < count && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(1L);
+    }
+    // and nothing more after a while
+    Thread.sleep(20L);
+    assertEquals(count, run.size());
+  }
+}
@@ -0,0 +1,177 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubStateCacheTest extends TestCase
+{
+  // the size of each entry of the tests: header, topic "t" and payload
+  private static final int ENTRY_SIZE   = 100;
+  private static final int PAYLOAD_SIZE = ENTRY_SIZE - 8 - 8 - 2 - 4 - 1;
+
+  private File             file;
+
+  @Override
+  protected void setUp() throws IOException
+  {
+    file = File.createTempFile("aws-state", ".bin");
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    file.delete();
+  }
+
+  public void testOverwrite() throws IOException
+  {
+    AwsIoTHubStateCache cache = new AwsIoTHubStateCache(1000);
+    cache.record(5L, "t", payload(1), 10L);
+    long version = cache.getVersion();
+    cache.record(5L, "t", payload(2), 20L);
+
+    assertEquals(1, cache.getSize());
+    assertEquals(ENTRY_SIZE, cache.getBytes());
+    assertTrue(cache.getVersion() != version);
+    assertEquals(Arrays.asList("5@20=2"), states(cache));
+  }
+
+  public void testCompaction() throws IOException
+  {
+    AwsIoTHubStateCache cache = new AwsIoTHubStateCache(10 * ENTRY_SIZE);
+    for (int device = 1; device <= 10; device++)
+    {
+      cache.record(device, "t", payload(device), device);
+    }
+    assertEquals(10, cache.getSize());
+    assertEquals(0L, cache.getDropped());
+
+    // a new device drops the devices updated least recently, down to 7/8 of
+    // the log
+    cache.record(11L, "t", payload(11), 11L);
+    assertEquals(3L, cache.getDropped());
+    assertEquals(8, cache.getSize());
+    assertEquals(8 * ENTRY_SIZE, cache.getBytes());
+    assertEquals(Arrays.asList("4@4=4", "5@5=5", "6@6=6", "7@7=7", "8@8=8", "9@9=9", "10@10=10", "11@11=11"), states(cache));
+
+    // an update of an old device makes it the most recent one, and its old
+    // entry is not counted as dropped
+    cache.record(4L, "t", payload(12), 12L);
+    cache.record(12L, "t", payload(12), 12L);
+    cache.record(13L, "t", payload(13), 13L);
+    assertEquals(5L, cache.getDropped());
+    assertEquals(Arrays.asList("7@7=7", "8@8=8", "9@9=9", "10@10=10", "11@11=11", "4@12=12", "12@12=12", "13@13=13"), states(cache));
+  }
+
+  public void testTooLarge() throws IOException
+  {
+    AwsIoTHubStateCache cache = new AwsIoTHubStateCache(ENTRY_SIZE);
+    cache.record(1L, "t", payload(1), 1L);
+    cache.record(2L, "t", new byte[PAYLOAD_SIZE + 1], 2L);
+    assertEquals(Arrays.asList("1@1=1"), states(cache));
+  }
+
+  public void testSaveAndLoad() throws IOException
+  {
+    AwsIoTHubStateCache cache = new AwsIoTHubStateCache(1000);
+    cache.record(1L, "a/b", payload(1), 100L);
+    cache.record(2L, "\u00e9t\u00e9", payload(2), 200L);
+    cache.record(1L, "a/b", payload(3), 300L);
+    assertEquals(2, cache.save(file));
+
+    AwsIoTHubStateCache loaded = new AwsIoTHubStateCache(1000);
+    assertEquals(2, loaded.load(file));
+    assertEquals(states(cache), states(loaded));
+    assertEquals(cache.getBytes(), loaded.getBytes());
+    List<String> topics = new ArrayList<String>();
+    loaded.snapshot((keyHash, arrivalMillis, topic, payload) -> topics.add(topic));
+    assertEquals(Arrays.asList("\u00e9t\u00e9", "a/b"), topics);
+  }
+
+  public void testLoadTruncated() throws IOException
+  {
+    AwsIoTHubStateCache cache = new AwsIoTHubStateCache(1000);
+    for (int device = 1; device <= 3; device++)
+    {
+      cache.record(device, "t", payload(device), device);
+    }
+    cache.save(file);
+    try (RandomAccessFile truncated = new RandomAccessFile(file, "rw"))
+    {
+      truncated.setLength(truncated.length() - 10);
+    }
+
+    // the last entry, cut short, is left out
+    AwsIoTHubStateCache loaded = new AwsIoTHubStateCache(1000);
+    assertEquals(2, loaded.load(file));
+    assertEquals(Arrays.asList("1@1=1", "2@2=2"), states(loaded));
+  }
+
+  public void testLoadOtherFile() throws IOException
+  {
+    Files.write(file.toPath(), "{\"not\":\"a state file\"}".getBytes(StandardCharsets.UTF_8));
+    try
+    {
+      new AwsIoTHubStateCache(1000).load(file);
+      fail();
+    }
+    catch (IOException e)
+    {
+      assertTrue(e.getMessage().startsWith("Not a state file"));
+    }
+  }
+
+  /**
+   * @return a payload starting with the given number, filling the entry
+   */
+  private static byte[] payload(int number)
+  {
+    byte[] payload = new byte[PAYLOAD_SIZE];
+    Arrays.fill(payload, (byte) ' ');
+    byte[] text = Integer.toString(number).getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(text, 0, payload, 0, text.length);
+    return payload;
+  }
+
+  /**
+   * @return the states as key@arrival=payload, oldest first
+   */
+  private static List<String> states(AwsIoTHubStateCache cache) throws IOException
+  {
+    List<String> states = new ArrayList<String>();
+    cache.snapshot((keyHash, arrivalMillis, topic, payload) -> states.add(keyHash + "@" + arrivalMillis + "=" + new String(payload, StandardCharsets.UTF_8).trim()));
+    return states;
+  }
+}
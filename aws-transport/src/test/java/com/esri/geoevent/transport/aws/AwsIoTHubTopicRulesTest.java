@@ -0,0 +1,152 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+*/
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+import junit.framework.TestCase;
+
+public class AwsIoTHubTopicRulesTest extends TestCase
+{
+  public void testInList()
+  {
+    AwsIoTHubTopicRules rules = new AwsIoTHubTopicRules("type in truck|van -> fleet/vehicles", AwsIoTHubTopicRules.Mode.FIRST);
+
+    assertEquals(Arrays.asList("fleet/vehicles"), route(rules, "{\"type\":\"van\"}"));
+    assertEquals(Arrays.asList("fleet/vehicles"), route(rules, "{\"type\":\"truck\"}"));
+    assertTrue(route(rules, "{\"type\":\"bike\"}").isEmpty());
+  }
+
+  public void testQuotedValues()
+  {
+    AwsIoTHubTopicRules rules = new AwsIoTHubTopicRules("region = \"north west\" -> west; name in \"a|b\" | c -> names", AwsIoTHubTopicRules.Mode.ALL);
+
+    assertEquals(Arrays.asList("west"), route(rules, "{\"region\":\"north west\"}"));
+    assertTrue(route(rules, "{\"region\":\"north\"}").isEmpty());
+    // the values of an in list are split before they are unquoted
+    assertEquals(Arrays.asList("names"), route(rules, "{\"name\":\"c\"}"));
+  }
+
+  public void testNumbersCompareAsNumbers()
+  {
+    AwsIoTHubTopicRules rules = new AwsIoTHubTopicRules("severity = 3 -> three; severity >= 2.5 -> high", AwsIoTHubTopicRules.Mode.ALL);
+
+    assertEquals(Arrays.asList("three", "high"), route(rules, "{\"severity\":3}"));
+    assertEquals(Arrays.asList("three", "high"), route(rules, "{\"severity\":3.0}"));
+    assertEquals(Arrays.asList("three", "high"), route(rules, "{\"severity\":30e-1}"));
+    assertTrue(route(rules, "{\"severity\":2}").isEmpty());
+    // a quoted number is a string, compared as text
+    assertTrue(route(rules, "{\"severity\":\"3.0\"}").isEmpty());
+  }
+
+  public void testMissingField()
+  {
+    AwsIoTHubTopicRules rules = new AwsIoTHubTopicRules("region != west -> other; region = west -> west; severity > 1 -> high", AwsIoTHubTopicRules.Mode.ALL);
+
+    assertEquals(Arrays.asList("other"), route(rules, "{\"speed\":10}"));
+    assertEquals(Arrays.asList("west"), route(rules, "{\"region\":\"west\"}"));
+  }
+
+  public void testFirstAndAllModes()
+  {
+    String text = "severity >= 3 -> alerts@1, audit\nregion = west -> audit, west\n* -> audit";
+    String payload = "{\"severity\":4,\"region\":\"west\"}";
+
+    AwsIoTHubTopicRules first = new AwsIoTHubTopicRules(text, AwsIoTHubTopicRules.Mode.FIRST);
+    assertEquals(3, first.size());
+    assertEquals(Arrays.asList("alerts", "audit"), route(first, payload));
+
+    AwsIoTHubTopicRules all = new AwsIoTHubTopicRules(text, AwsIoTHubTopicRules.Mode.ALL);
+    List<AwsIoTHubTopicRules.Target> targets = all.route(bytes(payload));
+    assertEquals(Arrays.asList("alerts", "audit", "west"), topics(targets, payload));
+    assertEquals(AWSIotQos.QOS1, targets.get(0).getQos());
+    assertEquals(AWSIotQos.QOS0, targets.get(1).getQos());
+
+    // the same topic with another QoS is another target
+    AwsIoTHubTopicRules qos = new AwsIoTHubTopicRules("* -> audit; * -> audit@1", AwsIoTHubTopicRules.Mode.ALL);
+    assertEquals(2, qos.route(bytes(payload)).size());
+  }
+
+  public void testFieldTopics()
+  {
+    AwsIoTHubTopicRules rules = new AwsIoTHubTopicRules("* -> alerts/${region}/${id}", AwsIoTHubTopicRules.Mode.FIRST);
+
+    assertEquals(Arrays.asList("alerts/west/42"), route(rules, "{\"id\":42,\"region\":\"west\"}"));
+    // characters a topic level cannot hold are replaced
+    assertEquals(Arrays.asList("alerts/a_b_c_d/42"), route(rules, "{\"id\":42,\"region\":\"a/b+c#d\"}"));
+    // a missing field is replaced by nothing
+    assertEquals(Arrays.asList("alerts//42"), route(rules, "{\"id\":42}"));
+  }
+
+  public void testMalformedRules()
+  {
+    assertInvalid("severity >= 3", "missing -> in rule: severity >= 3");
+    assertInvalid("severity >= -> alerts", "invalid condition 'severity >=' in rule: severity >= -> alerts");
+    assertInvalid("severity -> alerts", "invalid condition 'severity' in rule: severity -> alerts");
+    assertInvalid("severity > high -> alerts", "not a number 'high' in rule: severity > high -> alerts");
+    assertInvalid("* -> alerts@2", "invalid topic 'alerts@2' in rule: * -> alerts@2");
+    assertInvalid("* -> alerts,,audit", "invalid topic '' in rule: * -> alerts,,audit");
+    // the message names the rule that failed, not the first one
+    assertInvalid("* -> ok\nregion ~ west -> west", "invalid condition 'region ~ west' in rule: region ~ west -> west");
+  }
+
+  private static void assertInvalid(String text, String message)
+  {
+    try
+    {
+      new AwsIoTHubTopicRules(text, AwsIoTHubTopicRules.Mode.FIRST);
+      fail("parsed: " + text);
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertEquals(message, e.getMessage());
+    }
+  }
+
+  private static List<String> route(AwsIoTHubTopicRules rules, String payload)
+  {
+    return topics(rules.route(bytes(payload)), payload);
+  }
+
+  private static List<String> topics(List<AwsIoTHubTopicRules.Target> targets, String payload)
+  {
+    List<String> topics = new ArrayList<String>();
+    for (AwsIoTHubTopicRules.Target target : targets)
+    {
+      topics.add(target.getTopic(bytes(payload)));
+    }
+    return topics;
+  }
+
+  private static byte[] bytes(String payload)
+  {
+    return payload.getBytes(StandardCharsets.UTF_8);
+  }
+}